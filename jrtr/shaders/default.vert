@@ -4,6 +4,10 @@
 // Uniform variables, set in main program
 uniform mat4 projection; 
 uniform mat4 modelview;
+// The color of the instance of an InstancedShape when the instances are
+// drawn one by one, white for other shapes and render contexts that do
+// not set it
+uniform vec4 shapeColor = vec4(1.0);
 
 // Input vertex attributes; passed from main program to shader 
 // via vertex buffer objects
@@ -15,7 +19,7 @@ out vec4 frag_color;
 
 void main()
 {
-	frag_color = color;
+	frag_color = color * shapeColor;
 	// Note: gl_Position is a default output variable containing
 	// the transformed vertex position
 	gl_Position = projection * modelview * position;
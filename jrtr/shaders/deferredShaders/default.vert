@@ -7,8 +7,8 @@ uniform mat4 modelview;
 
 // Input vertex attributes; passed from main program to shader 
 // via vertex buffer objects
-in vec4 position;
-in vec2 texcoord;
+layout(location = 0) in vec4 position;
+layout(location = 2) in vec2 texcoord;
 
 // Output variables
 out vec2 texCoords;
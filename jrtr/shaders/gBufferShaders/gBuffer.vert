@@ -2,10 +2,10 @@
 uniform mat4 projection; 
 uniform mat4 modelview;
 
-in vec4 position;
-in vec3 normal;
-in vec3 color;
-in vec2 texcoord;
+layout(location = 0) in vec4 position;
+layout(location = 1) in vec3 normal;
+layout(location = 3) in vec3 color;
+layout(location = 2) in vec2 texcoord;
 
 // Output variables
 out vec4 normalOut;
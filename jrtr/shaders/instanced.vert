@@ -0,0 +1,27 @@
+#version 150
+// Default vertex shader for instanced drawing
+
+// Uniform variables, set in main program
+uniform mat4 projection; 
+uniform mat4 modelview;
+
+// Input vertex attributes; passed from main program to shader 
+// via vertex buffer objects
+in vec4 position;
+in vec4 color;
+
+// Per-instance attributes; passed from main program to shader via
+// a vertex buffer object that advances once per instance
+in mat4 model;
+in vec4 instanceColor;
+
+// Output variables
+out vec4 frag_color;
+
+void main()
+{
+	frag_color = color * instanceColor;
+	// Note: gl_Position is a default output variable containing
+	// the transformed vertex position
+	gl_Position = projection * modelview * model * position;
+}
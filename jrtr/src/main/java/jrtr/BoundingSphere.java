@@ -0,0 +1,132 @@
+package jrtr;
+
+import javax.vecmath.*;
+
+/**
+ * A sphere that contains all vertices of a piece of geometry. It is used
+ * to quickly decide whether geometry is outside of the view frustum, see
+ * {@link FrustumPlanes}.
+ */
+public class BoundingSphere {
+
+	public Point3f center;
+	public float radius;
+
+	/**
+	 * Make an empty bounding sphere, which contains no points.
+	 */
+	public BoundingSphere()
+	{
+		center = new Point3f();
+		radius = -1.f;
+	}
+
+	/**
+	 * Make a bounding sphere for a set of points. The center is the center
+	 * of the axis aligned bounding box of the points, which gives a sphere
+	 * that is not the smallest possible, but close to it for most meshes.
+	 *
+	 * @param positions the coordinates of the points
+	 * @param dim the number of coordinates per point, only the first three
+	 * 		are used
+	 */
+	public BoundingSphere(float[] positions, int dim)
+	{
+		this();
+		if(positions.length < dim) return;
+
+		float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		for(int i=0; i+dim<=positions.length; i+=dim)
+		{
+			for(int j=0; j<3; j++)
+			{
+				min[j] = Math.min(min[j], positions[i+j]);
+				max[j] = Math.max(max[j], positions[i+j]);
+			}
+		}
+		center.set((min[0]+max[0])/2, (min[1]+max[1])/2, (min[2]+max[2])/2);
+
+		float r2 = 0;
+		for(int i=0; i+dim<=positions.length; i+=dim)
+		{
+			float dx = positions[i]-center.x, dy = positions[i+1]-center.y, dz = positions[i+2]-center.z;
+			r2 = Math.max(r2, dx*dx + dy*dy + dz*dz);
+		}
+		radius = (float)Math.sqrt(r2);
+	}
+
+	/**
+	 * Set this sphere to another sphere.
+	 */
+	public void set(BoundingSphere s)
+	{
+		center.set(s.center);
+		radius = s.radius;
+	}
+
+	/**
+	 * Set this sphere to a sphere that contains another sphere after a
+	 * transformation. The radius is scaled by the largest scale factor of
+	 * the transformation, so the result is exact for rigid transformations
+	 * and uniform scaling, and conservative otherwise.
+	 *
+	 * @param s the sphere to transform, which may be this sphere
+	 * @param m an affine transformation
+	 */
+	public void transform(BoundingSphere s, Matrix4f m)
+	{
+		if(s.isEmpty())
+		{
+			radius = -1.f;
+			return;
+		}
+		float x = s.center.x, y = s.center.y, z = s.center.z;
+		center.set(m.m00*x + m.m01*y + m.m02*z + m.m03,
+				m.m10*x + m.m11*y + m.m12*z + m.m13,
+				m.m20*x + m.m21*y + m.m22*z + m.m23);
+		float sx = m.m00*m.m00 + m.m10*m.m10 + m.m20*m.m20;
+		float sy = m.m01*m.m01 + m.m11*m.m11 + m.m21*m.m21;
+		float sz = m.m02*m.m02 + m.m12*m.m12 + m.m22*m.m22;
+		radius = s.radius*(float)Math.sqrt(Math.max(sx, Math.max(sy, sz)));
+	}
+
+	/**
+	 * Grow this sphere to the smallest sphere that contains both this
+	 * sphere and another one.
+	 */
+	public void add(BoundingSphere s)
+	{
+		if(s.isEmpty()) return;
+		if(isEmpty())
+		{
+			set(s);
+			return;
+		}
+
+		float dx = s.center.x-center.x, dy = s.center.y-center.y, dz = s.center.z-center.z;
+		float d = (float)Math.sqrt(dx*dx + dy*dy + dz*dz);
+		if(d + s.radius <= radius) return;
+		if(d + radius <= s.radius)
+		{
+			set(s);
+			return;
+		}
+
+		// Move the center towards s, such that both spheres touch the result
+		float r = (d + radius + s.radius)/2;
+		float t = (r - radius)/d;
+		center.x += dx*t;
+		center.y += dy*t;
+		center.z += dz*t;
+		radius = r;
+	}
+
+	/**
+	 * @return true if the sphere contains no points
+	 */
+	public boolean isEmpty()
+	{
+		return radius < 0;
+	}
+}
@@ -0,0 +1,111 @@
+package jrtr;
+
+import javax.vecmath.*;
+
+/**
+ * The six planes that bound the view frustum. The planes are extracted
+ * from a matrix that transforms to clip coordinates, for example the
+ * projection matrix times the camera matrix. The planes are then given in
+ * the coordinate system before this transformation, for example world
+ * coordinates. If the matrix also includes the transformation of an
+ * object, the planes are given in object coordinates.
+ * <p>
+ * The planes are extracted as in G. Gribb and K. Hartmann, "Fast
+ * Extraction of Viewing Frustum Planes from the World-View-Projection
+ * Matrix", 2001.
+ */
+public class FrustumPlanes {
+
+	/**
+	 * The bit mask of all six planes, see {@link #classify}.
+	 */
+	public static final int ALL_PLANES = 0x3F;
+
+	/**
+	 * Plane i has the equation planes[4*i]*x + planes[4*i+1]*y +
+	 * planes[4*i+2]*z + planes[4*i+3] = 0. The normals have unit length
+	 * and point to the inside of the frustum.
+	 */
+	private float[] planes;
+
+	public FrustumPlanes()
+	{
+		planes = new float[24];
+	}
+
+	/**
+	 * Extract the planes from a transformation to clip coordinates. Points
+	 * inside of the frustum satisfy -w <= x,y,z <= w in clip coordinates.
+	 */
+	public void set(Matrix4f m)
+	{
+		// Left, right, bottom, top, near, far
+		setPlane(0, m.m30 + m.m00, m.m31 + m.m01, m.m32 + m.m02, m.m33 + m.m03);
+		setPlane(1, m.m30 - m.m00, m.m31 - m.m01, m.m32 - m.m02, m.m33 - m.m03);
+		setPlane(2, m.m30 + m.m10, m.m31 + m.m11, m.m32 + m.m12, m.m33 + m.m13);
+		setPlane(3, m.m30 - m.m10, m.m31 - m.m11, m.m32 - m.m12, m.m33 - m.m13);
+		setPlane(4, m.m30 + m.m20, m.m31 + m.m21, m.m32 + m.m22, m.m33 + m.m23);
+		setPlane(5, m.m30 - m.m20, m.m31 - m.m21, m.m32 - m.m22, m.m33 - m.m23);
+	}
+
+	private void setPlane(int i, float a, float b, float c, float d)
+	{
+		float s = (float)(1.0/Math.sqrt(a*a + b*b + c*c));
+		planes[4*i] = a*s;
+		planes[4*i+1] = b*s;
+		planes[4*i+2] = c*s;
+		planes[4*i+3] = d*s;
+	}
+
+	/**
+	 * Test whether a sphere is entirely outside of the frustum. This is
+	 * conservative, some spheres near the corners of the frustum that are
+	 * outside are not detected.
+	 *
+	 * @return true if the sphere is entirely outside of one of the planes
+	 */
+	public boolean isOutside(BoundingSphere s)
+	{
+		if(s.isEmpty()) return true;
+		for(int i=0; i<24; i+=4)
+		{
+			if(planes[i]*s.center.x + planes[i+1]*s.center.y + planes[i+2]*s.center.z + planes[i+3] < -s.radius)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Test a sphere against some of the planes, for hierarchical culling.
+	 * If the bounding sphere of a node is entirely inside of a plane, so 
+	 * are the spheres of its children, and the plane does not need to be 
+	 * tested for them. Objects that are culled by a plane are often culled
+	 * by the same plane in the next frame, so that plane should be tested 
+	 * first (plane coherency).
+	 *
+	 * @param s the sphere
+	 * @param mask the planes to test, bit i stands for plane i
+	 * @param first the plane to test first
+	 * @return -1-i if the sphere is entirely outside of plane i, otherwise
+	 * 		the planes in mask that intersect the sphere. The result is 0 if
+	 * 		the sphere is entirely inside of all planes in mask.
+	 */
+	public int classify(BoundingSphere s, int mask, int first)
+	{
+		if(s.isEmpty()) return -1-first;
+
+		int result = 0;
+		for(int k=0; k<7; k++)
+		{
+			// Plane first, followed by all planes in order
+			int i = k == 0 ? first : k-1;
+			if(k > 0 && i == first) continue;
+			if((mask & (1 << i)) == 0) continue;
+
+			float d = planes[4*i]*s.center.x + planes[4*i+1]*s.center.y + planes[4*i+2]*s.center.z + planes[4*i+3];
+			if(d < -s.radius) return -1-i;
+			if(d < s.radius) result |= 1 << i;
+		}
+		return result;
+	}
+}
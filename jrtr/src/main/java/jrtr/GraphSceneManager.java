@@ -2,36 +2,281 @@ package jrtr;
 
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
 import javax.vecmath.*;
 
+/**
+ * A scene manager that stores the scene as a graph of {@link TransformGroup}
+ * and {@link ShapeNode} nodes. The transformation of a shape is the product
+ * of the transformations of all groups on the path from the root to the
+ * shape node.
+ * <p>
+ * The graph is traversed depth first without recursion and without 
+ * allocating memory per node. The traversal keeps a stack of the groups on
+ * the current path, which is allocated once and reused for every frame. 
+ * Each group caches its world transformation (see {@link TransformGroup}).
+ * When the traversal enters a group, the world transformation is only 
+ * recomputed if the group has been changed or the world transformation of
+ * its parent has been recomputed, so static subtrees cost no matrix 
+ * multiplications.
+ * <p>
+ * Shapes outside of the view frustum are culled during the traversal. Each
+ * group stores a bounding sphere of its subtree, and whole subtrees are 
+ * culled if the sphere is outside of the frustum. If the sphere of a group
+ * is inside of some frustum planes, these planes are not tested again for
+ * its subtree, and the plane that culled a node is tested first the next
+ * time. {@link #getCulledNodes} returns the number of culled nodes.
+ * <p>
+ * The iterator and the {@link RenderItem} it returns are reused as well,
+ * so there can only be one traversal at a time, and a render item is only 
+ * valid until the next call of {@link SceneManagerIterator#hasNext}.
+ */
 public class GraphSceneManager implements SceneManagerInterface {
 
 	private SceneNode root;
 	private LinkedList<Light> lights;
 	private Camera camera;
 	private Frustum frustum;
+	private GraphSceneManagerItr iterator;
+	private boolean frustumCulling;
+	private int culledNodes;
 	
 	/**
-	 * Implement the iterative graph traversal here. 
+	 * Iterative depth first traversal of the scene graph.
 	 */
 	private class GraphSceneManagerItr implements SceneManagerIterator {
 
-		// Dummy implementation.
-		public GraphSceneManagerItr(GraphSceneManager sceneManager)
+		// The groups on the path from the root to the current node, whether
+		// their world transformations have been recomputed, the frustum 
+		// planes that intersect their bounds, their children, and the index
+		// of the next child of each group
+		private TransformGroup[] groups;
+		private boolean[] changed;
+		private int[] planeMasks;
+		private List<?>[] childLists;
+		private int[] childIndices, childCounts;
+		private int depth;
+		
+		private final Matrix4f identity;
+		private final RenderItem item;
+		
+		// The frustum planes in world coordinates, and a sphere for 
+		// intermediate results
+		private final Matrix4f worldToClip;
+		private final FrustumPlanes planes;
+		private final BoundingSphere sphere;
+		
+		// The next shape to return and its transformation, or null. The
+		// next shape is searched when hasNext is called, so that the 
+		// transformation of the last render item stays valid until then.
+		private Shape nextShape;
+		private Matrix4f nextTransformation;
+		private boolean advanced;
+		
+		public GraphSceneManagerItr()
 		{
+			groups = new TransformGroup[16];
+			changed = new boolean[16];
+			planeMasks = new int[16];
+			childLists = new List<?>[16];
+			childIndices = new int[16];
+			childCounts = new int[16];
+			identity = new Matrix4f();
+			identity.setIdentity();
+			item = new RenderItem(null, null);
+			worldToClip = new Matrix4f();
+			planes = new FrustumPlanes();
+			sphere = new BoundingSphere();
+		}
+		
+		/**
+		 * Start a new traversal at the root.
+		 */
+		void reset()
+		{
+			// Release the groups of the previous traversal
+			for(int i=0; i<=depth && i<groups.length; i++)
+				release(i);
+			depth = -1;
+			nextShape = null;
+			advanced = false;
+			culledNodes = 0;
+			
+			int mask = 0;
+			if(frustumCulling)
+			{
+				worldToClip.mul(frustum.getProjectionMatrix(), camera.getCameraMatrix());
+				planes.set(worldToClip);
+				mask = FrustumPlanes.ALL_PLANES;
+			}
 			
+			if(root instanceof TransformGroup)
+			{
+				if(frustumCulling)
+					((TransformGroup)root).updateBounds(sphere);
+				enter((TransformGroup)root, identity, false, mask);
+			}
+			else if(root instanceof ShapeNode)
+			{
+				ShapeNode shapeNode = (ShapeNode)root;
+				if(!isCulled(shapeNode, identity, mask))
+				{
+					nextShape = shapeNode.getShape();
+					nextTransformation = identity;
+				}
+				advanced = true;
+			}
 		}
 		
-		// Dummy implementation.		
 		public boolean hasNext()
 		{
-			return false;
+			if(!advanced)
+			{
+				advance();
+				advanced = true;
+			}
+			return nextShape != null;
 		}
 
-		// Dummy implementation.
 		public RenderItem next()
 		{
-			return null;
+			if(!hasNext())
+				throw new NoSuchElementException();
+			item.set(nextShape, nextTransformation);
+			nextShape = null;
+			advanced = false;
+			return item;
+		}
+		
+		/**
+		 * Continue the traversal until the next shape node is found, or the
+		 * whole graph has been traversed.
+		 */
+		private void advance()
+		{
+			while(depth >= 0)
+			{
+				SceneNode node = nextChild();
+				if(node == null)
+				{
+					// All children of the group are done
+					release(depth);
+					depth--;
+				}
+				else if(node instanceof ShapeNode)
+				{
+					ShapeNode shapeNode = (ShapeNode)node;
+					Matrix4f t = groups[depth].worldTransformation();
+					if(shapeNode.getShape() != null && !isCulled(shapeNode, t, planeMasks[depth]))
+					{
+						nextShape = shapeNode.getShape();
+						nextTransformation = t;
+						return;
+					}
+				}
+				else if(node instanceof TransformGroup)
+				{
+					enter((TransformGroup)node, groups[depth].worldTransformation(), changed[depth], planeMasks[depth]);
+				}
+			}
+		}
+		
+		/**
+		 * Return the next child of the group at the top of the stack, or null
+		 * if there are no more children.
+		 */
+		private SceneNode nextChild()
+		{
+			int i = childIndices[depth]++;
+			return i < childCounts[depth] ? (SceneNode)childLists[depth].get(i) : null;
+		}
+		
+		/**
+		 * Test a shape node against the frustum planes in mask.
+		 * 
+		 * @param t the world transformation of the shape
+		 * @return true if the shape is outside of the frustum
+		 */
+		private boolean isCulled(ShapeNode shapeNode, Matrix4f t, int mask)
+		{
+			if(mask == 0) return false;
+			Shape shape = shapeNode.getShape();
+			if(shape == null || shape.getBoundingSphere() == null) return false;
+			
+			sphere.transform(shape.getBoundingSphere(), t);
+			int result = planes.classify(sphere, mask, shapeNode.cullPlane);
+			if(result >= 0) return false;
+			shapeNode.cullPlane = -1-result;
+			culledNodes++;
+			return true;
+		}
+		
+		/**
+		 * Update the world transformation of a group if necessary, and enter
+		 * the group unless its bounds are outside of the frustum planes in 
+		 * mask.
+		 */
+		private void enter(TransformGroup group, Matrix4f parent, boolean parentChanged, int mask)
+		{
+			boolean groupChanged = group.updateWorldTransformation(parent, parentChanged);
+			if(mask != 0)
+			{
+				sphere.transform(group.getBounds(), group.worldTransformation());
+				int result = planes.classify(sphere, mask, group.cullPlane);
+				if(result < 0)
+				{
+					// The subtree is not visited, so its world transformations
+					// need to be updated when the group is visible again
+					if(groupChanged)
+						group.invalidateWorldTransformation();
+					group.cullPlane = -1-result;
+					culledNodes++;
+					return;
+				}
+				mask = result;
+			}
+			
+			depth++;
+			if(depth == groups.length)
+				grow();
+			groups[depth] = group;
+			changed[depth] = groupChanged;
+			planeMasks[depth] = mask;
+			
+			List<SceneNode> children = group.getChildren();
+			childLists[depth] = children;
+			childIndices[depth] = 0;
+			childCounts[depth] = children.size();
+		}
+		
+		private void release(int i)
+		{
+			groups[i] = null;
+			childLists[i] = null;
+		}
+		
+		private void grow()
+		{
+			int n = 2*groups.length;
+			TransformGroup[] g = new TransformGroup[n];
+			System.arraycopy(groups, 0, g, 0, groups.length);
+			groups = g;
+			boolean[] b = new boolean[n];
+			System.arraycopy(changed, 0, b, 0, changed.length);
+			changed = b;
+			int[] m = new int[n];
+			System.arraycopy(planeMasks, 0, m, 0, planeMasks.length);
+			planeMasks = m;
+			List<?>[] l = new List<?>[n];
+			System.arraycopy(childLists, 0, l, 0, childLists.length);
+			childLists = l;
+			int[] c = new int[n];
+			System.arraycopy(childIndices, 0, c, 0, childIndices.length);
+			childIndices = c;
+			c = new int[n];
+			System.arraycopy(childCounts, 0, c, 0, childCounts.length);
+			childCounts = c;
 		}
 	}
 	
@@ -41,6 +286,8 @@ public class GraphSceneManager implements SceneManagerInterface {
 		camera = new Camera();
 		frustum = new Frustum();
 		lights = new LinkedList<Light>();
+		iterator = new GraphSceneManagerItr();
+		frustumCulling = true;
 	}
 	
 	public Camera getCamera()
@@ -53,8 +300,36 @@ public class GraphSceneManager implements SceneManagerInterface {
 		return frustum;
 	}
 
+	/**
+	 * Start a traversal of the scene graph. This returns the same iterator
+	 * every time, which restarts at the root.
+	 */
 	public SceneManagerIterator iterator() {
-		return new GraphSceneManagerItr(this);
+		iterator.reset();
+		return iterator;
+	}
+	
+	/**
+	 * Enable or disable frustum culling, which is enabled by default.
+	 */
+	public void setFrustumCulling(boolean frustumCulling)
+	{
+		this.frustumCulling = frustumCulling;
+	}
+	
+	public boolean isFrustumCulling()
+	{
+		return frustumCulling;
+	}
+	
+	/**
+	 * Return the number of nodes that were culled by the last traversal.
+	 * A culled group counts as one node, the nodes in its subtree are not
+	 * visited.
+	 */
+	public int getCulledNodes()
+	{
+		return culledNodes;
 	}
 	
 	public void addLight(Light light)
@@ -0,0 +1,168 @@
+package jrtr;
+
+import java.util.Arrays;
+import javax.vecmath.*;
+
+/**
+ * A shape that is drawn several times with different transformations and
+ * colors, for example the trees of a forest. All instances share the
+ * {@link VertexData} and the {@link Material} of the shape.
+ * <p>
+ * The instances are stored in one packed float array with
+ * {@link #FLOATS_PER_INSTANCE} floats per instance: the transformation of
+ * the instance in column major order, as used by OpenGL, followed by its
+ * RGBA color. The transformation of an instance is applied before the
+ * transformation of the shape. Render contexts that support instancing
+ * draw all instances with one draw call, other render contexts draw them
+ * one by one.
+ * <p>
+ * The color of an instance multiplies the vertex colors. The OpenGL 
+ * renderer applies it in the instanced shaders, which read it as the
+ * per-instance attribute "instanceColor", and when it draws the instances
+ * one by one, in shaders that have the uniform "shapeColor", like the 
+ * default shader. Other shaders ignore it. The software renderer applies
+ * the red, green and blue components, and ignores alpha.
+ * <p>
+ * The bounding sphere of the shape contains all instances. Scene managers
+ * that store the bounds of their shapes, like the
+ * {@link OctreeSceneManager}, need to be told when instances are changed.
+ */
+public class InstancedShape extends Shape {
+
+	/**
+	 * The number of floats per instance, 16 for the transformation and 4
+	 * for the color.
+	 */
+	public static final int FLOATS_PER_INSTANCE = 20;
+
+	private float[] instanceData;
+	private int instanceCount;
+	private BoundingSphere boundingSphere;
+	private final BoundingSphere sphere;
+
+	public InstancedShape(VertexData vertexData)
+	{
+		super(vertexData);
+		instanceData = new float[16*FLOATS_PER_INSTANCE];
+		sphere = new BoundingSphere();
+	}
+
+	/**
+	 * Add an instance with a white color.
+	 *
+	 * @return the index of the instance
+	 */
+	public int addInstance(Matrix4f t)
+	{
+		return addInstance(t, 1.f, 1.f, 1.f, 1.f);
+	}
+
+	/**
+	 * Add an instance.
+	 *
+	 * @return the index of the instance
+	 */
+	public int addInstance(Matrix4f t, float r, float g, float b, float a)
+	{
+		if((instanceCount+1)*FLOATS_PER_INSTANCE > instanceData.length)
+			instanceData = Arrays.copyOf(instanceData, 2*instanceData.length);
+		setInstance(instanceCount++, t, r, g, b, a);
+		return instanceCount-1;
+	}
+
+	/**
+	 * Replace the transformation and the color of an instance.
+	 */
+	public void setInstance(int i, Matrix4f t, float r, float g, float b, float a)
+	{
+		if(i < 0 || i >= instanceCount)
+			throw new IndexOutOfBoundsException("Instance " + i + " of " + instanceCount);
+
+		float[] d = instanceData;
+		int o = i*FLOATS_PER_INSTANCE;
+		d[o] = t.m00; d[o+1] = t.m10; d[o+2] = t.m20; d[o+3] = t.m30;
+		d[o+4] = t.m01; d[o+5] = t.m11; d[o+6] = t.m21; d[o+7] = t.m31;
+		d[o+8] = t.m02; d[o+9] = t.m12; d[o+10] = t.m22; d[o+11] = t.m32;
+		d[o+12] = t.m03; d[o+13] = t.m13; d[o+14] = t.m23; d[o+15] = t.m33;
+		d[o+16] = r; d[o+17] = g; d[o+18] = b; d[o+19] = a;
+		boundingSphere = null;
+	}
+
+	/**
+	 * Get the transformation of an instance.
+	 *
+	 * @param t the matrix to store the transformation in
+	 */
+	public void getInstanceTransformation(int i, Matrix4f t)
+	{
+		if(i < 0 || i >= instanceCount)
+			throw new IndexOutOfBoundsException("Instance " + i + " of " + instanceCount);
+
+		float[] d = instanceData;
+		int o = i*FLOATS_PER_INSTANCE;
+		t.m00 = d[o]; t.m10 = d[o+1]; t.m20 = d[o+2]; t.m30 = d[o+3];
+		t.m01 = d[o+4]; t.m11 = d[o+5]; t.m21 = d[o+6]; t.m31 = d[o+7];
+		t.m02 = d[o+8]; t.m12 = d[o+9]; t.m22 = d[o+10]; t.m32 = d[o+11];
+		t.m03 = d[o+12]; t.m13 = d[o+13]; t.m23 = d[o+14]; t.m33 = d[o+15];
+	}
+
+	/**
+	 * Remove the last instance. Instances are removed from the end, so
+	 * that the indices of the other instances do not change.
+	 */
+	public void removeLastInstance()
+	{
+		if(instanceCount > 0)
+		{
+			instanceCount--;
+			boundingSphere = null;
+		}
+	}
+
+	public void removeAllInstances()
+	{
+		instanceCount = 0;
+		boundingSphere = null;
+	}
+
+	public int getInstanceCount()
+	{
+		return instanceCount;
+	}
+
+	/**
+	 * Return the packed instance data. Only the first
+	 * <code>getInstanceCount()*FLOATS_PER_INSTANCE</code> floats are used.
+	 * The array must not be modified, and it is replaced when instances
+	 * are added.
+	 */
+	public float[] getInstanceData()
+	{
+		return instanceData;
+	}
+
+	/**
+	 * Return a sphere that contains all instances, in the coordinates of
+	 * the shape. It is recomputed when it is requested after the instances
+	 * have changed.
+	 */
+	public BoundingSphere getBoundingSphere()
+	{
+		if(boundingSphere == null)
+		{
+			boundingSphere = new BoundingSphere();
+			VertexData vertexData = getVertexData();
+			if(vertexData != null)
+			{
+				Matrix4f t = new Matrix4f();
+				for(int i=0; i<instanceCount; i++)
+				{
+					getInstanceTransformation(i, t);
+					sphere.transform(vertexData.getBoundingSphere(), t);
+					boundingSphere.add(sphere);
+				}
+			}
+		}
+		return boundingSphere;
+	}
+}
@@ -0,0 +1,648 @@
+package jrtr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import javax.vecmath.*;
+
+/**
+ * A scene manager that stores shapes in a loose octree. It can be used in
+ * place of {@link SimpleSceneManager} for scenes with many independent
+ * shapes: the iterator only visits the octree nodes that intersect the view
+ * frustum, so the cost of a frame depends on the visible part of the scene
+ * rather than on its size.
+ * <p>
+ * Each shape is stored in a single node, which is chosen by the bounding
+ * sphere of the shape in world coordinates. It is the deepest node whose
+ * cube contains the center of the sphere and whose half edge length is at
+ * least the radius. The bounds of a node are its cube enlarged to twice its
+ * size (this is what makes the octree loose), which then contain all shapes
+ * of the node. Adding, removing and moving a shape take time proportional
+ * to the depth of the tree. The root grows when shapes are added outside of
+ * it, and empty nodes are removed.
+ * <p>
+ * Like {@link SimpleSceneManager}, the octree follows changes of the
+ * transformations of the shapes, also when a transformation matrix is
+ * modified in place. Each shape keeps a copy of the transformation that
+ * its node was chosen for, and before each iteration, the shapes whose
+ * transformation differs from their copy are moved. This costs a
+ * comparison of two matrices per shape and frame. Applications that call
+ * {@link #moveShape} themselves after changing a transformation can turn
+ * it off with {@link #setTransformationTracking}, so that a frame only
+ * costs time for the visible part of the scene. Changes of the vertex data
+ * or of the instances of an {@link InstancedShape} are never detected,
+ * {@link #moveShape} needs to be called after them. Shapes without vertex
+ * data are never culled.
+ * <p>
+ * Like in {@link GraphSceneManager}, the iterator and the {@link RenderItem}
+ * it returns are reused, so there can only be one iteration at a time, and a
+ * render item is only valid until the next call of
+ * {@link SceneManagerIterator#next}. Shapes must not be added, removed or
+ * moved during an iteration.
+ */
+public class OctreeSceneManager implements SceneManagerInterface {
+
+	// Nodes are not split further below this depth
+	private static final int MAX_DEPTH = 24;
+
+	// Half the diagonal of a cube with half edge length 1, times 2 for the
+	// loose bounds
+	private static final float LOOSE_RADIUS = 2*(float)Math.sqrt(3);
+
+	/**
+	 * A node of the octree.
+	 */
+	private static class Node {
+
+		// Center and half edge length of the cube of the node
+		final float x, y, z, size;
+
+		Node parent;
+		int octant;
+		Node[] children;
+
+		// The shapes stored in this node, and the number of shapes in the
+		// subtree of the node. Most inner nodes have no shapes, so the array
+		// is only allocated when needed.
+		Entry[] entries;
+		int count, total;
+
+		// The frustum plane that culled the node the last time
+		int cullPlane;
+
+		Node(float x, float y, float z, float size)
+		{
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.size = size;
+		}
+
+		/**
+		 * Return the index of the child whose cube contains a point.
+		 */
+		int octant(float px, float py, float pz)
+		{
+			return (px >= x ? 1 : 0) | (py >= y ? 2 : 0) | (pz >= z ? 4 : 0);
+		}
+
+		/**
+		 * Return a child, and make it if it does not exist.
+		 */
+		Node child(int i)
+		{
+			if(children == null)
+				children = new Node[8];
+			if(children[i] == null)
+			{
+				float h = size/2;
+				Node c = new Node(x + ((i & 1) != 0 ? h : -h), y + ((i & 2) != 0 ? h : -h),
+						z + ((i & 4) != 0 ? h : -h), h);
+				c.parent = this;
+				c.octant = i;
+				children[i] = c;
+			}
+			return children[i];
+		}
+
+		boolean contains(float px, float py, float pz)
+		{
+			return Math.abs(px-x) <= size && Math.abs(py-y) <= size && Math.abs(pz-z) <= size;
+		}
+	}
+
+	/**
+	 * A shape, its bounding sphere in world coordinates, the transformation
+	 * the sphere was computed with, and its place in the octree and in the
+	 * list of all entries.
+	 */
+	private static class Entry {
+
+		final Shape shape;
+		final BoundingSphere sphere;
+		final Matrix4f transformation;
+		Node node;
+		int index;
+		int listIndex;
+
+		Entry(Shape shape)
+		{
+			this.shape = shape;
+			sphere = new BoundingSphere();
+			transformation = new Matrix4f();
+			updateSphere();
+		}
+
+		/**
+		 * @return true if the transformation of the shape has changed since
+		 * the sphere was computed
+		 */
+		boolean isMoved()
+		{
+			return !transformation.equals(shape.getTransformation());
+		}
+
+		void updateSphere()
+		{
+			transformation.set(shape.getTransformation());
+			BoundingSphere bounds = shape.getBoundingSphere();
+			if(bounds == null)
+			{
+				sphere.radius = -1.f;
+				return;
+			}
+			sphere.transform(bounds, shape.getTransformation());
+			// Shapes that are infinitely far away can not be stored in the
+			// octree either
+			if(!Float.isFinite(sphere.radius) || !Float.isFinite(sphere.center.x + sphere.center.y + sphere.center.z))
+				sphere.radius = -1.f;
+		}
+	}
+
+	private LinkedList<Light> lights;
+	private Camera camera;
+	private Frustum frustum;
+
+	private HashMap<Shape, Entry> entries;
+	private ArrayList<Entry> entryList;
+	private Node root;
+	private boolean transformationTracking;
+
+	// Shapes without bounds, which are not stored in the octree
+	private Node unbounded;
+
+	private OctreeSceneManagerItr iterator;
+	private boolean frustumCulling;
+	private int culledNodes;
+
+	/**
+	 * Iterates over the shapes in the octree nodes that intersect the view
+	 * frustum.
+	 */
+	private class OctreeSceneManagerItr implements SceneManagerIterator {
+
+		// The nodes that remain to be visited, and the frustum planes that
+		// intersect their parents
+		private Node[] stack;
+		private int[] stackMasks;
+		private int top;
+
+		// The node whose shapes are being returned, the planes that
+		// intersect it, and the index of the next shape
+		private Node node;
+		private int mask;
+		private int index;
+
+		private Shape nextShape;
+
+		private final RenderItem item;
+		private final Matrix4f worldToClip;
+		private final FrustumPlanes planes;
+		private final BoundingSphere sphere;
+
+		public OctreeSceneManagerItr()
+		{
+			stack = new Node[64];
+			stackMasks = new int[64];
+			item = new RenderItem(null, null);
+			worldToClip = new Matrix4f();
+			planes = new FrustumPlanes();
+			sphere = new BoundingSphere();
+		}
+
+		/**
+		 * Start a new iteration.
+		 */
+		void reset()
+		{
+			for(int i=0; i<top; i++)
+				stack[i] = null;
+			top = 0;
+			culledNodes = 0;
+
+			int rootMask = 0;
+			if(frustumCulling)
+			{
+				worldToClip.mul(frustum.getProjectionMatrix(), camera.getCameraMatrix());
+				planes.set(worldToClip);
+				rootMask = FrustumPlanes.ALL_PLANES;
+			}
+			if(root != null)
+				push(root, rootMask);
+
+			node = unbounded;
+			mask = 0;
+			index = 0;
+			advance();
+		}
+
+		public boolean hasNext()
+		{
+			return nextShape != null;
+		}
+
+		public RenderItem next()
+		{
+			if(nextShape == null)
+				throw new NoSuchElementException();
+			item.set(nextShape, nextShape.getTransformation());
+			advance();
+			return item;
+		}
+
+		/**
+		 * Find the next shape that is not culled.
+		 */
+		private void advance()
+		{
+			while(true)
+			{
+				while(index < node.count)
+				{
+					Entry e = node.entries[index++];
+					if(mask != 0)
+					{
+						int result = planes.classify(e.sphere, mask, e.shape.cullPlane);
+						if(result < 0)
+						{
+							e.shape.cullPlane = -1-result;
+							culledNodes++;
+							continue;
+						}
+					}
+					nextShape = e.shape;
+					return;
+				}
+
+				// Find the next node that is not culled
+				node = null;
+				while(node == null)
+				{
+					if(top == 0)
+					{
+						nextShape = null;
+						return;
+					}
+					top--;
+					Node n = stack[top];
+					int m = stackMasks[top];
+					stack[top] = null;
+
+					if(m != 0)
+					{
+						sphere.center.set(n.x, n.y, n.z);
+						sphere.radius = LOOSE_RADIUS*n.size;
+						m = planes.classify(sphere, m, n.cullPlane);
+						if(m < 0)
+						{
+							n.cullPlane = -1-m;
+							culledNodes++;
+							continue;
+						}
+					}
+
+					if(n.children != null)
+					{
+						for(int i=0; i<8; i++)
+							if(n.children[i] != null)
+								push(n.children[i], m);
+					}
+					node = n;
+					mask = m;
+					index = 0;
+				}
+			}
+		}
+
+		private void push(Node n, int m)
+		{
+			if(top == stack.length)
+			{
+				Node[] s = new Node[2*top];
+				System.arraycopy(stack, 0, s, 0, top);
+				stack = s;
+				int[] sm = new int[2*top];
+				System.arraycopy(stackMasks, 0, sm, 0, top);
+				stackMasks = sm;
+			}
+			stack[top] = n;
+			stackMasks[top] = m;
+			top++;
+		}
+	}
+
+	public OctreeSceneManager()
+	{
+		lights = new LinkedList<Light>();
+		camera = new Camera();
+		frustum = new Frustum();
+		entries = new HashMap<Shape, Entry>();
+		entryList = new ArrayList<Entry>();
+		transformationTracking = true;
+		unbounded = new Node(0, 0, 0, 0);
+		iterator = new OctreeSceneManagerItr();
+		frustumCulling = true;
+	}
+
+	public Camera getCamera()
+	{
+		return camera;
+	}
+
+	public Frustum getFrustum()
+	{
+		return frustum;
+	}
+
+	/**
+	 * Add a shape to the scene. Adding a shape that is already in the scene
+	 * has the same effect as {@link #moveShape}.
+	 */
+	public void addShape(Shape shape)
+	{
+		Entry e = entries.get(shape);
+		if(e != null)
+		{
+			move(e);
+			return;
+		}
+		e = new Entry(shape);
+		entries.put(shape, e);
+		addToList(e);
+		add(e, locate(e.sphere));
+	}
+
+	/**
+	 * Add many shapes at once. This is faster than adding the shapes one by
+	 * one when the scene is empty, since the size of the root is chosen
+	 * such that it contains all shapes, and it does not need to grow.
+	 */
+	public void addShapes(Collection<? extends Shape> shapes)
+	{
+		Entry[] newEntries = new Entry[shapes.size()];
+		int n = 0;
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		float maxRadius = 0;
+		for(Shape shape : shapes)
+		{
+			if(entries.containsKey(shape))
+			{
+				move(entries.get(shape));
+				continue;
+			}
+			Entry e = new Entry(shape);
+			entries.put(shape, e);
+			addToList(e);
+			newEntries[n++] = e;
+
+			BoundingSphere s = e.sphere;
+			if(s.isEmpty()) continue;
+			minX = Math.min(minX, s.center.x);
+			minY = Math.min(minY, s.center.y);
+			minZ = Math.min(minZ, s.center.z);
+			maxX = Math.max(maxX, s.center.x);
+			maxY = Math.max(maxY, s.center.y);
+			maxZ = Math.max(maxZ, s.center.z);
+			maxRadius = Math.max(maxRadius, s.radius);
+		}
+
+		if((root == null || root.total == 0) && minX <= maxX)
+		{
+			float size = Math.max(Math.max(maxX-minX, maxY-minY), maxZ-minZ)/2;
+			root = new Node((minX+maxX)/2, (minY+maxY)/2, (minZ+maxZ)/2, Math.max(Math.max(size, maxRadius), Float.MIN_NORMAL));
+		}
+		for(int i=0; i<n; i++)
+			add(newEntries[i], locate(newEntries[i].sphere));
+	}
+
+	/**
+	 * Remove a shape from the scene.
+	 *
+	 * @return true if the shape was in the scene
+	 */
+	public boolean removeShape(Shape shape)
+	{
+		Entry e = entries.remove(shape);
+		if(e == null) return false;
+		removeFromList(e);
+		remove(e.node, e.index);
+		return true;
+	}
+
+	/**
+	 * Update the place of a shape in the octree after its transformation,
+	 * its vertex data, or its instances have been changed.
+	 *
+	 * @return true if the shape is in the scene
+	 */
+	public boolean moveShape(Shape shape)
+	{
+		Entry e = entries.get(shape);
+		if(e == null) return false;
+		move(e);
+		return true;
+	}
+
+	/**
+	 * @return the number of shapes in the scene
+	 */
+	public int getShapeCount()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Enable or disable the tracking of the transformations of the shapes,
+	 * which is enabled by default. Without it, {@link #moveShape} needs to 
+	 * be called whenever the transformation of a shape changes.
+	 */
+	public void setTransformationTracking(boolean transformationTracking)
+	{
+		this.transformationTracking = transformationTracking;
+	}
+
+	public boolean isTransformationTracking()
+	{
+		return transformationTracking;
+	}
+
+	/**
+	 * Enable or disable frustum culling, which is enabled by default.
+	 */
+	public void setFrustumCulling(boolean frustumCulling)
+	{
+		this.frustumCulling = frustumCulling;
+	}
+
+	public boolean isFrustumCulling()
+	{
+		return frustumCulling;
+	}
+
+	/**
+	 * Return the number of octree nodes and shapes that were culled by the
+	 * last iteration. A culled node counts as one, the nodes and shapes in
+	 * its subtree are not visited.
+	 */
+	public int getCulledNodes()
+	{
+		return culledNodes;
+	}
+
+	public void addLight(Light light)
+	{
+		lights.add(light);
+	}
+
+	public Iterator<Light> lightIterator()
+	{
+		return lights.iterator();
+	}
+
+	/**
+	 * Start an iteration over the visible shapes. This returns the same
+	 * iterator every time.
+	 */
+	public SceneManagerIterator iterator()
+	{
+		if(transformationTracking)
+			moveChangedShapes();
+		iterator.reset();
+		return iterator;
+	}
+
+	/**
+	 * Move the shapes whose transformation has changed since their node was
+	 * chosen. The list is traversed by index, which does not allocate an
+	 * iterator.
+	 */
+	private void moveChangedShapes()
+	{
+		for(int i=0; i<entryList.size(); i++)
+		{
+			Entry e = entryList.get(i);
+			if(e.isMoved())
+				move(e);
+		}
+	}
+
+	private void addToList(Entry e)
+	{
+		e.listIndex = entryList.size();
+		entryList.add(e);
+	}
+
+	/**
+	 * Remove an entry from the list of all entries by moving the last entry
+	 * into its place.
+	 */
+	private void removeFromList(Entry e)
+	{
+		Entry last = entryList.remove(entryList.size()-1);
+		if(last != e)
+		{
+			entryList.set(e.listIndex, last);
+			last.listIndex = e.listIndex;
+		}
+	}
+
+	private void move(Entry e)
+	{
+		e.updateSphere();
+		Node node = locate(e.sphere);
+		if(node == e.node) return;
+
+		// Add the shape to its new node first, so that the new node is not
+		// removed as empty
+		Node oldNode = e.node;
+		int oldIndex = e.index;
+		add(e, node);
+		remove(oldNode, oldIndex);
+	}
+
+	/**
+	 * Find the node for a bounding sphere, and make it if necessary. The
+	 * root is grown until it contains the sphere.
+	 */
+	private Node locate(BoundingSphere s)
+	{
+		if(s.isEmpty())
+			return unbounded;
+
+		float x = s.center.x, y = s.center.y, z = s.center.z;
+		if(root == null)
+			root = new Node(x, y, z, Math.max(s.radius, 1.f));
+
+		while(!root.contains(x, y, z) || root.size < s.radius)
+		{
+			// Make a root with twice the size that has the old root as a
+			// child, extending towards the sphere
+			float h = root.size;
+			Node r = new Node(root.x + (x >= root.x ? h : -h), root.y + (y >= root.y ? h : -h),
+					root.z + (z >= root.z ? h : -h), 2*h);
+			int i = r.octant(root.x, root.y, root.z);
+			r.children = new Node[8];
+			r.children[i] = root;
+			r.total = root.total;
+			root.parent = r;
+			root.octant = i;
+			root = r;
+		}
+
+		Node node = root;
+		for(int depth=0; depth<MAX_DEPTH && s.radius <= node.size/2; depth++)
+			node = node.child(node.octant(x, y, z));
+		return node;
+	}
+
+	private void add(Entry e, Node node)
+	{
+		if(node.entries == null)
+			node.entries = new Entry[4];
+		else if(node.count == node.entries.length)
+		{
+			Entry[] a = new Entry[2*node.count];
+			System.arraycopy(node.entries, 0, a, 0, node.count);
+			node.entries = a;
+		}
+		e.node = node;
+		e.index = node.count;
+		node.entries[node.count++] = e;
+		for(Node n = node; n != null; n = n.parent)
+			n.total++;
+	}
+
+	/**
+	 * Remove the entry at an index from a node, and remove nodes that have
+	 * become empty from the octree.
+	 */
+	private void remove(Node node, int index)
+	{
+		// Move the last entry of the node into the gap
+		node.count--;
+		if(index < node.count)
+		{
+			Entry last = node.entries[node.count];
+			node.entries[index] = last;
+			last.index = index;
+		}
+		node.entries[node.count] = null;
+
+		Node empty = null;
+		for(Node n = node; n != null; n = n.parent)
+		{
+			n.total--;
+			if(n.total == 0)
+				empty = n;
+		}
+		if(empty != null && empty.parent != null)
+		{
+			empty.parent.children[empty.octant] = null;
+			empty.parent = null;
+		}
+	}
+}
@@ -16,6 +16,17 @@ public class RenderItem {
 		this.t = t;
 	}
 	
+	/**
+	 * Replace the shape and the transformation. Scene managers use this to
+	 * return the same render item for several shapes, so the renderer must
+	 * not keep a render item after requesting the next one.
+	 */
+	public void set(Shape shape, Matrix4f t)
+	{
+		this.shape = shape;
+		this.t = t;
+	}
+	
 	public Shape getShape()
 	{
 		return shape;
@@ -12,6 +12,10 @@ public class Shape {
 	private VertexData vertexData;
 	private Matrix4f t;
 	
+	// The frustum plane that culled the shape the last time, used by the
+	// scene manager
+	int cullPlane;
+	
 	/**
 	 * Make a shape from {@link VertexData}. A shape contains the geometry 
 	 * (the {@link VertexData}), material properties for shading (a 
@@ -34,6 +38,18 @@ public class Shape {
 		return vertexData;
 	}
 	
+	/**
+	 * Return a sphere that contains the shape in object coordinates, i.e.,
+	 * before its transformation is applied. Scene managers use it to cull
+	 * shapes outside of the view frustum.
+	 * 
+	 * @return the bounding sphere, or null if the shape has no vertex data
+	 */
+	public BoundingSphere getBoundingSphere()
+	{
+		return vertexData != null ? vertexData.getBoundingSphere() : null;
+	}
+	
 	public void setTransformation(Matrix4f t)
 	{
 		this.t = t;
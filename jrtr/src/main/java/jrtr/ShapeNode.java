@@ -4,6 +4,9 @@ public class ShapeNode implements SceneNode {
 	
 	private Shape shape;
 	
+	// The frustum plane that culled the node the last time
+	int cullPlane;
+	
 	public ShapeNode(Shape shape)
 	{
 		this.shape = shape;
@@ -1,25 +1,34 @@
 package jrtr;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.ListIterator;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import javax.vecmath.*;
 
 /**
- * A simple scene manager that stores objects and lights in linked lists.
+ * A simple scene manager that stores objects in an array list and lights
+ * in a linked list. The iterator skips shapes whose bounding spheres are 
+ * outside of the view frustum, see {@link #setFrustumCulling}.
  */
 public class SimpleSceneManager implements SceneManagerInterface {
 
-	private LinkedList<Shape> shapes;
+	private ArrayList<Shape> shapes;
 	private LinkedList<Light> lights;
 	private Camera camera;
 	private Frustum frustum;
+	private boolean frustumCulling;
+	private int culledNodes;
+	private SimpleSceneManagerItr iterator;
 	
 	public SimpleSceneManager()
 	{
-		shapes = new LinkedList<Shape>();
+		shapes = new ArrayList<Shape>();
 		lights = new LinkedList<Light>();
 		camera = new Camera();
 		frustum = new Frustum();
+		frustumCulling = true;
+		iterator = new SimpleSceneManagerItr();
 	}
 	
 	public Camera getCamera()
@@ -42,6 +51,27 @@ public class SimpleSceneManager implements SceneManagerInterface {
 		return shapes.remove(shape);
 	}
 	
+	/**
+	 * Enable or disable frustum culling, which is enabled by default.
+	 */
+	public void setFrustumCulling(boolean frustumCulling)
+	{
+		this.frustumCulling = frustumCulling;
+	}
+	
+	public boolean isFrustumCulling()
+	{
+		return frustumCulling;
+	}
+	
+	/**
+	 * Return the number of shapes that were culled by the last iteration.
+	 */
+	public int getCulledNodes()
+	{
+		return culledNodes;
+	}
+	
 	public void addLight(Light light)
 	{
 		lights.add(light);
@@ -52,34 +82,101 @@ public class SimpleSceneManager implements SceneManagerInterface {
 		return lights.iterator();
 	}
 	
+	/**
+	 * Start an iteration over the shapes. This returns the same iterator
+	 * every time, which restarts at the first shape.
+	 */
 	public SceneManagerIterator iterator()
 	{
-		return new SimpleSceneManagerItr(this);
+		iterator.reset();
+		return iterator;
 	}
 	
+	/**
+	 * Iterates over the shapes by index. The iterator and the 
+	 * {@link RenderItem} it returns are reused, like in 
+	 * {@link GraphSceneManager}, so there can only be one iteration at a 
+	 * time, and a render item is only valid until the next call of 
+	 * {@link #next}. No memory is allocated per frame.
+	 */
 	private class SimpleSceneManagerItr implements SceneManagerIterator {
 		
-		public SimpleSceneManagerItr(SimpleSceneManager sceneManager)
+		public SimpleSceneManagerItr()
 		{
-			itr = sceneManager.shapes.listIterator(0);
+			item = new RenderItem(null, null);
+			worldToClip = new Matrix4f();
+			planes = new FrustumPlanes();
+			sphere = new BoundingSphere();
+		}
+		
+		/**
+		 * Start a new iteration at the first shape.
+		 */
+		void reset()
+		{
+			index = 0;
+			culledNodes = 0;
+			if(frustumCulling)
+			{
+				worldToClip.mul(frustum.getProjectionMatrix(), camera.getCameraMatrix());
+				planes.set(worldToClip);
+			}
+			advance();
 		}
 		
 		public boolean hasNext()
 		{
-			return itr.hasNext();
+			return nextShape != null;
 		}
 		
 		public RenderItem next()
 		{
-			Shape shape = itr.next();
+			if(nextShape == null)
+				throw new NoSuchElementException();
+			Shape shape = nextShape;
+			advance();
 			// Here the transformation in the RenderItem is simply the 
 			// transformation matrix of the shape. More sophisticated 
 			// scene managers will set the transformation for the 
 			// RenderItem differently.
-			return new RenderItem(shape, shape.getTransformation());
+			item.set(shape, shape.getTransformation());
+			return item;
+		}
+		
+		/**
+		 * Find the next shape that is not culled.
+		 */
+		private void advance()
+		{
+			while(index < shapes.size())
+			{
+				nextShape = shapes.get(index++);
+				if(!isCulled(nextShape)) return;
+			}
+			nextShape = null;
 		}
 		
-		ListIterator<Shape> itr;
+		private boolean isCulled(Shape shape)
+		{
+			if(!frustumCulling || shape.getBoundingSphere() == null) return false;
+			
+			sphere.transform(shape.getBoundingSphere(), shape.getTransformation());
+			int result = planes.classify(sphere, FrustumPlanes.ALL_PLANES, shape.cullPlane);
+			if(result >= 0) return false;
+			shape.cullPlane = -1-result;
+			culledNodes++;
+			return true;
+		}
+		
+		private int index;
+		private Shape nextShape;
+		private final RenderItem item;
+		
+		// The frustum planes in world coordinates, and a sphere for 
+		// intermediate results
+		private final Matrix4f worldToClip;
+		private final FrustumPlanes planes;
+		private final BoundingSphere sphere;
 	}
 	
 }
@@ -2,33 +2,256 @@ package jrtr;
 
 import javax.vecmath.Matrix4f;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 
 /*
  * Implements a group node that stores a transformation. The transformation 
- * applies to the whole subtree, at whose root the node sits.
+ * applies to the whole subtree, at whose root the node sits. The children
+ * are stored in an ArrayList, which the scene manager can traverse by index
+ * without allocating iterators. Children are added and removed with 
+ * addChild and removeChild. A group may be the child of several groups, and
+ * it keeps track of all of them.
+ * 
+ * The node caches its world transformation, i.e., the product of the 
+ * transformations of all groups from the root down to this node. The cache
+ * is updated by the scene manager only if the node is dirty or the world 
+ * transformation of its parent has changed, so static subtrees do not cost
+ * any matrix multiplications. The transformation can only be changed with
+ * setTransformation, which marks the node dirty. getTransformation and
+ * getWorldTransformation copy the matrices into a matrix of the caller, so
+ * that the group cannot be modified through them.
+ * 
+ * For frustum culling, the node also stores a bounding sphere of its 
+ * subtree in its local coordinates, i.e., the coordinates of its children.
+ * When the transformation or the children of a group change, the bounds of
+ * all its ancestors are marked dirty, and the scene manager recomputes them
+ * before the next traversal. Call invalidate after changing the vertices of
+ * a shape or the instances of an {@link InstancedShape} in the subtree.
  */
 public class TransformGroup implements SceneNode {
 
-	public Matrix4f transformation;
-	public Collection<SceneNode> children;
+	private final Matrix4f transformation;
+	private final ArrayList<SceneNode> children;
+	private final ArrayList<TransformGroup> parents;
+	
+	// The cached world transformation, and the parent world transformation
+	// it was computed from
+	private final Matrix4f worldTransformation;
+	private Matrix4f cachedParent;
+	private boolean dirty;
+	
+	// Bounding sphere of the subtree in local coordinates, and the plane 
+	// that culled the group the last time
+	private final BoundingSphere bounds;
+	private boolean boundsDirty;
+	int cullPlane;
 	
 	public TransformGroup()
 	{
 		transformation = new Matrix4f();
 		transformation.setIdentity();
-		children = new LinkedList<SceneNode>();
+		children = new ArrayList<SceneNode>();
+		parents = new ArrayList<TransformGroup>();
+		worldTransformation = new Matrix4f();
+		dirty = true;
+		bounds = new BoundingSphere();
+		boundsDirty = true;
+	}
+	
+	/**
+	 * Copy the transformation of the group into a matrix. Modifying the 
+	 * matrix does not change the group, use {@link #setTransformation} 
+	 * instead.
+	 * 
+	 * @param out the matrix that receives the transformation
+	 * @return out
+	 */
+	public Matrix4f getTransformation(Matrix4f out)
+	{
+		out.set(transformation);
+		return out;
+	}
+	
+	/**
+	 * Set the transformation of the group, and mark its world 
+	 * transformation and the world transformations of its subtree as dirty.
+	 */
+	public void setTransformation(Matrix4f t)
+	{
+		transformation.set(t);
+		dirty = true;
+		invalidateParentBounds(this);
+	}
+	
+	/**
+	 * Add a child to the group, and mark the bounds of the group and of its
+	 * ancestors as dirty.
+	 */
+	public void addChild(SceneNode child)
+	{
+		children.add(child);
+		if(child instanceof TransformGroup)
+			((TransformGroup)child).parents.add(this);
+		invalidateBounds(this);
 	}
 	
-	public Matrix4f getTransformation()
+	/**
+	 * Remove a child from the group, and mark the bounds of the group and of
+	 * its ancestors as dirty.
+	 * 
+	 * @return true if the node was a child of the group
+	 */
+	public boolean removeChild(SceneNode child)
 	{
-		return transformation;
+		if(!children.remove(child))
+			return false;
+		if(child instanceof TransformGroup)
+			((TransformGroup)child).parents.remove(this);
+		invalidateBounds(this);
+		return true;
 	}
 	
+	/**
+	 * Mark the world transformation and the bounds as dirty after the 
+	 * subtree has been changed.
+	 */
+	public void invalidate()
+	{
+		dirty = true;
+		invalidateBounds(this);
+	}
+	
+	/**
+	 * Mark the bounds of a group and of all its ancestors as dirty. If a 
+	 * group is already dirty, its ancestors are as well.
+	 */
+	private static void invalidateBounds(TransformGroup g)
+	{
+		if(g.boundsDirty) return;
+		g.boundsDirty = true;
+		invalidateParentBounds(g);
+	}
+	
+	/**
+	 * Mark the bounds of all ancestors of a group as dirty.
+	 */
+	private static void invalidateParentBounds(TransformGroup g)
+	{
+		for(int i=0; i<g.parents.size(); i++)
+			invalidateBounds(g.parents.get(i));
+	}
+	
+	/**
+	 * Mark the world transformation as dirty, so that it is recomputed and
+	 * the world transformations of the subtree are updated the next time
+	 * the group is visited.
+	 */
+	void invalidateWorldTransformation()
+	{
+		dirty = true;
+	}
+	
+	/**
+	 * Return the bounding sphere of the subtree in local coordinates, as
+	 * computed by {@link #updateBounds}.
+	 */
+	BoundingSphere getBounds()
+	{
+		return bounds;
+	}
+	
+	/**
+	 * Recompute the bounds of the group if they are dirty, and the dirty
+	 * bounds in its subtree. The bounds of shapes are given by
+	 * {@link Shape#getBoundingSphere}.
+	 * 
+	 * @param scratch a sphere that is used for intermediate results
+	 */
+	void updateBounds(BoundingSphere scratch)
+	{
+		if(!boundsDirty) return;
+		
+		bounds.radius = -1.f;
+		for(SceneNode node : children)
+		{
+			if(node instanceof ShapeNode)
+			{
+				Shape shape = ((ShapeNode)node).getShape();
+				if(shape != null && shape.getBoundingSphere() != null)
+					bounds.add(shape.getBoundingSphere());
+			}
+			else if(node instanceof TransformGroup)
+			{
+				TransformGroup child = (TransformGroup)node;
+				child.updateBounds(scratch);
+				scratch.transform(child.bounds, child.transformation);
+				bounds.add(scratch);
+			}
+		}
+		boundsDirty = false;
+	}
+	
+	/**
+	 * Copy the world transformation computed by the last traversal of the
+	 * scene graph into a matrix.
+	 * 
+	 * @param out the matrix that receives the world transformation
+	 * @return out
+	 */
+	public Matrix4f getWorldTransformation(Matrix4f out)
+	{
+		out.set(worldTransformation);
+		return out;
+	}
+	
+	/**
+	 * Return the cached world transformation itself, for the scene manager,
+	 * which must not modify it.
+	 */
+	Matrix4f worldTransformation()
+	{
+		return worldTransformation;
+	}
+	
+	/**
+	 * Update the cached world transformation if the group is dirty, or if
+	 * the world transformation of the parent has changed. If the group has
+	 * several parents, the cache is recomputed whenever it is reached 
+	 * through a different parent.
+	 * 
+	 * @param parent the world transformation of the parent
+	 * @param parentChanged true if the world transformation of the parent 
+	 * 		has been recomputed in this traversal
+	 * @return true if the world transformation has been recomputed
+	 */
+	boolean updateWorldTransformation(Matrix4f parent, boolean parentChanged)
+	{
+		if(!dirty && !parentChanged && parent == cachedParent)
+			return false;
+		
+		worldTransformation.mul(parent, transformation);
+		cachedParent = parent;
+		dirty = false;
+		return true;
+	}
+	
+	/**
+	 * Return an iterator over the children, which does not support removal.
+	 */
 	public Iterator<SceneNode> getChildrenIterator()
 	{
-		return children.iterator();
+		return Collections.unmodifiableList(children).iterator();
+	}
+	
+	/**
+	 * Return the children for the traversal by the scene manager, which must
+	 * not modify the list.
+	 */
+	List<SceneNode> getChildren()
+	{
+		return children;
 	}
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package jrtr;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 
 import jrtr.glrenderer.GLVertexData;
@@ -13,6 +14,12 @@ import jrtr.swrenderer.SWVertexData;
  * It is an abstract class, use the implementation {@link GLVertexData} or
  * {@link SWVertexData} which should be instantiated via {@link
  * RenderContext#makeVertexData(int)}.
+ * <p>
+ * By default, renderers read each vertex element from its own array (in
+ * OpenGL, its own vertex buffer object). With {@link #setInterleaved}, the
+ * elements are packed into a single array instead, which stores all 
+ * attributes of a vertex next to each other. The array is built when it is
+ * first requested by a renderer.
  */
 public abstract class VertexData {
 
@@ -33,6 +40,30 @@ public abstract class VertexData {
 	 */
 	private LinkedList<VertexElement> vertexElements;
 
+	/**
+	 * The element that renderers use for each semantic, indexed by the
+	 * ordinal of the semantic.
+	 */
+	private VertexElement[] elementsBySemantic;
+
+	/**
+	 * The bounding sphere of the positions, computed when it is first
+	 * requested.
+	 */
+	private BoundingSphere boundingSphere;
+
+	/**
+	 * Whether the renderers use the interleaved layout, the order of the 
+	 * attributes in it, and the interleaved data, which is built when it is
+	 * first requested. The offsets of the attributes are indexed by the 
+	 * ordinal of their semantic.
+	 */
+	private boolean interleaved;
+	private Semantic[] attributeOrder;
+	private float[] interleavedData;
+	private int stride;
+	private int[] offsets;
+
 	/**
 	 * Vertex data consists of a list of vertex elements, and an index array.
 	 * The index array contains indices into the vertex data. The indices
@@ -47,6 +78,9 @@ public abstract class VertexData {
 		this.n = n;
 		indices = null;
 		vertexElements = new LinkedList<VertexElement>();
+		elementsBySemantic = new VertexElement[Semantic.values().length];
+		interleaved = false;
+		attributeOrder = Semantic.values();
 	}
 
 	public int getNumberOfVertices() {
@@ -66,9 +100,19 @@ public abstract class VertexData {
 			// before the vertex is rendered).
 			if (s == Semantic.POSITION) {
 				vertexElements.addLast(vertexElement);
+				boundingSphere = null;
 			} else {
 				vertexElements.addFirst(vertexElement);
 			}
+
+			// Renderers that walk the list use the last element of each
+			// semantic, which is the newest position, and the oldest element
+			// of the other semantics
+			if (s == Semantic.POSITION || elementsBySemantic[s.ordinal()] == null) {
+				elementsBySemantic[s.ordinal()] = vertexElement;
+			}
+			interleavedData = null;
+			layoutChanged();
 		} else {
 			System.err
 					.println("Array of '"
@@ -87,10 +131,159 @@ public abstract class VertexData {
 		return vertexElements;
 	}
 
+	/**
+	 * Get the element with a semantic without walking the element list. If
+	 * there are several elements with the semantic, this is the last of 
+	 * them in the list.
+	 * 
+	 * @return the element, or null if there is no element with the semantic
+	 */
+	public VertexElement getElement(Semantic s) {
+		return elementsBySemantic[s.ordinal()];
+	}
+
 	public int[] getIndices() {
 		return indices;
 	}
 
+	/**
+	 * Return a sphere that contains all vertex positions. The sphere is
+	 * computed when this is first called, so if the position data is
+	 * modified afterwards, {@link #updateBoundingSphere()} needs to be
+	 * called.
+	 * 
+	 * @return the bounding sphere in object coordinates, which is empty if
+	 *         there are no positions
+	 */
+	public BoundingSphere getBoundingSphere() {
+		if (boundingSphere == null) {
+			updateBoundingSphere();
+		}
+		return boundingSphere;
+	}
+
+	/**
+	 * Recompute the bounding sphere from the current position data.
+	 */
+	public void updateBoundingSphere() {
+		boundingSphere = new BoundingSphere();
+		for (VertexElement e : vertexElements) {
+			if (e.semantic == Semantic.POSITION) {
+				boundingSphere = new BoundingSphere(e.data, e.nComponents);
+			}
+		}
+	}
+
+	/**
+	 * Choose whether renderers read the vertex attributes from one 
+	 * interleaved array or from separate arrays.
+	 */
+	public void setInterleaved(boolean interleaved) {
+		if (this.interleaved != interleaved) {
+			this.interleaved = interleaved;
+			layoutChanged();
+		}
+	}
+
+	public boolean isInterleaved() {
+		return interleaved;
+	}
+
+	/**
+	 * Set the order of the attributes of a vertex in the interleaved array.
+	 * Elements whose semantic is not listed follow in the order of the
+	 * element list. The default order is POSITION, NORMAL, TEXCOORD, COLOR.
+	 */
+	public void setAttributeOrder(Semantic... order) {
+		attributeOrder = order.clone();
+		interleavedData = null;
+		if (interleaved) {
+			layoutChanged();
+		}
+	}
+
+	/**
+	 * Called when the layout that renderers read the vertex attributes from
+	 * changes, i.e., when an element is added, when the interleaved layout
+	 * is switched on or off, or when the order of the attributes in it
+	 * changes. Implementations that keep
+	 * a copy of the vertex data in that layout override this to rebuild it.
+	 */
+	protected void layoutChanged() {
+	}
+
+	/**
+	 * Return the vertex attributes packed into a single array. Vertex i
+	 * starts at index i*{@link #getStride()}, and the attribute with 
+	 * semantic s is stored at {@link #getOffset}(s) from there. The array is
+	 * built when this is first called, so if the vertex elements are 
+	 * modified afterwards, {@link #updateInterleavedData()} needs to be
+	 * called.
+	 */
+	public float[] getInterleavedData() {
+		if (interleavedData == null) {
+			updateInterleavedData();
+		}
+		return interleavedData;
+	}
+
+	/**
+	 * @return the number of floats per vertex in the interleaved array
+	 */
+	public int getStride() {
+		getInterleavedData();
+		return stride;
+	}
+
+	/**
+	 * @return the offset of an attribute within a vertex in the interleaved
+	 *         array, or -1 if there is no element with the semantic
+	 */
+	public int getOffset(Semantic s) {
+		getInterleavedData();
+		return offsets[s.ordinal()];
+	}
+
+	/**
+	 * Rebuild the interleaved array from the current vertex elements. For
+	 * each semantic, it stores the element returned by {@link #getElement},
+	 * so that both layouts provide the same attributes. Other elements with
+	 * the same semantic are left out.
+	 */
+	public void updateInterleavedData() {
+		// Find the elements in the attribute order, followed by the others
+		LinkedList<VertexElement> ordered = new LinkedList<VertexElement>();
+		for (Semantic s : attributeOrder) {
+			VertexElement e = getElement(s);
+			if (e != null && !ordered.contains(e)) {
+				ordered.add(e);
+			}
+		}
+		for (VertexElement e : vertexElements) {
+			if (e == getElement(e.semantic) && !ordered.contains(e)) {
+				ordered.add(e);
+			}
+		}
+
+		offsets = new int[Semantic.values().length];
+		Arrays.fill(offsets, -1);
+		stride = 0;
+		for (VertexElement e : ordered) {
+			offsets[e.semantic.ordinal()] = stride;
+			stride += e.nComponents;
+		}
+
+		interleavedData = new float[n * stride];
+		int offset = 0;
+		for (VertexElement e : ordered) {
+			for (int i = 0; i < n; i++) {
+				System.arraycopy(e.data, i * e.nComponents, interleavedData,
+						i * stride + offset, e.nComponents);
+			}
+			offset += e.nComponents;
+		}
+	}
+
 	/**
 	 * A vertex element is an array of floats that stores vertex attributes,
 	 * like positions, normals, or texture coordinates. The element stores the
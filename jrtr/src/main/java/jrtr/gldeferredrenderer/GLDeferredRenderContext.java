@@ -261,7 +261,7 @@ public class GLDeferredRenderContext implements RenderContext{
 		gl.glBindTexture(GL3.GL_TEXTURE_2D, textureId);
 		gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
 		gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR);
-		gl.glUniform1i(gl.glGetUniformLocation(shader.programId(), sampler2DName), textureLocation);
+		gl.glUniform1i(shader.getUniformLocation(sampler2DName), textureLocation);
 	}
 	
 	/**
@@ -394,10 +394,10 @@ public class GLDeferredRenderContext implements RenderContext{
 			gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vertexData.getVAO().getNextVBO());
 			int attribIndex = -1;
 			switch (e.getSemantic()) {
-			case POSITION: attribIndex = gl.glGetAttribLocation(activeShaderID, "position"); break;
-			case NORMAL: attribIndex = gl.glGetAttribLocation(activeShaderID, "normal"); break;
-			case COLOR: attribIndex = gl.glGetAttribLocation(activeShaderID, "color"); break;
-			case TEXCOORD: attribIndex = gl.glGetAttribLocation(activeShaderID, "texcoord"); break;
+			case POSITION: attribIndex = prevUsedShader.getAttribLocation("position"); break;
+			case NORMAL: attribIndex = prevUsedShader.getAttribLocation("normal"); break;
+			case COLOR: attribIndex = prevUsedShader.getAttribLocation("color"); break;
+			case TEXCOORD: attribIndex = prevUsedShader.getAttribLocation("texcoord"); break;
 			}
 
 			gl.glVertexAttribPointer(attribIndex, dim, GL3.GL_FLOAT, false, 0, 0);
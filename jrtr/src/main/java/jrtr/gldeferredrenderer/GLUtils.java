@@ -54,8 +54,8 @@ public class GLUtils {
 	
 	public static void passPointLightToShader(GL3 gl, GLShader shader, Light l){
 		transformVector(l.position, 1f);
-		gl.glUniform3f(gl.glGetUniformLocation(shader.programId(), "lightPosition"), temp3.x, temp3.y, temp3.z);
-		gl.glUniform3f(gl.glGetUniformLocation(shader.programId(), "lightAttenuation"), l.attenuation.x, l.attenuation.y, l.attenuation.z);
+		gl.glUniform3f(shader.getUniformLocation("lightPosition"), temp3.x, temp3.y, temp3.z);
+		gl.glUniform3f(shader.getUniformLocation("lightAttenuation"), l.attenuation.x, l.attenuation.y, l.attenuation.z);
 	}
 	
 	public static void passPointLightsToShader(GL3 gl, GLShader shader, ArrayList<Light> lights){
@@ -67,9 +67,9 @@ public class GLUtils {
 			vector3ToFloatArray(temp3, lightPos, i);
 			vector3ToFloatArray(l.attenuation, lightAtt, i);
 		}
-		gl.glUniform3fv(gl.glGetUniformLocation(shader.programId(), "positionLightColor"), lights.size(), lightColor, 0);
-		gl.glUniform3fv(gl.glGetUniformLocation(shader.programId(), "positionLightPosition"), lights.size(), lightPos, 0);
-		gl.glUniform3fv(gl.glGetUniformLocation(shader.programId(), "positionLightAttenuation"), lights.size(), lightAtt, 0);
+		gl.glUniform3fv(shader.getUniformLocation("positionLightColor"), lights.size(), lightColor, 0);
+		gl.glUniform3fv(shader.getUniformLocation("positionLightPosition"), lights.size(), lightPos, 0);
+		gl.glUniform3fv(shader.getUniformLocation("positionLightAttenuation"), lights.size(), lightAtt, 0);
 	}
 	
 	public static void passDirectionalLightsToShader(GL3 gl, GLShader shader, ArrayList<Light> lights){
@@ -80,8 +80,8 @@ public class GLUtils {
 			transformVector(l.direction, 0f);
 			vector3ToFloatArray(temp3, lightDirection, i);
 		}
-		gl.glUniform3fv(gl.glGetUniformLocation(shader.programId(), "dirLightColor"), lights.size(), lightColor, 0);
-		gl.glUniform3fv(gl.glGetUniformLocation(shader.programId(), "dirLightDirection"), lights.size(), lightDirection, 0);
+		gl.glUniform3fv(shader.getUniformLocation("dirLightColor"), lights.size(), lightColor, 0);
+		gl.glUniform3fv(shader.getUniformLocation("dirLightDirection"), lights.size(), lightDirection, 0);
 	}
 	
 	public static void passSpotLightsToShader(GL3 gl, GLShader shader, ArrayList<Light> lights){
@@ -96,48 +96,48 @@ public class GLUtils {
 			vector3ToFloatArray(l.attenuation, lightAtt, i);
 			lightAngle[i] = l.spotCutoff/2f;
 		}
-		gl.glUniform3fv(gl.glGetUniformLocation(shader.programId(), "spotLightPosition"), lights.size(), lightPos, 0);
-		gl.glUniform3fv(gl.glGetUniformLocation(shader.programId(), "spotLightDirection"), lights.size(), lightDirection, 0);
-		gl.glUniform3fv(gl.glGetUniformLocation(shader.programId(), "spotLightColor"), lights.size(), lightColor, 0);
-		gl.glUniform3fv(gl.glGetUniformLocation(shader.programId(), "spotLightAttenuation"), lights.size(), lightAtt, 0);
-		gl.glUniform1fv(gl.glGetUniformLocation(shader.programId(), "spotLightAngle"), lights.size(), lightAngle, 0);
+		gl.glUniform3fv(shader.getUniformLocation("spotLightPosition"), lights.size(), lightPos, 0);
+		gl.glUniform3fv(shader.getUniformLocation("spotLightDirection"), lights.size(), lightDirection, 0);
+		gl.glUniform3fv(shader.getUniformLocation("spotLightColor"), lights.size(), lightColor, 0);
+		gl.glUniform3fv(shader.getUniformLocation("spotLightAttenuation"), lights.size(), lightAtt, 0);
+		gl.glUniform1fv(shader.getUniformLocation("spotLightAngle"), lights.size(), lightAngle, 0);
 	}
 	
 	public static void setUniform1i(GLDeferredRenderContext context, GLShader shader, String name, int value){
 		context.useShader(shader);
-		gl.glUniform1i(gl.glGetUniformLocation(shader.programId(), name), value);
+		gl.glUniform1i(shader.getUniformLocation(name), value);
 	}
 	
 	public static void setUniform1f(GLDeferredRenderContext context, GLShader shader, String name, float value){
 		context.useShader(shader);
-		gl.glUniform1f(gl.glGetUniformLocation(shader.programId(), name), value);
+		gl.glUniform1f(shader.getUniformLocation(name), value);
 	}
 	
 	public static void setUniform2f(GLDeferredRenderContext context, GLShader shader, String name, float value1, float value2){
 		context.useShader(shader);
-		gl.glUniform2f(gl.glGetUniformLocation(shader.programId(), name), value1, value2);
+		gl.glUniform2f(shader.getUniformLocation(name), value1, value2);
 	}
 	
 	public static void setUniform3f(GLDeferredRenderContext context, GLShader shader, String name, float value1, float value2, float value3){
 		context.useShader(shader);
-		gl.glUniform3f(gl.glGetUniformLocation(shader.programId(), name), value1, value2, value3);
+		gl.glUniform3f(shader.getUniformLocation(name), value1, value2, value3);
 	}
 	
 	public static void setUniform3f(GLDeferredRenderContext context, GLShader shader, String name, Vector3f vec){
 		context.useShader(shader);
-		gl.glUniform3f(gl.glGetUniformLocation(shader.programId(), name), vec.x, vec.y, vec.z);
+		gl.glUniform3f(shader.getUniformLocation(name), vec.x, vec.y, vec.z);
 	}
 	
 	public static void setUniform4f(GLDeferredRenderContext context, GLShader shader, String name, float value1, float value2, float value3, float value4){
 		context.useShader(shader);
-		gl.glUniform4f(gl.glGetUniformLocation(shader.programId(), name), value1, value2, value3, value4);
+		gl.glUniform4f(shader.getUniformLocation(name), value1, value2, value3, value4);
 	}
 
 	private static final float[] arrayMatrix = new float[16];
 	public static void setUniformMatrix4f(GLDeferredRenderContext context, GLShader shader, String name, Matrix4f m){
 		context.useShader(shader);
 		Matrix4fUtils.transformationToFloat16(m, arrayMatrix);		
-		gl.glUniformMatrix4fv(gl.glGetUniformLocation(shader.programId(), name), 1, false, arrayMatrix, 0);
+		gl.glUniformMatrix4fv(shader.getUniformLocation(name), 1, false, arrayMatrix, 0);
 	}
 	
 	private static void vector3ToFloatArray(Vector3f v, float[] target, int startingIndex){
@@ -173,7 +173,7 @@ public class GLUtils {
 	}
 	
 	public static void setUniformf(GLShader shader, String name, int type, FloatBuffer buffer, int size){
-		setUniformf(gl.glGetUniformLocation(shader.programId(), name), type, buffer, size);
+		setUniformf(shader.getUniformLocation(name), type, buffer, size);
 	}
 	
 	public static void setUniformf(int location, int type, FloatBuffer buffer, int size){
@@ -0,0 +1,214 @@
+package jrtr.glrenderer;
+
+import static org.lwjgl.opengl.GL45.*;
+
+import jrtr.VertexData;
+
+/**
+ * Stores the vertex data of many shapes in a few large buffers, so that
+ * they can be drawn with one multi-draw call. All vertex data in a mesh
+ * buffer has the same format, i.e., the same number of components for each
+ * {@link VertexData.Semantic}. Each semantic is stored in its own buffer,
+ * and the indices of all vertex data in one index buffer. The vertex array
+ * object of the mesh buffer stores the complete vertex format, using the
+ * fixed attribute locations of {@link GLShader}. Only OpenGL 3.3 calls are
+ * used, without the direct state access of OpenGL 4.5.
+ * <p>
+ * Vertex data is appended to the end of the buffers, and its position in
+ * the buffers is stored in the {@link GLVertexData}. The indices are not
+ * changed, OpenGL adds the base vertex of the vertex data when drawing.
+ * When the buffers are full, they are replaced by buffers of twice the
+ * size. Vertex data is never removed, so the buffers are meant for static
+ * geometry.
+ */
+class GLMeshBuffer {
+
+	private final int[] components;
+	private final int vao;
+	private final int[] vbos;
+	private int indexBuffer;
+	private int vertexCount, vertexCapacity, indexCount, indexCapacity;
+	private final int index;
+	private int meshCount;
+
+	/**
+	 * Make an empty mesh buffer for a vertex format.
+	 *
+	 * @param format
+	 *            the format, see {@link #getFormat}
+	 * @param index
+	 *            a number below 256 that identifies the mesh buffer, used
+	 *            for the identifiers of its vertex data
+	 */
+	GLMeshBuffer(int format, int index) {
+		if (index < 0 || index > 0xFF)
+			throw new IllegalArgumentException("Too many mesh buffers: " + index);
+		this.index = index;
+		VertexData.Semantic[] semantics = VertexData.Semantic.values();
+		components = new int[semantics.length];
+		vbos = new int[semantics.length];
+		vertexCapacity = 1024;
+		indexCapacity = 4096;
+
+		for (int s = 0; s < semantics.length; s++) {
+			components[s] = (format >> (4 * s)) & 0xF;
+			if (components[s] != 0)
+				vbos[s] = makeBuffer(4L * components[s] * vertexCapacity);
+		}
+		indexBuffer = makeBuffer(4L * indexCapacity);
+
+		vao = glGenVertexArrays();
+		glBindVertexArray(vao);
+		for (int s = 0; s < semantics.length; s++) {
+			if (components[s] != 0)
+				glEnableVertexAttribArray(GLShader.getAttribLocation(semantics[s]));
+		}
+		connectBuffers();
+		glBindVertexArray(0);
+	}
+
+	/**
+	 * Connect the buffer of each semantic to its fixed attribute location,
+	 * and the index buffer to the bound vertex array object. This is done
+	 * again when the buffers have been replaced by larger ones.
+	 */
+	private void connectBuffers() {
+		VertexData.Semantic[] semantics = VertexData.Semantic.values();
+		for (int s = 0; s < semantics.length; s++) {
+			if (vbos[s] == 0)
+				continue;
+			glBindBuffer(GL_ARRAY_BUFFER, vbos[s]);
+			glVertexAttribPointer(GLShader.getAttribLocation(semantics[s]),
+					components[s], GL_FLOAT, false, 0, 0);
+		}
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+	}
+
+	/**
+	 * Get the format of vertex data. The format stores the number of
+	 * components of each semantic in four bits, and 0 for semantics that
+	 * the vertex data does not have. If the vertex data has several 
+	 * elements with the same semantic, the one returned by 
+	 * {@link VertexData#getElement} is used, like in {@link #add}.
+	 */
+	static int getFormat(VertexData data) {
+		int format = 0;
+		for (VertexData.Semantic s : VertexData.Semantic.values()) {
+			VertexData.VertexElement e = data.getElement(s);
+			if (e != null)
+				format |= (e.getNumberOfComponents() & 0xF) << (4 * s.ordinal());
+		}
+		return format;
+	}
+
+	/**
+	 * Append vertex data to the buffers, and store its base vertex and
+	 * first index in the vertex data. The vertex data needs to have the
+	 * format of this mesh buffer. The identifier of the vertex data (see
+	 * {@link GLVertexData#getMeshId}) is made from the index of the mesh 
+	 * buffer in the upper 8 bits and the number of vertex data in it in the
+	 * lower 24 bits, so it is unique for up to 2^24 vertex data per mesh 
+	 * buffer.
+	 * The data is uploaded through the copy write target, so that the 
+	 * bound vertex array object is not changed, unless the buffers are 
+	 * replaced. Afterwards, no vertex array object is bound.
+	 */
+	void add(GLVertexData data) {
+		int n = data.getNumberOfVertices();
+		int[] indices = data.getIndices();
+
+		boolean replaced = false;
+		if (vertexCount + n > vertexCapacity) {
+			int capacity = vertexCapacity;
+			while (vertexCount + n > capacity)
+				capacity *= 2;
+			for (int s = 0; s < vbos.length; s++) {
+				if (vbos[s] != 0)
+					vbos[s] = grow(vbos[s], 4L * components[s] * vertexCount, 4L * components[s] * capacity);
+			}
+			vertexCapacity = capacity;
+			replaced = true;
+		}
+		if (indexCount + indices.length > indexCapacity) {
+			int capacity = indexCapacity;
+			while (indexCount + indices.length > capacity)
+				capacity *= 2;
+			indexBuffer = grow(indexBuffer, 4L * indexCount, 4L * capacity);
+			indexCapacity = capacity;
+			replaced = true;
+		}
+		if (replaced) {
+			glBindVertexArray(vao);
+			connectBuffers();
+		}
+		glBindVertexArray(0);
+
+		for (int s = 0; s < vbos.length; s++) {
+			VertexData.VertexElement e = data.getElement(VertexData.Semantic.values()[s]);
+			if (e == null)
+				continue;
+			glBindBuffer(GL_COPY_WRITE_BUFFER, vbos[s]);
+			glBufferSubData(GL_COPY_WRITE_BUFFER, 4L * components[s] * vertexCount, e.getData());
+		}
+		glBindBuffer(GL_COPY_WRITE_BUFFER, indexBuffer);
+		glBufferSubData(GL_COPY_WRITE_BUFFER, 4L * indexCount, indices);
+		glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+		if (meshCount > 0xFFFFFF)
+			throw new IllegalStateException("Too many vertex data in a mesh buffer");
+		data.setMeshBuffer(this, vertexCount, indexCount, (index << 24) | meshCount++);
+		vertexCount += n;
+		indexCount += indices.length;
+	}
+
+	/**
+	 * Replace a buffer by a larger one, and copy the used part of its
+	 * contents.
+	 *
+	 * @return the new buffer
+	 */
+	private static int grow(int buffer, long used, long size) {
+		int b = makeBuffer(size);
+		if (used > 0) {
+			glBindBuffer(GL_COPY_READ_BUFFER, buffer);
+			glBindBuffer(GL_COPY_WRITE_BUFFER, b);
+			glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0, used);
+			glBindBuffer(GL_COPY_READ_BUFFER, 0);
+			glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+		}
+		glDeleteBuffers(buffer);
+		return b;
+	}
+
+	/**
+	 * Make a buffer of a size in bytes, with undefined contents.
+	 *
+	 * @return the new buffer
+	 */
+	private static int makeBuffer(long size) {
+		int b = glGenBuffers();
+		glBindBuffer(GL_COPY_WRITE_BUFFER, b);
+		glBufferData(GL_COPY_WRITE_BUFFER, size, GL_STATIC_DRAW);
+		glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+		return b;
+	}
+
+	/**
+	 * Get the OpenGL name of the vertex array object.
+	 */
+	int getVAO() {
+		return vao;
+	}
+
+	/**
+	 * Delete the buffers and the vertex array object.
+	 */
+	void dispose() {
+		for (int s = 0; s < vbos.length; s++)
+			if (vbos[s] != 0)
+				glDeleteBuffers(vbos[s]);
+		glDeleteBuffers(indexBuffer);
+		glDeleteVertexArrays(vao);
+	}
+}
@@ -1,9 +1,16 @@
 package jrtr.glrenderer;
 
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.*;
 import static org.lwjgl.opengl.GL45.*;
 import javax.vecmath.*;
 
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import jrtr.InstancedShape;
 import jrtr.Light;
 import jrtr.Material;
 import jrtr.RenderContext;
@@ -11,28 +18,131 @@ import jrtr.RenderItem;
 import jrtr.SceneManagerInterface;
 import jrtr.SceneManagerIterator;
 import jrtr.Shader;
+import jrtr.Shape;
 import jrtr.Texture;
 import jrtr.VertexData;
 
 /**
  * Implements a {@link RenderContext} (a renderer) using OpenGL
  * version 3 (or later). 
+ * <p>
+ * The shapes of a frame are first collected in a render queue and sorted
+ * by shader, texture, and vertex array object, so that shapes with the same
+ * state are drawn one after another. Shader switches, texture binds and
+ * vertex array binds are only issued when the state actually changes.
+ * The number of state changes of the last frame can be queried with 
+ * {@link #getShaderSwitches}, {@link #getTextureBinds} and 
+ * {@link #getVertexArrayBinds}.
+ * <p>
+ * After sorting, consecutive shapes with the same vertex data and material
+ * are drawn with a single instanced draw call. Their transformations are
+ * written into a per-instance vertex buffer, which is uploaded once per 
+ * frame. The instances of an {@link InstancedShape} are drawn with one
+ * instanced draw call as well. This requires a shader that reads the
+ * per-instance attributes (see {@link GLShader}). The default shader has
+ * an instanced variant, shapes with other shaders are drawn one instance 
+ * at a time. The number of draw calls of the last frame can be queried 
+ * with {@link #getDrawCalls}. Instancing needs OpenGL 3.3 or the 
+ * ARB_instanced_arrays extension, and is disabled without it.
+ * <p>
+ * With multi-draw indirect enabled (see {@link #setMultiDrawIndirect}), 
+ * the vertex data of all shapes is stored in a few shared buffers, one 
+ * {@link GLMeshBuffer} for each vertex format. Each instance group becomes
+ * a draw command in an indirect buffer, and consecutive groups with the
+ * same shader, texture and mesh buffer are drawn with one call of 
+ * glMultiDrawElementsIndirect. The base instance of each command points
+ * to the transformations of the group in the instance buffer, so the 
+ * shaders are the same as for instanced drawing. Multi-draw indirect needs
+ * OpenGL 4.3, or the ARB_multi_draw_indirect and ARB_base_instance 
+ * extensions.
  */
 public class GLRenderContext implements RenderContext {
 
 	private SceneManagerInterface sceneManager;
 
 	/**
-	 * The default shader for this render context.
+	 * The OpenGL version and extensions of the context.
+	 */
+	private final GLCapabilities capabilities;
+
+	/**
+	 * The default shader for this render context, and its variant for 
+	 * instanced drawing.
 	 */
-	private GLShader defaultShader;
+	private GLShader defaultShader, instancedShader;
 
 	/**
-	 * The id of the currently active shader. Call useShader(Shader) and 
-	 * useDefaultShader() to switch between shaders.
+	 * The currently active shader and its id.
 	 */
+	private GLShader activeShader;
 	private int activeShaderID;
 
+	/**
+	 * The shader for shapes whose material has no shader. Call
+	 * useShader(Shader) and useDefaultShader() to switch between shaders.
+	 */
+	private GLShader baseShader;
+
+	/**
+	 * The shapes of the current frame, and whether they are sorted to 
+	 * reduce state changes.
+	 */
+	private GLRenderQueue renderQueue;
+	private boolean stateSorting;
+
+	/**
+	 * The currently bound texture and vertex array object, and whether the
+	 * lights have been passed to the active shader. Used to skip redundant
+	 * state changes within a frame.
+	 */
+	private int boundTextureID, boundVAO;
+	private boolean shaderUniformsSet;
+
+	/**
+	 * Whether the context supports instancing and whether shapes are drawn
+	 * with instanced draw calls, the buffer for the per-instance 
+	 * attributes, and its contents for the current frame. Each instance is
+	 * stored like in {@link InstancedShape}.
+	 */
+	private final boolean instancingSupported;
+	private boolean instancing;
+	private int instanceBuffer;
+	private FloatBuffer instanceData;
+
+	/**
+	 * The first shapes of the instance groups in the render queue, and the
+	 * index of the first instance of each group in the instance buffer.
+	 */
+	private int[] groupStarts, groupOffsets;
+	private int groupCount;
+
+	/**
+	 * Whether the context supports multi-draw indirect and whether shapes
+	 * are drawn with multi-draw indirect calls, the shared mesh buffers for
+	 * each vertex format, and the buffer for the draw commands and its 
+	 * contents for the current frame. The buffer is made when multi-draw 
+	 * indirect is first enabled.
+	 */
+	private final boolean multiDrawIndirectSupported;
+	private boolean multiDrawIndirect;
+	private HashMap<Integer, GLMeshBuffer> meshBuffers;
+	private int indirectBuffer;
+	private IntBuffer commands;
+
+	/**
+	 * The number of integers of a draw command: the number of indices, 
+	 * the number of instances, the first index, the base vertex, and the 
+	 * base instance.
+	 */
+	private static final int COMMAND_SIZE = 5;
+
+	private final Matrix4f identity, instanceTransformation;
+
+	/**
+	 * The number of state changes and draw calls in the last frame.
+	 */
+	private int shaderSwitches, textureBinds, vertexArrayBinds, drawCalls;
+
 	/**
 	 * This constructor is called by {@link GLRenderPanel}.
 	 */
@@ -42,10 +152,42 @@ public class GLRenderContext implements RenderContext {
 		glEnable(GL_DEPTH_TEST);
 		glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
 
+		renderQueue = new GLRenderQueue();
+		stateSorting = true;
+
+		// Make the per-instance buffer. It needs to hold at least one 
+		// instance from the start, since vertex array objects refer to it.
+		// Only OpenGL 3.3 calls are used, so that instancing works without 
+		// the direct state access of OpenGL 4.5.
+		capabilities = GL.getCapabilities();
+		instancingSupported = capabilities.OpenGL33 || capabilities.GL_ARB_instanced_arrays;
+		instancing = instancingSupported;
+		instanceBuffer = glGenBuffers();
+		instanceData = BufferUtils.createFloatBuffer(256 * InstancedShape.FLOATS_PER_INSTANCE);
+		glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+		glBufferData(GL_ARRAY_BUFFER, 4L * instanceData.capacity(), GL_STREAM_DRAW);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+		groupStarts = new int[256];
+		groupOffsets = new int[256];
+		identity = new Matrix4f();
+		identity.setIdentity();
+		instanceTransformation = new Matrix4f();
+
+		// Nothing is stored in mesh buffers until multi-draw indirect is
+		// enabled. The base instance of the draw commands points to the 
+		// instances, so instancing needs to be supported as well.
+		multiDrawIndirectSupported = instancingSupported
+				&& (capabilities.OpenGL43 || (capabilities.GL_ARB_multi_draw_indirect 
+				&& capabilities.GL_ARB_base_instance));
+		multiDrawIndirect = false;
+		meshBuffers = new HashMap<Integer, GLMeshBuffer>();
+
 		// Load and use the default shader
 		defaultShader = (GLShader) makeShader();
+		instancedShader = (GLShader) makeShader();
 		try {
 			defaultShader.load("../jrtr/shaders/default.vert", "../jrtr/shaders/default.frag");
+			instancedShader.load("../jrtr/shaders/instanced.vert", "../jrtr/shaders/default.frag");
 		} catch (Exception e) {
 			System.out.print("Problem with shader:\n");
 			System.out.print(e.getMessage());
@@ -72,15 +214,29 @@ public class GLRenderContext implements RenderContext {
 		// Do some processing at the beginning of the frame
 		beginFrame();
 
-		// Traverse scene manager and draw everything
+		// Traverse scene manager and collect everything in the render queue
+		renderQueue.clear();
+		Matrix4f camera = sceneManager.getCamera().getCameraMatrix();
 		SceneManagerIterator iterator = sceneManager.iterator();
 		while (iterator.hasNext()) {
 			RenderItem r = iterator.next();
 			if (r.getShape() != null) {
-				draw(r);
+				enqueue(r, camera);
 			}
 		}
 
+		// Draw everything, ordered by state if sorting is enabled
+		if (stateSorting)
+			renderQueue.sort();
+		if (multiDrawIndirect)
+			drawIndirect();
+		else if (instancing)
+			drawInstanced();
+		else {
+			for (int i = 0; i < renderQueue.size(); i++)
+				draw(renderQueue.getShape(i), renderQueue.getTransformation(i));
+		}
+
 		// Do some processing at the end of the frame
 		endFrame();
 	}
@@ -90,8 +246,19 @@ public class GLRenderContext implements RenderContext {
 	 * drawing starts.
 	 */
 	private void beginFrame() {
-		// Set the active shader as default for this frame
+		// Set the shader chosen with useShader as default for this frame
+		activeShader = baseShader;
+		activeShaderID = baseShader.programId();
 		glUseProgram(activeShaderID);
+		shaderUniformsSet = false;
+
+		// Nothing is bound yet in this frame
+		boundTextureID = 0;
+		boundVAO = 0;
+		shaderSwitches = 0;
+		textureBinds = 0;
+		vertexArrayBinds = 0;
+		drawCalls = 0;
 		
 		// Clear color and depth buffer for the new frame
 		glClear(GL_COLOR_BUFFER_BIT);
@@ -103,109 +270,409 @@ public class GLRenderContext implements RenderContext {
 	 * is complete.
 	 */
 	private void endFrame() {
+		// Bind the default vertex array
+		glBindVertexArray(0);
+
 		// Flush the OpenGL pipeline
 		glFlush();
 	}
 
 	/**
-	 * The main rendering method.
+	 * Add a render item to the render queue. Its sort key is made from the
+	 * state that is needed to draw it and its distance from the camera.
 	 * 
 	 * @param renderItem
 	 *            the object that needs to be drawn
+	 * @param camera
+	 *            the camera matrix
 	 */
-	private void draw(RenderItem renderItem) {
-		
-		// Set the material of the shape to be rendered
-		setMaterial(renderItem.getShape().getMaterial());
-		
-		// Get reference to the vertex data of the render item to be rendered
-		GLVertexData vertexData = (GLVertexData) renderItem.getShape()
-				.getVertexData();
+	private void enqueue(RenderItem renderItem, Matrix4f camera) {
+
+		Shape shape = renderItem.getShape();
+		GLVertexData vertexData = (GLVertexData) shape.getVertexData();
 
 		// Check if the vertex data has been uploaded to OpenGL via a
 		// "vertex array object" (VAO). The VAO will store the vertex data
 		// in several "vertex buffer objects" (VBOs) on the GPU. We do this
 		// only once for performance reasons. Once the data is in the VBOs
 		// asscociated with a VAO, it is stored on the GPU and rendered more 
-		// efficiently.
-		if (vertexData.getVAO() == null) {
-			initArrayBuffer(vertexData);
+		// efficiently. For multi-draw indirect rendering, the vertex data is
+		// stored in a shared mesh buffer instead.
+		if (multiDrawIndirect) {
+			if (vertexData.getMeshBuffer() == null)
+				addToMeshBuffer(vertexData);
+		} else {
+			if (vertexData.getVAO() == null || vertexData.isVAOStale())
+				initArrayBuffer(vertexData);
 		}
 
-		// Set modelview and projection matrices in shader (has to be done in
-		// every step, since they usually have changed)
-		setTransformation(renderItem.getT());
+		// The shader and texture that setMaterial will use
+		Material m = shape.getMaterial();
+		int shaderID = baseShader.programId();
+		int textureID = 0;
+		if (m != null && m.shader != null) {
+			shaderID = ((GLShader) m.shader).programId();
+			if (m.diffuseMap != null)
+				textureID = ((GLTexture) m.diffuseMap).getId();
+		}
+
+		// Distance of the origin of the shape from the camera
+		Matrix4f t = renderItem.getT();
+		float depth = -(camera.m20 * t.m03 + camera.m21 * t.m13 + camera.m22
+				* t.m23 + camera.m23);
+
+		long key = multiDrawIndirect
+				? GLRenderQueue.makeMeshKey(shaderID, textureID, vertexData.getMeshId())
+				: GLRenderQueue.makeKey(shaderID, textureID, vertexData.getVAO().getId(), depth);
+		renderQueue.add(shape, t, key);
+	}
 
-		// Bind the VAO of this shape. This activates the VBOs that we 
-		// associated with the VAO. We already loaded the vertex data into the
-		// VBOs on the GPU, so we do not have to send them again.
-		vertexData.getVAO().bind();
+	/**
+	 * The main rendering method. The instances of an {@link InstancedShape}
+	 * are drawn one at a time. Their colors are passed in the uniform 
+	 * "shapeColor" if the shader has it, like the default shader, and the 
+	 * uniform is white for other shapes.
+	 * 
+	 * @param shape
+	 *            the object that needs to be drawn
+	 * @param transformation
+	 *            the transformation of the object
+	 */
+	private void draw(Shape shape, Matrix4f transformation) {
 		
-		// Try to connect the vertex buffers to the corresponding variables 
-		// in the current vertex shader.
-		// Note: This is not part of the vertex array object, because the active
-		// shader may have changed since the vertex array object was initialized. 
-		// We need to make sure the vertex buffers are connected to the right
-		// variables in the shader
-		ListIterator<VertexData.VertexElement> itr = vertexData.getElements()
-				.listIterator(0);
-		vertexData.getVAO().rewindVBO();
-		while (itr.hasNext()) {
-			VertexData.VertexElement e = itr.next();
-			int dim = e.getNumberOfComponents();
-
-			// Bind the next vertex buffer object
-			glBindBuffer(GL_ARRAY_BUFFER, vertexData.getVAO().getNextVBO());
-
-			// Tell OpenGL which "in" variable in the vertex shader corresponds
-			// to the current vertex buffer object.
-			// We use our own convention to name the variables, i.e.,
-			// "position", "normal", "color", "texcoord", or others if
-			// necessary.
-			int attribIndex = -1;
-			switch (e.getSemantic()) {
-			case POSITION:
-				attribIndex = glGetAttribLocation(activeShaderID, "position");
-				break;
-			case NORMAL:
-				attribIndex = glGetAttribLocation(activeShaderID, "normal");
-				break;
-			case COLOR:
-				attribIndex = glGetAttribLocation(activeShaderID, "color");
-				break;
-			case TEXCOORD:
-				attribIndex = glGetAttribLocation(activeShaderID, "texcoord");
-				break;
+		// Set the material of the shape to be rendered
+		setMaterial(shape.getMaterial(), false);
+		
+		// Get reference to the vertex data of the shape to be rendered. In
+		// multi-draw indirect mode, it may only be stored in a mesh buffer.
+		GLVertexData vertexData = (GLVertexData) shape.getVertexData();
+		if (vertexData.getVAO() == null || vertexData.isVAOStale())
+			initArrayBuffer(vertexData);
+		bindVAO(vertexData.getVAO().getId());
+
+		// Set modelview and projection matrices in shader (has to be done in
+		// every step, since they usually have changed), and render the 
+		// vertex buffer objects
+		int shapeColor = activeShader.getUniformLocation("shapeColor");
+		if (shape instanceof InstancedShape) {
+			InstancedShape instancedShape = (InstancedShape) shape;
+			float[] d = instancedShape.getInstanceData();
+			for (int i = 0; i < instancedShape.getInstanceCount(); i++) {
+				instancedShape.getInstanceTransformation(i, instanceTransformation);
+				instanceTransformation.mul(transformation, instanceTransformation);
+				setTransformation(instanceTransformation);
+				if (shapeColor != -1) {
+					int o = i * InstancedShape.FLOATS_PER_INSTANCE + 16;
+					glUniform4f(shapeColor, d[o], d[o + 1], d[o + 2], d[o + 3]);
+				}
+				glDrawElements(GL_TRIANGLES, vertexData.getIndices().length,
+						GL_UNSIGNED_INT, 0);
+				drawCalls++;
 			}
+		} else {
+			if (shapeColor != -1)
+				glUniform4f(shapeColor, 1.f, 1.f, 1.f, 1.f);
+			setTransformation(transformation);
+			glDrawElements(GL_TRIANGLES, vertexData.getIndices().length,
+					GL_UNSIGNED_INT, 0);
+			drawCalls++;
+		}
 
-			glVertexAttribPointer(attribIndex, dim, GL_FLOAT, false, 0,
-					0);
-			glEnableVertexAttribArray(attribIndex);
+		cleanMaterial(shape.getMaterial());
+	}
+
+	/**
+	 * Draw the render queue with instanced draw calls. Each group of 
+	 * instances (see {@link #collectInstances}) is drawn with one call.
+	 */
+	private void drawInstanced() {
+		collectInstances(false);
+
+		int n = renderQueue.size();
+		for (int g = 0; g < groupCount; g++) {
+			int start = groupStarts[g];
+			int end = g + 1 < groupCount ? groupStarts[g + 1] : n;
+			Shape shape = renderQueue.getShape(start);
+			Material m = shape.getMaterial();
+			if (getInstancedShader(getShader(m)) == null) {
+				// The shader can not draw instances
+				for (int j = start; j < end; j++)
+					draw(renderQueue.getShape(j), renderQueue.getTransformation(j));
+				continue;
+			}
+
+			int count = getInstanceCount(g);
+			if (count == 0)
+				continue;
+
+			setMaterial(m, true);
+			GLVertexData vertexData = (GLVertexData) shape.getVertexData();
+			bindVAO(vertexData.getVAO().getId());
+
+			// The instances of a group contain the complete transformations of
+			// its shapes, the instances of an instanced shape are transformed 
+			// by the transformation of the shape
+			setTransformation(shape instanceof InstancedShape ? renderQueue
+					.getTransformation(start) : identity);
+			pointInstanceAttributes(4L * InstancedShape.FLOATS_PER_INSTANCE
+					* groupOffsets[g]);
+			glDrawElementsInstanced(GL_TRIANGLES, vertexData.getIndices().length,
+					GL_UNSIGNED_INT, 0, count);
+			drawCalls++;
+
+			cleanMaterial(m);
 		}
+	}
 
-		// Render the vertex buffer objects
-		glDrawElements(GL_TRIANGLES, renderItem.getShape()
-				.getVertexData().getIndices().length, GL_UNSIGNED_INT, 0);
+	/**
+	 * Draw the render queue with multi-draw indirect calls. A draw command
+	 * is written for each group of instances (see {@link #collectInstances}),
+	 * and the commands are uploaded at once. Then consecutive groups with
+	 * the same shader, texture, and mesh buffer are drawn with one call.
+	 */
+	private void drawIndirect() {
+		collectInstances(true);
 
-		// We are done with this shape, bind the default vertex array
-		glBindVertexArray(0);
+		int n = renderQueue.size();
+		commands.clear();
+		if (commands.capacity() < groupCount * COMMAND_SIZE)
+			commands = BufferUtils.createIntBuffer(2 * groupCount * COMMAND_SIZE);
+		for (int g = 0; g < groupCount; g++) {
+			GLVertexData vertexData = (GLVertexData) renderQueue.getShape(
+					groupStarts[g]).getVertexData();
+			commands.put(vertexData.getIndices().length);
+			commands.put(getInstanceCount(g));
+			commands.put(vertexData.getFirstIndex());
+			commands.put(vertexData.getBaseVertex());
+			commands.put(groupOffsets[g]);
+		}
+		commands.flip();
+		glBindBuffer(GL_DRAW_INDIRECT_BUFFER, indirectBuffer);
+		if (groupCount > 0)
+			glBufferData(GL_DRAW_INDIRECT_BUFFER, commands, GL_STREAM_DRAW);
 
-		cleanMaterial(renderItem.getShape().getMaterial());
+		for (int g = 0; g < groupCount;) {
+			Shape shape = renderQueue.getShape(groupStarts[g]);
+			Material m = shape.getMaterial();
+			GLShader shader = getInstancedShader(getShader(m));
+			if (shader == null) {
+				// The shader can not draw instances
+				int end = g + 1 < groupCount ? groupStarts[g + 1] : n;
+				for (int j = groupStarts[g]; j < end; j++)
+					draw(renderQueue.getShape(j), renderQueue.getTransformation(j));
+				g++;
+				continue;
+			}
+
+			// Find the groups that can be drawn with the same state
+			GLMeshBuffer meshBuffer = ((GLVertexData) shape.getVertexData()).getMeshBuffer();
+			Texture texture = getTexture(m);
+			int end = g + 1;
+			while (end < groupCount) {
+				Shape s = renderQueue.getShape(groupStarts[end]);
+				if (((GLVertexData) s.getVertexData()).getMeshBuffer() != meshBuffer
+						|| getInstancedShader(getShader(s.getMaterial())) != shader
+						|| getTexture(s.getMaterial()) != texture)
+					break;
+				end++;
+			}
+
+			// The instances contain the complete transformations, and the 
+			// base instance of each command points to its instances
+			setMaterial(m, true);
+			bindVAO(meshBuffer.getVAO());
+			setTransformation(identity);
+			glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT,
+					4L * COMMAND_SIZE * g, end - g, 0);
+			drawCalls++;
+			cleanMaterial(m);
+			g = end;
+		}
+
+		glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+	}
+
+	/**
+	 * Split the sorted render queue into groups of consecutive shapes with 
+	 * the same vertex data and material, and write the instances of all 
+	 * groups into the instance buffer. Each {@link InstancedShape} is a 
+	 * group of its own. The buffer is uploaded at the end.
+	 * 
+	 * @param transformInstances
+	 *            whether to apply the transformations of instanced shapes
+	 *            to their instances
+	 */
+	private void collectInstances(boolean transformInstances) {
+		instanceData.clear();
+		groupCount = 0;
+		int instanceCount = 0;
+		int n = renderQueue.size();
+		for (int i = 0; i < n;) {
+			Shape shape = renderQueue.getShape(i);
+			int end = i + 1;
+			if (groupCount == groupStarts.length) {
+				groupStarts = Arrays.copyOf(groupStarts, 2 * groupCount);
+				groupOffsets = Arrays.copyOf(groupOffsets, 2 * groupCount);
+			}
+			groupStarts[groupCount] = i;
+			groupOffsets[groupCount] = instanceCount;
+			groupCount++;
+
+			if (shape instanceof InstancedShape) {
+				InstancedShape instancedShape = (InstancedShape) shape;
+				int count = instancedShape.getInstanceCount();
+				float[] data = instancedShape.getInstanceData();
+				reserveInstanceData(count * InstancedShape.FLOATS_PER_INSTANCE);
+				if (transformInstances) {
+					Matrix4f t = renderQueue.getTransformation(i);
+					for (int k = 0; k < count; k++) {
+						instancedShape.getInstanceTransformation(k, instanceTransformation);
+						instanceTransformation.mul(t, instanceTransformation);
+						int o = k * InstancedShape.FLOATS_PER_INSTANCE + 16;
+						putInstance(instanceTransformation, data[o], data[o + 1],
+								data[o + 2], data[o + 3]);
+					}
+				} else
+					instanceData.put(data, 0, count * InstancedShape.FLOATS_PER_INSTANCE);
+				instanceCount += count;
+			} else {
+				while (end < n && isSameInstance(shape, renderQueue.getShape(end)))
+					end++;
+				reserveInstanceData((end - i) * InstancedShape.FLOATS_PER_INSTANCE);
+				for (int j = i; j < end; j++)
+					putInstance(renderQueue.getTransformation(j), 1.f, 1.f, 1.f, 1.f);
+				instanceCount += end - i;
+			}
+			i = end;
+		}
+
+		// Upload the instances of all groups at once. This replaces the 
+		// storage of the buffer, so that OpenGL does not need to wait until
+		// the previous frame is done with it.
+		instanceData.flip();
+		if (instanceData.limit() > 0) {
+			glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+			glBufferData(GL_ARRAY_BUFFER, instanceData, GL_STREAM_DRAW);
+			glBindBuffer(GL_ARRAY_BUFFER, 0);
+		}
+	}
+
+	/**
+	 * @return the number of instances of a group
+	 */
+	private int getInstanceCount(int g) {
+		Shape shape = renderQueue.getShape(groupStarts[g]);
+		if (shape instanceof InstancedShape)
+			return ((InstancedShape) shape).getInstanceCount();
+		int end = g + 1 < groupCount ? groupStarts[g + 1] : renderQueue.size();
+		return end - groupStarts[g];
 	}
-	
+
+	/**
+	 * @return the shader that setMaterial activates for a material
+	 */
+	private GLShader getShader(Material m) {
+		return (m != null && m.shader != null) ? (GLShader) m.shader : baseShader;
+	}
+
+	/**
+	 * @return the texture that setMaterial binds for a material, or null
+	 */
+	private static Texture getTexture(Material m) {
+		return (m != null && m.shader != null) ? m.diffuseMap : null;
+	}
+
+	/**
+	 * Store vertex data in the mesh buffer for its format, and make the 
+	 * mesh buffer if there is none yet.
+	 */
+	private void addToMeshBuffer(GLVertexData data) {
+		int format = GLMeshBuffer.getFormat(data);
+		GLMeshBuffer meshBuffer = meshBuffers.get(format);
+		if (meshBuffer == null) {
+			meshBuffer = new GLMeshBuffer(format, meshBuffers.size());
+			glBindVertexArray(meshBuffer.getVAO());
+			connectInstanceAttributes();
+			glBindVertexArray(0);
+			meshBuffers.put(format, meshBuffer);
+		}
+		meshBuffer.add(data);
+		boundVAO = 0;
+	}
+
+	/**
+	 * @return true if shape b can be drawn as an instance of shape a
+	 */
+	private static boolean isSameInstance(Shape a, Shape b) {
+		return !(b instanceof InstancedShape)
+				&& a.getVertexData() == b.getVertexData()
+				&& a.getMaterial() == b.getMaterial();
+	}
+
+	/**
+	 * Make sure that the instance data has room for a number of floats.
+	 */
+	private void reserveInstanceData(int floats) {
+		if (instanceData.remaining() >= floats)
+			return;
+		int capacity = instanceData.capacity();
+		while (capacity - instanceData.position() < floats)
+			capacity *= 2;
+		FloatBuffer b = BufferUtils.createFloatBuffer(capacity);
+		instanceData.flip();
+		b.put(instanceData);
+		instanceData = b;
+	}
+
+	/**
+	 * Add an instance with a transformation and a color to the instance 
+	 * data. The transformation is stored in column major order.
+	 */
+	private void putInstance(Matrix4f t, float r, float g, float b, float a) {
+		instanceData.put(t.m00).put(t.m10).put(t.m20).put(t.m30);
+		instanceData.put(t.m01).put(t.m11).put(t.m21).put(t.m31);
+		instanceData.put(t.m02).put(t.m12).put(t.m22).put(t.m32);
+		instanceData.put(t.m03).put(t.m13).put(t.m23).put(t.m33);
+		instanceData.put(r).put(g).put(b).put(a);
+	}
+
+	/**
+	 * Bind a VAO, unless it is still bound from the previous shape. This 
+	 * activates the VBOs that we associated with the VAO, and their 
+	 * connection to the vertex attributes of the shader. We already loaded
+	 * the vertex data into the VBOs on the GPU, so we do not have to send 
+	 * them again.
+	 */
+	private void bindVAO(int vao) {
+		if (vao != boundVAO) {
+			glBindVertexArray(vao);
+			boundVAO = vao;
+			vertexArrayBinds++;
+		}
+	}
+
 	/**
 	 * A utility method to load vertex data into an OpenGL "vertex array object"
 	 * (VAO) for efficient rendering. The VAO stores several "vertex buffer objects"
-	 * (VBOs) that contain the vertex attribute data.
+	 * (VBOs) that contain the vertex attribute data, and the complete vertex
+	 * format. Each VBO is connected to the fixed attribute location of its
+	 * semantic (see {@link GLShader}), so the VAO can be used with any
+	 * shader. If the data already has a VAO, which is stale since the 
+	 * layout of the data has changed, the old VAO and its VBOs are deleted.
 	 *  
 	 * @param data
 	 * 			reference to the vertex data to be loaded into a VAO
 	 */
 	private void initArrayBuffer(GLVertexData data) {
 		
+		if (data.getVAO() != null)
+			data.getVAO().dispose();
+		
 		// Make a vertex array object (VAO) for this vertex data
-		// and store a reference to it
-		GLVertexArrayObject vao = new GLVertexArrayObject(data.getElements().size() + 1);
+		// and store a reference to it. Interleaved vertex data needs one VBO
+		// for all attributes.
+		int numberOfVBOs = data.isInterleaved() ? 1 : data.getElements().size();
+		GLVertexArrayObject vao = new GLVertexArrayObject(numberOfVBOs + 1);
 		data.setVAO(vao);
 		
 		// Bind (activate) the VAO for the vertex data in OpenGL.
@@ -217,18 +684,46 @@ public class GLRenderContext implements RenderContext {
 		ListIterator<VertexData.VertexElement> itr = data.getElements()
 				.listIterator(0);
 		data.getVAO().rewindVBO();
-		while (itr.hasNext()) {
-			VertexData.VertexElement e = itr.next();
-
-			// Bind the vertex buffer object (VBO)
+		if (data.isInterleaved()) {
+			// Upload all attributes into one VBO, and connect each attribute
+			// to its offset within a vertex. Stride and offsets are in bytes.
 			glBindBuffer(GL_ARRAY_BUFFER, data.getVAO().getNextVBO());
-			// Upload vertex data
-			glBufferData(GL_ARRAY_BUFFER, e.getData(), GL_DYNAMIC_DRAW);
+			glBufferData(GL_ARRAY_BUFFER, data.getInterleavedData(), GL_DYNAMIC_DRAW);
+			while (itr.hasNext()) {
+				VertexData.VertexElement e = itr.next();
+				int attribIndex = GLShader.getAttribLocation(e.getSemantic());
+				glVertexAttribPointer(attribIndex, e.getNumberOfComponents(),
+						GL_FLOAT, false, 4 * data.getStride(),
+						4 * data.getOffset(e.getSemantic()));
+				glEnableVertexAttribArray(attribIndex);
+			}
+		} else {
+			while (itr.hasNext()) {
+				VertexData.VertexElement e = itr.next();
+
+				// Bind the vertex buffer object (VBO)
+				glBindBuffer(GL_ARRAY_BUFFER, data.getVAO().getNextVBO());
+				// Upload vertex data
+				glBufferData(GL_ARRAY_BUFFER, e.getData(), GL_DYNAMIC_DRAW);
+
+				// Tell OpenGL which "in" variable in the vertex shader corresponds
+				// to the VBO. The variables are bound to a fixed location for 
+				// each semantic, i.e., "position", "normal", "color", and 
+				// "texcoord".
+				int attribIndex = GLShader.getAttribLocation(e.getSemantic());
+				glVertexAttribPointer(attribIndex, e.getNumberOfComponents(),
+						GL_FLOAT, false, 0, 0);
+				glEnableVertexAttribArray(attribIndex);
+			}
 		}
 
 		// Bind the default vertex buffer objects
 		glBindBuffer(GL_ARRAY_BUFFER, 0);
 
+		// Connect the per-instance attributes
+		if (instancingSupported)
+			connectInstanceAttributes();
+
 		// Store the vertex data indices into the last vertex buffer
 		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, data.getVAO().getNextVBO());
 		glBufferData(GL_ELEMENT_ARRAY_BUFFER, data.getIndices(), GL_DYNAMIC_DRAW);
@@ -236,6 +731,39 @@ public class GLRenderContext implements RenderContext {
 		// Bind the default vertex array object. This "deactivates" the VAO
 		// of the vertex data
 		glBindVertexArray(0);		
+		boundVAO = 0;
+	}
+
+	/**
+	 * Connect the per-instance attributes of the bound VAO to the instance
+	 * buffer, and let them advance once per instance. For instanced draw
+	 * calls, the attributes are pointed to the instances to draw with 
+	 * {@link #pointInstanceAttributes}. Multi-draw indirect calls use the 
+	 * base instance of each command instead.
+	 */
+	private void connectInstanceAttributes() {
+		pointInstanceAttributes(0);
+		for (int c = 0; c < 4; c++) {
+			glEnableVertexAttribArray(GLShader.MODEL_LOCATION + c);
+			glVertexAttribDivisor(GLShader.MODEL_LOCATION + c, 1);
+		}
+		glEnableVertexAttribArray(GLShader.INSTANCE_COLOR_LOCATION);
+		glVertexAttribDivisor(GLShader.INSTANCE_COLOR_LOCATION, 1);
+	}
+
+	/**
+	 * Point the per-instance attributes of the bound VAO to the instances
+	 * that start at an offset in the instance buffer. Offsets are in bytes.
+	 */
+	private void pointInstanceAttributes(long offset) {
+		int stride = 4 * InstancedShape.FLOATS_PER_INSTANCE;
+		glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+		for (int c = 0; c < 4; c++)
+			glVertexAttribPointer(GLShader.MODEL_LOCATION + c, 4, GL_FLOAT,
+					false, stride, offset + 16 * c);
+		glVertexAttribPointer(GLShader.INSTANCE_COLOR_LOCATION, 4, GL_FLOAT,
+				false, stride, offset + 64);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
 	}
 
 	private void setTransformation(Matrix4f transformation) {
@@ -247,11 +775,11 @@ public class GLRenderContext implements RenderContext {
 
 		// Set modelview and projection matrices in shader
 		glUniformMatrix4fv(
-				glGetUniformLocation(activeShaderID, "modelview"), false,
+				activeShader.getUniformLocation("modelview"), false,
 				transformationToFloat16(modelview));
-		glUniformMatrix4fv(glGetUniformLocation(activeShaderID,
-				"projection"), false, transformationToFloat16(sceneManager
-				.getFrustum().getProjectionMatrix()));
+		glUniformMatrix4fv(activeShader.getUniformLocation("projection"),
+				false, transformationToFloat16(sceneManager.getFrustum()
+				.getProjectionMatrix()));
 
 
 	}
@@ -259,11 +787,16 @@ public class GLRenderContext implements RenderContext {
 	/**
 	 * Set up a material for rendering. Activate its shader, and pass the 
 	 * material properties, textures, and light sources to the shader.
+	 * Shapes without a material shader are drawn with the shader chosen 
+	 * with useShader(Shader).
 	 * 
 	 * @param m
 	 * 		the material to be set up for rendering
+	 * @param instanced
+	 * 		whether to activate the instanced variant of the shader, see 
+	 * 		{@link #getInstancedShader}
 	 */
-	private void setMaterial(Material m) {
+	private void setMaterial(Material m, boolean instanced) {
 		
 		// Set up the shader for the material, if it has one
 		if(m != null && m.shader != null) {
@@ -272,28 +805,39 @@ public class GLRenderContext implements RenderContext {
 			int id;
 			
 			// Activate the shader
-			useShader(m.shader);
+			GLShader s = (GLShader)m.shader;
+			switchShader(instanced ? getInstancedShader(s) : s);
 			
-			// Activate the diffuse texture, if the material has one
-			if(m.diffuseMap != null) {
+			// Activate the diffuse texture, if the material has one and it
+			// is not bound already
+			if(m.diffuseMap != null && ((GLTexture)m.diffuseMap).getId() != boundTextureID) {
+				boundTextureID = ((GLTexture)m.diffuseMap).getId();
+				textureBinds++;
 				// OpenGL calls to activate the texture 
 				glActiveTexture(GL_TEXTURE0);	// Work with texture unit 0
 				glEnable(GL_TEXTURE_2D);
-				glBindTexture(GL_TEXTURE_2D, ((GLTexture)m.diffuseMap).getId());
+				glBindTexture(GL_TEXTURE_2D, boundTextureID);
 				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
 				glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-				// We assume the texture in the shader is called "myTexture"
-				id = glGetUniformLocation(activeShaderID, "myTexture");
-				glUniform1i(id, 0);	// The variable in the shader needs to be set to the desired texture unit, i.e., 0
 			}
 			
+			// The remaining variables are the same for all shapes in a 
+			// frame, they only need to be passed once to each shader
+			if(shaderUniformsSet)
+				return;
+			shaderUniformsSet = true;
+			
+			// We assume the texture in the shader is called "myTexture"
+			id = activeShader.getUniformLocation("myTexture");
+			if(id!=-1)
+				glUniform1i(id, 0);	// The variable in the shader needs to be set to the desired texture unit, i.e., 0
+			
 			// Pass a default light source to shader
-			String lightString = "lightDirection[" + 0 + "]";			
-			id = glGetUniformLocation(activeShaderID, lightString);
+			id = activeShader.getUniformLocation("lightDirection", 0);
 			if(id!=-1)
 				glUniform4f(id, 0, 0, 1, 0.f);		// Set light direction
 			else
-				System.out.print("Could not get location of uniform variable " + lightString + "\n");
+				System.out.print("Could not get location of uniform variable lightDirection[0]\n");
 			int nLights = 1;
 			
 			// Iterate over all light sources in scene manager (overwriting the default light source)
@@ -307,18 +851,17 @@ public class GLRenderContext implements RenderContext {
 					l = iter.next(); 
 					
 					// Pass light direction to shader, we assume the shader stores it in an array "lightDirection[]"
-					lightString = "lightDirection[" + nLights + "]";			
-					id = glGetUniformLocation(activeShaderID, lightString);
+					id = activeShader.getUniformLocation("lightDirection", nLights);
 					if(id!=-1)
 						glUniform4f(id, l.direction.x, l.direction.y, l.direction.z, 0.f);		// Set light direction
 					else
-						System.out.print("Could not get location of uniform variable " + lightString + "\n");
+						System.out.print("Could not get location of uniform variable lightDirection[" + nLights + "]\n");
 					
 					nLights++;
 				}
 				
 				// Pass number of lights to shader, we assume this is in a variable "nLights" in the shader
-				id = glGetUniformLocation(activeShaderID, "nLights");
+				id = activeShader.getUniformLocation("nLights");
 				if(id!=-1)
 					glUniform1i(id, nLights);		// Set number of lightrs
 // Only for debugging				
@@ -326,6 +869,21 @@ public class GLRenderContext implements RenderContext {
 //					System.out.print("Could not get location of uniform variable nLights\n");
 			}
 		}
+		else
+			switchShader(instanced ? getInstancedShader(baseShader) : baseShader);
+	}
+
+	/**
+	 * Get the shader to use for instanced drawing instead of a shader.
+	 * 
+	 * @return the shader itself if it reads the per-instance attributes,
+	 * 		the instanced variant of the default shader for the default 
+	 * 		shader, and null otherwise
+	 */
+	private GLShader getInstancedShader(GLShader s) {
+		if (s.isInstanced())
+			return s;
+		return s == defaultShader ? instancedShader : null;
 	}
 
 	/**
@@ -344,11 +902,118 @@ public class GLRenderContext implements RenderContext {
 	 */
 	public void useShader(Shader s) {
 		if (s != null) {
-			activeShaderID = ((GLShader)s).programId();
+			baseShader = (GLShader)s;
+			activeShader = baseShader;
+			activeShaderID = baseShader.programId();
 			glUseProgram(activeShaderID);
+			shaderUniformsSet = false;
 		}
 	}
 
+	/**
+	 * Activate a shader while drawing, unless it is active already.
+	 */
+	private void switchShader(GLShader s) {
+		if (s.programId() != activeShaderID) {
+			activeShader = s;
+			activeShaderID = s.programId();
+			glUseProgram(activeShaderID);
+			shaderUniformsSet = false;
+			shaderSwitches++;
+		}
+	}
+
+	/**
+	 * Enable or disable sorting of the shapes by state. Without sorting,
+	 * shapes are drawn in the order of the scene manager. Sorting is enabled
+	 * by default.
+	 */
+	public void setStateSorting(boolean stateSorting) {
+		this.stateSorting = stateSorting;
+	}
+
+	public boolean isStateSorting() {
+		return stateSorting;
+	}
+
+	/**
+	 * Enable or disable instanced drawing. Without instancing, each shape 
+	 * and each instance of an {@link InstancedShape} is drawn with its own
+	 * draw call. Instancing is enabled by default if the context supports 
+	 * it.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             if instancing is enabled, but the context has neither
+	 *             OpenGL 3.3 nor ARB_instanced_arrays
+	 */
+	public void setInstancing(boolean instancing) {
+		if (instancing && !instancingSupported)
+			throw new UnsupportedOperationException(
+					"Instancing needs OpenGL 3.3 or ARB_instanced_arrays");
+		this.instancing = instancing;
+	}
+
+	public boolean isInstancing() {
+		return instancing;
+	}
+
+	/**
+	 * Enable or disable multi-draw indirect rendering. When it is enabled,
+	 * the vertex data of the shapes is copied into shared mesh buffers the
+	 * first time it is drawn, so it should not change afterwards. Draw 
+	 * commands are batched in the order of the render queue, so state 
+	 * sorting should be enabled as well. Multi-draw indirect is disabled by
+	 * default.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             if multi-draw indirect is enabled, but the context has 
+	 *             neither OpenGL 4.3 nor the ARB_multi_draw_indirect and 
+	 *             ARB_base_instance extensions
+	 */
+	public void setMultiDrawIndirect(boolean multiDrawIndirect) {
+		if (multiDrawIndirect && !multiDrawIndirectSupported)
+			throw new UnsupportedOperationException(
+					"Multi-draw indirect needs OpenGL 4.3, or ARB_multi_draw_indirect and ARB_base_instance");
+		if (multiDrawIndirect && indirectBuffer == 0) {
+			indirectBuffer = glGenBuffers();
+			commands = BufferUtils.createIntBuffer(256 * COMMAND_SIZE);
+		}
+		this.multiDrawIndirect = multiDrawIndirect;
+	}
+
+	public boolean isMultiDrawIndirect() {
+		return multiDrawIndirect;
+	}
+
+	/**
+	 * @return the number of times the shader was switched in the last frame
+	 */
+	public int getShaderSwitches() {
+		return shaderSwitches;
+	}
+
+	/**
+	 * @return the number of times a texture was bound in the last frame
+	 */
+	public int getTextureBinds() {
+		return textureBinds;
+	}
+
+	/**
+	 * @return the number of times a vertex array object was bound in the 
+	 * last frame
+	 */
+	public int getVertexArrayBinds() {
+		return vertexArrayBinds;
+	}
+
+	/**
+	 * @return the number of draw calls in the last frame
+	 */
+	public int getDrawCalls() {
+		return drawCalls;
+	}
+
 	/**
 	 * Activate the default shader.
 	 * 
@@ -0,0 +1,169 @@
+package jrtr.glrenderer;
+
+import javax.vecmath.*;
+
+import jrtr.Shape;
+
+/**
+ * Collects the shapes of a frame, so that they can be drawn in an order
+ * that avoids OpenGL state changes. Each shape is given a 64 bit sort key
+ * (see {@link #makeKey}), and the shapes are sorted by their keys with a
+ * radix sort.
+ * <p>
+ * Scene managers may reuse their render items, so the queue keeps its own
+ * copies of the transformations. All memory is reused from frame to frame.
+ */
+class GLRenderQueue {
+
+	private long[] keys, tmpKeys;
+	private int[] order, tmpOrder;
+	private Shape[] shapes;
+	private Matrix4f[] transformations;
+	private int count;
+
+	private final int[] histogram;
+
+	GLRenderQueue() {
+		keys = new long[256];
+		tmpKeys = new long[256];
+		order = new int[256];
+		tmpOrder = new int[256];
+		shapes = new Shape[256];
+		transformations = new Matrix4f[256];
+		histogram = new int[256];
+	}
+
+	/**
+	 * Make a sort key. The shader is the most significant part of the key,
+	 * followed by the texture and the vertex array object, so that shapes
+	 * with the same state are drawn one after another. Shapes with the same
+	 * state are drawn front to back. Only the lower 16 bits of the OpenGL
+	 * names are used. Different names that share a key are still drawn
+	 * correctly, only the order is not optimal.
+	 *
+	 * @param shader the shader program name
+	 * @param texture the texture name, or 0
+	 * @param vao the vertex array object name
+	 * @param depth the distance of the shape from the camera
+	 */
+	static long makeKey(int shader, int texture, int vao, float depth) {
+		// The bits of positive floats increase with their value, the upper
+		// 16 of them give a logarithmic depth scale
+		long d = depth > 0 ? Float.floatToIntBits(depth) >>> 15 : 0;
+		return ((long)(shader & 0xFFFF) << 48) | ((long)(texture & 0xFFFF) << 32)
+				| ((long)(vao & 0xFFFF) << 16) | d;
+	}
+
+	/**
+	 * Make a sort key for vertex data in a mesh buffer. The identifier of
+	 * the vertex data takes all 32 lower bits of the key instead of the 
+	 * vertex array object and the depth. This keeps the shapes with the
+	 * same vertex data together even with millions of meshes, so that they
+	 * are drawn as instances of one draw command, whose order does not
+	 * depend on their depth anyway.
+	 *
+	 * @param shader the shader program name
+	 * @param texture the texture name, or 0
+	 * @param meshId the identifier of the vertex data in its mesh buffer,
+	 *        see {@link GLVertexData#getMeshId}
+	 */
+	static long makeMeshKey(int shader, int texture, int meshId) {
+		return ((long)(shader & 0xFFFF) << 48) | ((long)(texture & 0xFFFF) << 32)
+				| (meshId & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Remove all shapes, but keep the allocated memory.
+	 */
+	void clear() {
+		for (int i = 0; i < count; i++)
+			shapes[i] = null;
+		count = 0;
+	}
+
+	int size() {
+		return count;
+	}
+
+	void add(Shape shape, Matrix4f transformation, long key) {
+		if (count == keys.length)
+			grow();
+		if (transformations[count] == null)
+			transformations[count] = new Matrix4f();
+		transformations[count].set(transformation);
+		shapes[count] = shape;
+		keys[count] = key;
+		order[count] = count;
+		count++;
+	}
+
+	/**
+	 * @return the i-th shape in sorted order, after {@link #sort} has been
+	 *         called, or in the order of insertion otherwise
+	 */
+	Shape getShape(int i) {
+		return shapes[order[i]];
+	}
+
+	Matrix4f getTransformation(int i) {
+		return transformations[order[i]];
+	}
+
+	/**
+	 * Sort the shapes by their keys. This is a least significant digit radix
+	 * sort with one pass per byte of the key, which is stable and takes
+	 * linear time. Passes over bytes that are the same for all keys are
+	 * skipped, which is usually most of them.
+	 */
+	void sort() {
+		long[] k = keys, tk = tmpKeys;
+		int[] o = order, to = tmpOrder;
+
+		for (int shift = 0; shift < 64; shift += 8) {
+			for (int i = 0; i < 256; i++)
+				histogram[i] = 0;
+			for (int i = 0; i < count; i++)
+				histogram[(int)(k[i] >>> shift) & 0xFF]++;
+			if (count == 0 || histogram[(int)(k[0] >>> shift) & 0xFF] == count)
+				continue;
+
+			int sum = 0;
+			for (int i = 0; i < 256; i++) {
+				int h = histogram[i];
+				histogram[i] = sum;
+				sum += h;
+			}
+			for (int i = 0; i < count; i++) {
+				int j = histogram[(int)(k[i] >>> shift) & 0xFF]++;
+				tk[j] = k[i];
+				to[j] = o[i];
+			}
+
+			long[] t = k; k = tk; tk = t;
+			int[] u = o; o = to; to = u;
+		}
+
+		keys = k;
+		tmpKeys = tk;
+		order = o;
+		tmpOrder = to;
+	}
+
+	private void grow() {
+		int n = 2 * keys.length;
+		long[] k = new long[n];
+		System.arraycopy(keys, 0, k, 0, count);
+		keys = k;
+		tmpKeys = new long[n];
+		int[] o = new int[n];
+		System.arraycopy(order, 0, o, 0, count);
+		order = o;
+		tmpOrder = new int[n];
+		Shape[] s = new Shape[n];
+		System.arraycopy(shapes, 0, s, 0, count);
+		shapes = s;
+		Matrix4f[] m = new Matrix4f[n];
+		System.arraycopy(transformations, 0, m, 0, count);
+		transformations = m;
+	}
+}
@@ -5,21 +5,63 @@ import java.io.FileReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.util.HashMap;
 
 import static org.lwjgl.opengl.GL45.*;
 //import com.jogamp.opengl.GL3;
 
 import jrtr.Shader;
+import jrtr.VertexData;
 
 /**
  * Manages OpenGL shaders.
+ * <p>
+ * When the program has been linked, the locations of all its active
+ * uniform variables and vertex attributes are queried once and cached.
+ * Render contexts get them with {@link #getUniformLocation} and 
+ * {@link #getAttribLocation}, which do not call OpenGL.
+ * <p>
+ * The vertex attributes "position", "normal", "texcoord" and "color" are
+ * bound to fixed locations before linking, one for each 
+ * {@link VertexData.Semantic}. This allows vertex array objects to store 
+ * the complete vertex format once, independently of the shader they are
+ * drawn with. Shaders that declare attribute locations with 
+ * <code>layout(location = ...)</code> must use the same locations.
+ * <p>
+ * Shaders for instanced drawing declare the per-instance attributes 
+ * <code>mat4 model</code> and <code>vec4 instanceColor</code>, which are 
+ * bound to fixed locations as well. The transformation of a vertex is then
+ * <code>projection * modelview * model</code>.
  */
 public class GLShader implements Shader {
 	
+	/**
+	 * The fixed locations of the vertex attributes.
+	 */
+	public static final int POSITION_LOCATION = 0;
+	public static final int NORMAL_LOCATION = 1;
+	public static final int TEXCOORD_LOCATION = 2;
+	public static final int COLOR_LOCATION = 3;
+	
+	/**
+	 * The fixed locations of the per-instance attributes. The matrix uses
+	 * four consecutive locations, one for each column.
+	 */
+	public static final int MODEL_LOCATION = 4;
+	public static final int INSTANCE_COLOR_LOCATION = 8;
+	
 	private int p, vertexHandle, fragmentHandle;	// The shader identifier
 	
+	// Locations of the active uniforms and attributes, and of the elements
+	// of uniform arrays
+	private HashMap<String, Integer> uniformLocations, attribLocations;
+	private HashMap<String, int[]> uniformArrayLocations;
+	
 	public GLShader()
 	{
+		uniformLocations = new HashMap<String, Integer>();
+		uniformArrayLocations = new HashMap<String, int[]>();
+		attribLocations = new HashMap<String, Integer>();
 	}
 	
 	/**
@@ -107,6 +149,12 @@ public class GLShader implements Shader {
 		p = glCreateProgram();
 		glAttachShader(p, vertexHandle);
 		glAttachShader(p, fragmentHandle);
+		glBindAttribLocation(p, POSITION_LOCATION, "position");
+		glBindAttribLocation(p, NORMAL_LOCATION, "normal");
+		glBindAttribLocation(p, TEXCOORD_LOCATION, "texcoord");
+		glBindAttribLocation(p, COLOR_LOCATION, "color");
+		glBindAttribLocation(p, MODEL_LOCATION, "model");
+		glBindAttribLocation(p, INSTANCE_COLOR_LOCATION, "instanceColor");
 		glLinkProgram(p);
 		
 		System.out.println("Linker output:\n" + this.getLinkerOutput(p));
@@ -128,8 +176,109 @@ public class GLShader implements Shader {
 		if(ib.get(0) == GL_FALSE) {
 			throw new Exception("Could not link vertex and fragment shader.");
 		}
+		
+		queryLocations();
+	}
+	
+	/**
+	 * Query the locations of the active uniforms and attributes of the 
+	 * linked program. Arrays are reported by OpenGL under the name of their
+	 * first element, e.g., "lightDirection[0]". The locations of all their
+	 * elements are stored, and the name of the array refers to the first
+	 * element.
+	 */
+	private void queryLocations() {
+		uniformLocations.clear();
+		uniformArrayLocations.clear();
+		attribLocations.clear();
+		
+		IntBuffer size = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder()).asIntBuffer();
+		IntBuffer type = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder()).asIntBuffer();
+		
+		int n = glGetProgrami(p, GL_ACTIVE_UNIFORMS);
+		for(int i=0; i<n; i++) {
+			String name = glGetActiveUniform(p, i, size, type);
+			if(name.endsWith("[0]")) {
+				String arrayName = name.substring(0, name.length()-3);
+				int[] locations = new int[size.get(0)];
+				for(int j=0; j<locations.length; j++) {
+					String elementName = arrayName + "[" + j + "]";
+					locations[j] = glGetUniformLocation(p, elementName);
+					uniformLocations.put(elementName, locations[j]);
+				}
+				uniformArrayLocations.put(arrayName, locations);
+				uniformLocations.put(arrayName, locations[0]);
+			}
+			else
+				uniformLocations.put(name, glGetUniformLocation(p, name));
+		}
+		
+		n = glGetProgrami(p, GL_ACTIVE_ATTRIBUTES);
+		for(int i=0; i<n; i++) {
+			String name = glGetActiveAttrib(p, i, size, type);
+			attribLocations.put(name, glGetAttribLocation(p, name));
+		}
+	}
+	
+	/**
+	 * Get the fixed location of the vertex attribute for a semantic.
+	 */
+	public static int getAttribLocation(VertexData.Semantic semantic) {
+		switch(semantic) {
+		case POSITION:
+			return POSITION_LOCATION;
+		case NORMAL:
+			return NORMAL_LOCATION;
+		case TEXCOORD:
+			return TEXCOORD_LOCATION;
+		case COLOR:
+			return COLOR_LOCATION;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Get the location of a uniform variable from the cache.
+	 * 
+	 * @return the location, or -1 if the program has no active uniform 
+	 * 		with this name
+	 */
+	public int getUniformLocation(String name) {
+		Integer location = uniformLocations.get(name);
+		return location != null ? location : -1;
+	}
+	
+	/**
+	 * Get the location of an element of a uniform array from the cache,
+	 * without making the name of the element.
+	 * 
+	 * @return the location, or -1 if the program has no active uniform 
+	 * 		array with this name, or the array has fewer elements
+	 */
+	public int getUniformLocation(String arrayName, int index) {
+		int[] locations = uniformArrayLocations.get(arrayName);
+		return locations != null && index < locations.length ? locations[index] : -1;
+	}
+	
+	/**
+	 * Get the location of a vertex attribute from the cache.
+	 * 
+	 * @return the location, or -1 if the program has no active attribute 
+	 * 		with this name
+	 */
+	public int getAttribLocation(String name) {
+		Integer location = attribLocations.get(name);
+		return location != null ? location : -1;
 	}
 		
+	/**
+	 * @return true if the shader reads the transformation of each instance
+	 * 		from the per-instance attribute "model"
+	 */
+	public boolean isInstanced() {
+		return attribLocations.containsKey("model");
+	}
+	
 	public int programId()
 	{
 		return p;		
@@ -56,6 +56,13 @@ public class GLVertexArrayObject {
 		return vbo.get();
 	}
 
+	/**
+	 * Get the OpenGL name of the VAO.
+	 */
+	public int getId() {
+		return vao.get(0);
+	}
+
 	/**
 	 * Bind the VAO. This means all the information associated
 	 * with the VAO becomes active in OpenGL.
@@ -69,8 +76,9 @@ public class GLVertexArrayObject {
 	 */
 	public void dispose(){
 		glBindVertexArray(0);
-		glBindBuffer(0, 0);
-		glDeleteBuffers(vbo);
-		glDeleteVertexArrays(vao);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+		for(int i=0; i<vbo.capacity(); i++)
+			glDeleteBuffers(vbo.get(i));
+		glDeleteVertexArrays(vao.get(0));
 	}
 }
\ No newline at end of file
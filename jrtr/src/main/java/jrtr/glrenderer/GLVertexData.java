@@ -3,18 +3,30 @@ import jrtr.VertexData;
 
 /**
  * An implementation of {@link VertexData} which adds the handle to the OpenGL
- * vertex array object (VAO) of this vertex data to it.
+ * vertex array object (VAO) of this vertex data to it. For multi-draw 
+ * indirect rendering, it also stores where the vertex data is stored in a
+ * shared {@link GLMeshBuffer}.
  */
 public class GLVertexData extends VertexData {
 
 	/**
-	 * The handle to the OpenGL VAO of this data.
+	 * The handle to the OpenGL VAO of this data, and whether the layout of
+	 * the data has changed since the VAO was made.
 	 */
 	private GLVertexArrayObject vertexArrayObject;
+	private boolean vaoStale;
+
+	/**
+	 * The mesh buffer that stores this data, the position of the data in 
+	 * it, and an identifier for sorting.
+	 */
+	private GLMeshBuffer meshBuffer;
+	private int baseVertex, firstIndex, meshId;
 
 	public GLVertexData(int n) {
 		super(n);
 		vertexArrayObject = null;
+		meshBuffer = null;
 	}
 
 	public GLVertexArrayObject getVAO() {
@@ -23,5 +35,57 @@ public class GLVertexData extends VertexData {
 
 	public void setVAO(GLVertexArrayObject vertexArrayObject) {
 		this.vertexArrayObject = vertexArrayObject;
+		vaoStale = false;
+	}
+
+	/**
+	 * @return true if the VAO no longer matches the layout of the data, 
+	 * 		and needs to be made again
+	 */
+	public boolean isVAOStale() {
+		return vaoStale;
+	}
+
+	/**
+	 * Mark the VAO as stale, since it stores the VBOs and attribute 
+	 * pointers of the previous layout. The render context deletes it and
+	 * makes a new one the next time the data is drawn.
+	 */
+	@Override
+	protected void layoutChanged() {
+		vaoStale = vertexArrayObject != null;
+	}
+
+	GLMeshBuffer getMeshBuffer() {
+		return meshBuffer;
+	}
+
+	void setMeshBuffer(GLMeshBuffer meshBuffer, int baseVertex, int firstIndex, int meshId) {
+		this.meshBuffer = meshBuffer;
+		this.baseVertex = baseVertex;
+		this.firstIndex = firstIndex;
+		this.meshId = meshId;
+	}
+
+	/**
+	 * @return the index of the first vertex in the mesh buffer
+	 */
+	int getBaseVertex() {
+		return baseVertex;
+	}
+
+	/**
+	 * @return the position of the first index in the mesh buffer
+	 */
+	int getFirstIndex() {
+		return firstIndex;
+	}
+
+	/**
+	 * @return an identifier for sorting, whose upper 8 bits identify the 
+	 * 		mesh buffer, see {@link GLMeshBuffer#add}
+	 */
+	int getMeshId() {
+		return meshId;
 	}
 }
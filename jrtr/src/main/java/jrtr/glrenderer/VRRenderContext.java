@@ -39,6 +39,7 @@ public class VRRenderContext implements RenderContext {
 	 * useuseShader(GLShader) and useDefaultShader() to switch between the
 	 * shaders!).
 	 */
+	private GLShader activeShader;
 	private int activeShaderID;
 
 	private static VR_IVRCompositor_FnTable vrcompositorFunctions;
@@ -260,16 +261,16 @@ public class VRRenderContext implements RenderContext {
 			int attribIndex = -1;
 			switch (e.getSemantic()) {
 			case POSITION:
-				attribIndex = gl.glGetAttribLocation(activeShaderID, "position");
+				attribIndex = activeShader.getAttribLocation("position");
 				break;
 			case NORMAL:
-				attribIndex = gl.glGetAttribLocation(activeShaderID, "normal");
+				attribIndex = activeShader.getAttribLocation("normal");
 				break;
 			case COLOR:
-				attribIndex = gl.glGetAttribLocation(activeShaderID, "color");
+				attribIndex = activeShader.getAttribLocation("color");
 				break;
 			case TEXCOORD:
-				attribIndex = gl.glGetAttribLocation(activeShaderID, "texcoord");
+				attribIndex = activeShader.getAttribLocation("texcoord");
 				break;
 			}
 
@@ -339,10 +340,10 @@ public class VRRenderContext implements RenderContext {
 
 		// Set modelview and projection matrices in shader
 		gl.glUniformMatrix4fv(
-				gl.glGetUniformLocation(activeShaderID, "modelview"), 1, false,
+				activeShader.getUniformLocation("modelview"), 1, false,
 				transformationToFloat16(modelview), 0);
-		gl.glUniformMatrix4fv(gl.glGetUniformLocation(activeShaderID,
-				"projection"), 1, false, transformationToFloat16(sceneManager
+		gl.glUniformMatrix4fv(activeShader.getUniformLocation("projection"),
+				1, false, transformationToFloat16(sceneManager
 				.getFrustum().getProjectionMatrix()), 0);
 
 	}
@@ -359,7 +360,7 @@ public class VRRenderContext implements RenderContext {
 			useShader(m.shader);
 			
 			// Pass shininess parameter to shader 
-			int id = gl.glGetUniformLocation(activeShaderID, "shininess");
+			int id = activeShader.getUniformLocation("shininess");
 			if(id!=-1)
 				gl.glUniform1f(id, m.shininess);
 			else
@@ -373,7 +374,7 @@ public class VRRenderContext implements RenderContext {
 				gl.glBindTexture(GL3.GL_TEXTURE_2D, ((GLTexture)m.texture).getId());
 				gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
 				gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR);
-				id = gl.glGetUniformLocation(activeShaderID, "myTexture");
+				id = activeShader.getUniformLocation("myTexture");
 				gl.glUniform1i(id, 0);	// The variable in the shader needs to be set to the desired texture unit, i.e., 0
 			}
 			
@@ -388,18 +389,17 @@ public class VRRenderContext implements RenderContext {
 					l = iter.next(); 
 					
 					// Pass light direction to shader
-					String lightString = "lightDirection[" + i + "]";			
-					id = gl.glGetUniformLocation(activeShaderID, lightString);
+					id = activeShader.getUniformLocation("lightDirection", i);
 					if(id!=-1)
 						gl.glUniform4f(id, l.direction.x, l.direction.y, l.direction.z, 0.f);		// Set light direction
 					else
-						System.out.print("Could not get location of uniform variable " + lightString + "\n");
+						System.out.print("Could not get location of uniform variable lightDirection[" + i + "]\n");
 					
 					i++;
 				}
 				
 				// Pass number of lights to shader
-				id = gl.glGetUniformLocation(activeShaderID, "nLights");
+				id = activeShader.getUniformLocation("nLights");
 				if(id!=-1)
 					gl.glUniform1i(id, i);		// Set number of lightrs
 				else
@@ -420,7 +420,8 @@ public class VRRenderContext implements RenderContext {
 
 	public void useShader(Shader s) {
 		if (s != null) {
-			activeShaderID = ((GLShader)s).programId();
+			activeShader = (GLShader)s;
+			activeShaderID = activeShader.programId();
 			gl.glUseProgram(activeShaderID);
 		}
 	}
@@ -0,0 +1,161 @@
+package jrtr.swrenderer;
+
+/**
+ * Clips triangles in homogeneous screen coordinates, i.e., after the
+ * viewport transformation but before the division by w, using the
+ * Sutherland-Hodgman algorithm.
+ * <p>
+ * Triangles are always clipped against the near plane, which is z >= 0 in
+ * homogeneous screen coordinates. This also guarantees w > 0 for all
+ * vertices. The rasterizer can handle screen coordinates far outside of
+ * the viewport, up to {@link SWTileRasterizer#MAX_COORDINATE}. Triangles are
+ * therefore not clipped against the sides of the view frustum, but only
+ * against a much larger guard band, which only triangles that would exceed
+ * the precision of the rasterizer cross. Most triangles are entirely inside
+ * of all clip planes and do not need to be clipped.
+ * <p>
+ * Vertices are given in the layout of {@link SWTriangleBuffer}, with w
+ * stored in place of 1/w. All attributes are interpolated linearly in
+ * homogeneous coordinates, which is correct under perspective.
+ */
+class SWClipper {
+
+	/**
+	 * Extent of the guard band in pixels. This is smaller than the largest
+	 * coordinate that can be rasterized, so that vertices on the guard band
+	 * stay valid after rounding.
+	 */
+	static final float GUARD_BAND = SWTileRasterizer.MAX_COORDINATE/2;
+
+	// Clip codes, a vertex is outside of a plane if the corresponding bit is set
+	static final int NEAR = 1;
+	static final int LEFT = 2, RIGHT = 4, BOTTOM = 8, TOP = 16;
+	private static final int N_PLANES = 5;
+
+	private static final int STRIDE = SWTriangleBuffer.VERTEX_STRIDE;
+
+	/**
+	 * Clipping a triangle against each plane adds at most one vertex.
+	 */
+	static final int MAX_VERTICES = 3 + N_PLANES;
+
+	// Polygon buffers, the input and output of each clipping step
+	private float[] polygon, clipped;
+
+	SWClipper()
+	{
+		polygon = new float[MAX_VERTICES*STRIDE];
+		clipped = new float[MAX_VERTICES*STRIDE];
+	}
+
+	/**
+	 * Compute the clip code of a vertex.
+	 *
+	 * @param v the array containing the vertex
+	 * @param o offset of the vertex in v
+	 */
+	static int clipCode(float[] v, int o)
+	{
+		int code = 0;
+		for(int plane=0; plane<N_PLANES; plane++)
+			if(!(distance(v, o, plane) >= 0)) code |= 1 << plane;
+		return code;
+	}
+
+	/**
+	 * Signed distance of a vertex to a clip plane, which is positive on
+	 * the inside.
+	 */
+	private static float distance(float[] v, int o, int plane)
+	{
+		float w = v[o+SWTriangleBuffer.INV_W];
+		switch(plane)
+		{
+		case 0: return v[o+SWTriangleBuffer.Z];
+		case 1: return GUARD_BAND*w + v[o+SWTriangleBuffer.X];
+		case 2: return GUARD_BAND*w - v[o+SWTriangleBuffer.X];
+		case 3: return GUARD_BAND*w + v[o+SWTriangleBuffer.Y];
+		default: return GUARD_BAND*w - v[o+SWTriangleBuffer.Y];
+		}
+	}
+
+	/**
+	 * Clip a triangle against all planes in the combined clip codes of its
+	 * vertices. The resulting convex polygon is stored in the array returned
+	 * by {@link #getPolygon()}.
+	 *
+	 * @param v the array containing the vertices
+	 * @param o0 offset of the first vertex in v
+	 * @param o1 offset of the second vertex in v
+	 * @param o2 offset of the third vertex in v
+	 * @param codes the union of the clip codes of the three vertices
+	 * @return the number of vertices of the clipped polygon, which is 0 if
+	 * the triangle is entirely outside
+	 */
+	int clip(float[] v, int o0, int o1, int o2, int codes)
+	{
+		System.arraycopy(v, o0, polygon, 0, STRIDE);
+		System.arraycopy(v, o1, polygon, STRIDE, STRIDE);
+		System.arraycopy(v, o2, polygon, 2*STRIDE, STRIDE);
+		int n = 3;
+
+		for(int plane=0; plane<N_PLANES && n>0; plane++)
+		{
+			if((codes & (1 << plane)) == 0) continue;
+
+			int m = 0;
+			float[] in = polygon, out = clipped;
+			int prev = (n-1)*STRIDE;
+			float dPrev = distance(in, prev, plane);
+			for(int i=0; i<n; i++)
+			{
+				int cur = i*STRIDE;
+				float dCur = distance(in, cur, plane);
+
+				// Add the intersection of the edge with the plane if the edge
+				// crosses it, the intersection is always computed from the
+				// inside vertex so that shared edges are clipped consistently
+				if((dPrev >= 0) != (dCur >= 0))
+				{
+					if(dPrev >= 0)
+						intersect(in, prev, cur, dPrev/(dPrev-dCur), out, m*STRIDE);
+					else
+						intersect(in, cur, prev, dCur/(dCur-dPrev), out, m*STRIDE);
+					m++;
+				}
+				if(dCur >= 0)
+				{
+					System.arraycopy(in, cur, out, m*STRIDE, STRIDE);
+					m++;
+				}
+				prev = cur;
+				dPrev = dCur;
+			}
+
+			polygon = out;
+			clipped = in;
+			n = m;
+		}
+		return n;
+	}
+
+	/**
+	 * @return the vertices of the polygon computed by the last call to
+	 * {@link #clip}, in the layout of {@link SWTriangleBuffer} with w stored
+	 * in place of 1/w
+	 */
+	float[] getPolygon()
+	{
+		return polygon;
+	}
+
+	/**
+	 * Interpolate all attributes of vertices a and b, the new vertex is
+	 * a + t*(b-a).
+	 */
+	private static void intersect(float[] v, int a, int b, float t, float[] out, int o)
+	{
+		for(int i=0; i<STRIDE; i++)
+			out[o+i] = v[a+i] + t*(v[b+i] - v[a+i]);
+	}
+}
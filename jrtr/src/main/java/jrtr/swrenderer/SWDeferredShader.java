@@ -0,0 +1,132 @@
+package jrtr.swrenderer;
+
+import java.util.concurrent.RecursiveAction;
+
+import javax.vecmath.Matrix4f;
+
+/**
+ * A worker of the shading pass of deferred shading. After the rasterizers
+ * have written the closest surface at each pixel to the {@link SWGBuffer},
+ * several workers run in parallel. Like the rasterizers, each worker
+ * repeatedly takes the next unprocessed tile from the {@link SWTileBinner},
+ * and it shades every covered pixel of the tile with all lights. Each
+ * pixel is therefore shaded exactly once, no matter how many triangles
+ * were drawn on top of each other.
+ * <p>
+ * Shading is diffuse, as in the deferred OpenGL renderer: the color of a
+ * pixel is its albedo times the sum of the ambient colors of all lights
+ * and the diffuse colors of all lights weighted by the cosine of the angle
+ * of incidence. Point and spot lights are attenuated and spot lights have
+ * a cone as in OpenGL.
+ */
+class SWDeferredShader extends RecursiveAction {
+
+	static final long serialVersionUID = 0;
+
+	private final SWRenderContext renderContext;
+
+	// Buffers and lights of the current frame
+	private int[] colorBuffer;
+	private float[] depthBuffer;
+	private SWGBuffer gBuffer;
+	private int width;
+	private float[] lights;
+	private int nLights;
+	private float ambientR, ambientG, ambientB;
+	private boolean positional;
+	private Matrix4f screenToCamera;
+
+	SWDeferredShader(SWRenderContext renderContext)
+	{
+		this.renderContext = renderContext;
+	}
+
+	protected void compute()
+	{
+		colorBuffer = renderContext.getColorBufferData();
+		depthBuffer = renderContext.getDepthBuffer();
+		gBuffer = renderContext.getGBuffer();
+		width = renderContext.getWidth();
+
+		SWLights l = renderContext.getLights();
+		lights = l.getLights();
+		nLights = l.size();
+		ambientR = l.getAmbientR();
+		ambientG = l.getAmbientG();
+		ambientB = l.getAmbientB();
+		positional = l.hasPositionalLights();
+		screenToCamera = l.getScreenToCamera();
+
+		SWTileBinner binner = renderContext.getBinner();
+		SWTile tile;
+		while((tile = binner.nextTile()) != null)
+		{
+			shadeTile(tile);
+		}
+	}
+
+	private void shadeTile(SWTile tile)
+	{
+		final Matrix4f m = screenToCamera;
+		for(int y=tile.y0; y<tile.y1; y++)
+		{
+			for(int x=tile.x0, p=y*width+tile.x0; x<tile.x1; x++, p++)
+			{
+				float z = depthBuffer[p];
+				if(!(z < 1.f)) continue;
+
+				float nx = gBuffer.normalX[p], ny = gBuffer.normalY[p], nz = gBuffer.normalZ[p];
+				float len = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+				if(len > 0)
+				{
+					float s = 1.f/len;
+					nx *= s; ny *= s; nz *= s;
+				}
+
+				// Position of the surface in camera coordinates
+				float px = 0, py = 0, pz = 0;
+				if(positional)
+				{
+					float sx = x + .5f, sy = y + .5f;
+					float w = 1.f/(m.m30*sx + m.m31*sy + m.m32*z + m.m33);
+					px = (m.m00*sx + m.m01*sy + m.m02*z + m.m03)*w;
+					py = (m.m10*sx + m.m11*sy + m.m12*z + m.m13)*w;
+					pz = (m.m20*sx + m.m21*sy + m.m22*z + m.m23)*w;
+				}
+
+				float r = ambientR, g = ambientG, b = ambientB;
+				for(int o=0; o<nLights*SWLights.STRIDE; o+=SWLights.STRIDE)
+				{
+					float lx = lights[o+SWLights.DX], ly = lights[o+SWLights.DY], lz = lights[o+SWLights.DZ];
+					float intensity = 1.f;
+					if(lights[o+SWLights.TYPE] != SWLights.DIRECTIONAL)
+					{
+						// Direction to the light and attenuation
+						lx -= px; ly -= py; lz -= pz;
+						float d2 = lx*lx + ly*ly + lz*lz;
+						float d = (float)Math.sqrt(d2);
+						float s = d > 0 ? 1.f/d : 0.f;
+						lx *= s; ly *= s; lz *= s;
+						intensity = 1.f/(lights[o+SWLights.CONSTANT] + lights[o+SWLights.LINEAR]*d + lights[o+SWLights.QUADRATIC]*d2);
+
+						if(lights[o+SWLights.TYPE] == SWLights.SPOT)
+						{
+							float c = -(lx*lights[o+SWLights.SX] + ly*lights[o+SWLights.SY] + lz*lights[o+SWLights.SZ]);
+							if(c < lights[o+SWLights.COS_CUTOFF]) continue;
+							intensity *= (float)Math.pow(c, lights[o+SWLights.EXPONENT]);
+						}
+					}
+
+					float ndotl = nx*lx + ny*ly + nz*lz;
+					if(ndotl <= 0) continue;
+					intensity *= ndotl;
+					r += lights[o+SWLights.R]*intensity;
+					g += lights[o+SWLights.G]*intensity;
+					b += lights[o+SWLights.B]*intensity;
+				}
+
+				colorBuffer[p] = SWTileRasterizer.toRGB(r*gBuffer.albedoR[p], g*gBuffer.albedoG[p], b*gBuffer.albedoB[p]);
+			}
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package jrtr.swrenderer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * The data that the vertex stage of {@link SWRenderContext} produces for
+ * one frame and that the rasterizers consume: the screen space triangles,
+ * their bins, and the lights. The frame also collects the counters of
+ * both stages, so that the counters of different frames are not mixed. The render context keeps two frames, so that
+ * the scene can be traversed into one frame while the other one is being
+ * rasterized.
+ */
+class SWFrame {
+
+	final SWTriangleBuffer triangles;
+	final SWTileBinner binner;
+	final SWLights lights;
+	final SWRenderStatistics statistics;
+
+	// The image that the frame is rasterized into, and its pixels
+	private BufferedImage colorBuffer;
+	private int[] colorBufferData;
+
+	SWFrame()
+	{
+		triangles = new SWTriangleBuffer();
+		binner = new SWTileBinner();
+		lights = new SWLights();
+		statistics = new SWRenderStatistics();
+	}
+
+	/**
+	 * Remove the triangles and reset the counters of the previous frame.
+	 */
+	void clear()
+	{
+		triangles.clear();
+		binner.clear();
+		statistics.reset();
+	}
+
+	/**
+	 * Set the image to rasterize into. It must be a TYPE_INT_RGB image of
+	 * the size of the viewport.
+	 */
+	void setColorBuffer(BufferedImage colorBuffer)
+	{
+		this.colorBuffer = colorBuffer;
+		colorBufferData = ((DataBufferInt)colorBuffer.getRaster().getDataBuffer()).getData();
+	}
+
+	BufferedImage getColorBuffer()
+	{
+		return colorBuffer;
+	}
+
+	int[] getColorBufferData()
+	{
+		return colorBufferData;
+	}
+}
@@ -0,0 +1,32 @@
+package jrtr.swrenderer;
+
+/**
+ * The geometry buffer for deferred shading in the software renderer. Like
+ * the GBuffer of the deferred OpenGL renderer, it stores the normal, the
+ * color and the texture coordinates of the closest surface at each pixel,
+ * and its depth is stored in the depth buffer of the {@link SWRenderContext}.
+ * Each component is stored in a separate array (struct of arrays), so that
+ * the shading pass reads contiguous memory for each component.
+ * <p>
+ * Normals are in camera coordinates and not normalized. The buffer is not
+ * cleared, a pixel contains valid data only if its depth is less than one.
+ */
+class SWGBuffer {
+
+	final float[] normalX, normalY, normalZ;
+	final float[] albedoR, albedoG, albedoB;
+	final float[] u, v;
+
+	SWGBuffer(int width, int height)
+	{
+		int n = width*height;
+		normalX = new float[n];
+		normalY = new float[n];
+		normalZ = new float[n];
+		albedoR = new float[n];
+		albedoG = new float[n];
+		albedoB = new float[n];
+		u = new float[n];
+		v = new float[n];
+	}
+}
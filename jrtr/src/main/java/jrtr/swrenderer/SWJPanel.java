@@ -6,6 +6,7 @@ import java.awt.Graphics2D;
 import java.awt.event.HierarchyBoundsListener;
 import java.awt.event.HierarchyListener;
 import java.awt.event.HierarchyEvent;
+import java.awt.image.BufferedImage;
 import javax.swing.JPanel;
 
 /** 
@@ -37,7 +38,7 @@ public class SWJPanel extends JPanel {
 		{
 			if(e.getChanged() instanceof JPanel) {
 				Dimension d = e.getChanged().getSize();
-				renderContext.setViewportSize(d.width, d.height);
+				setViewportSize(d.width, d.height);
 			}
 		}
 	}
@@ -56,12 +57,16 @@ public class SWJPanel extends JPanel {
 			if((e.getID() & HierarchyEvent.HIERARCHY_CHANGED)!=0 & e.getChangedParent()!=null)
 			{
 				Dimension d = e.getChangedParent().getPreferredSize();
-				renderContext.setViewportSize(d.width, d.height);
+				setViewportSize(d.width, d.height);
 			}
 		}
 	}
 
 	private SWRenderContext renderContext;
+	
+	// The thread that renders frames, or null if frames are rendered when
+	// the panel is painted
+	private volatile SWRenderThread renderThread;
 		
 	public SWJPanel(SWRenderContext renderContext)
 	{
@@ -72,10 +77,37 @@ public class SWJPanel extends JPanel {
 	}
 	
 	/**
-	 * Redirect paint requests to the renderer.
+	 * Render frames on a separate thread, or when the panel is painted if
+	 * the thread is null.
+	 */
+	void setRenderThread(SWRenderThread renderThread)
+	{
+		this.renderThread = renderThread;
+	}
+	
+	private void setViewportSize(int width, int height)
+	{
+		if(renderThread != null)
+			renderThread.setViewportSize(width, height);
+		else
+			renderContext.setViewportSize(width, height);
+	}
+	
+	/**
+	 * Redirect paint requests to the renderer. The color buffer is an
+	 * int RGB image, which Java 2D can copy to the screen without
+	 * converting pixel formats. If frames are rendered on a separate
+	 * thread, the latest complete frame is shown.
 	 */
 	public void paintComponent(Graphics g)
 	{
+		if(renderThread != null)
+		{
+			BufferedImage frame = renderThread.getFrame();
+			if(frame != null)
+				((Graphics2D)g).drawImage(frame, null, 0, 0);
+			return;
+		}
 		renderContext.display();
 		((Graphics2D)g).drawImage(renderContext.getColorBuffer(), null, 0, 0);
 	}
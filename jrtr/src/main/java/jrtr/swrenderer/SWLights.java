@@ -0,0 +1,168 @@
+package jrtr.swrenderer;
+
+import java.util.Iterator;
+
+import javax.vecmath.Matrix4f;
+
+import jrtr.Light;
+
+/**
+ * The light sources of a frame in a compact form for the deferred shading
+ * pass. As in the OpenGL renderer, light directions and positions are given
+ * in camera coordinates. The lights are collected once per frame and then
+ * read by all shading threads.
+ */
+class SWLights {
+
+	/**
+	 * Lights are stored in arrays with {@link #STRIDE} floats per light.
+	 */
+	static final int STRIDE = 16;
+
+	// Offsets of the light parameters. For directional lights, the direction
+	// points towards the light and is normalized. For spot lights, the spot
+	// direction points away from the light and is normalized.
+	static final int TYPE = 0;
+	static final int DX = 1, DY = 2, DZ = 3;
+	static final int R = 4, G = 5, B = 6;
+	static final int SX = 7, SY = 8, SZ = 9;
+	static final int COS_CUTOFF = 10, EXPONENT = 11;
+	static final int CONSTANT = 12, LINEAR = 13, QUADRATIC = 14;
+
+	static final int DIRECTIONAL = 0, POINT = 1, SPOT = 2;
+
+	private float[] lights;
+	private int count;
+	private boolean hasPositionalLights;
+
+	// Sum of the ambient colors of all lights
+	private float ambientR, ambientG, ambientB;
+
+	/**
+	 * The transformation from screen coordinates (pixel x and y, depth z)
+	 * to homogeneous camera coordinates.
+	 */
+	private final Matrix4f screenToCamera;
+
+	// The light that is used if the scene has no lights
+	private final Light defaultLight;
+
+	SWLights()
+	{
+		lights = new float[8*STRIDE];
+		screenToCamera = new Matrix4f();
+		defaultLight = new Light();
+	}
+
+	/**
+	 * Collect the lights of a frame.
+	 *
+	 * @param iterator the lights of the scene, or null
+	 * @param screenToCamera the transformation from screen to camera coordinates
+	 */
+	void set(Iterator<Light> iterator, Matrix4f screenToCamera)
+	{
+		this.screenToCamera.set(screenToCamera);
+		count = 0;
+		hasPositionalLights = false;
+		ambientR = ambientG = ambientB = 0;
+		if(iterator != null)
+		{
+			while(iterator.hasNext())
+				add(iterator.next());
+		}
+		if(count == 0)
+			add(defaultLight);
+	}
+
+	private void add(Light l)
+	{
+		if(STRIDE*(count+1) > lights.length)
+		{
+			float[] a = new float[2*lights.length];
+			System.arraycopy(lights, 0, a, 0, lights.length);
+			lights = a;
+		}
+
+		int o = STRIDE*count;
+		switch(l.type)
+		{
+		case DIRECTIONAL:
+			lights[o+TYPE] = DIRECTIONAL;
+			setNormalized(o+DX, l.direction.x, l.direction.y, l.direction.z);
+			break;
+		case POINT:
+		case SPOT:
+			lights[o+TYPE] = l.type == Light.Type.POINT ? POINT : SPOT;
+			lights[o+DX] = l.position.x;
+			lights[o+DY] = l.position.y;
+			lights[o+DZ] = l.position.z;
+			setNormalized(o+SX, l.spotDirection.x, l.spotDirection.y, l.spotDirection.z);
+			lights[o+COS_CUTOFF] = (float)Math.cos(Math.toRadians(l.spotCutoff));
+			lights[o+EXPONENT] = l.spotExponent;
+
+			// No attenuation if none is specified
+			boolean attenuated = l.attenuation.x != 0 || l.attenuation.y != 0 || l.attenuation.z != 0;
+			lights[o+CONSTANT] = attenuated ? l.attenuation.x : 1.f;
+			lights[o+LINEAR] = attenuated ? l.attenuation.y : 0.f;
+			lights[o+QUADRATIC] = attenuated ? l.attenuation.z : 0.f;
+			hasPositionalLights = true;
+			break;
+		}
+		lights[o+R] = l.diffuse.x;
+		lights[o+G] = l.diffuse.y;
+		lights[o+B] = l.diffuse.z;
+		ambientR += l.ambient.x;
+		ambientG += l.ambient.y;
+		ambientB += l.ambient.z;
+		count++;
+	}
+
+	private void setNormalized(int o, float x, float y, float z)
+	{
+		float l = (float)Math.sqrt(x*x + y*y + z*z);
+		float s = l > 0 ? 1.f/l : 0.f;
+		lights[o] = x*s;
+		lights[o+1] = y*s;
+		lights[o+2] = z*s;
+	}
+
+	float[] getLights()
+	{
+		return lights;
+	}
+
+	int size()
+	{
+		return count;
+	}
+
+	/**
+	 * @return true if there are point or spot lights, which need the
+	 * position of the surface at each pixel
+	 */
+	boolean hasPositionalLights()
+	{
+		return hasPositionalLights;
+	}
+
+	Matrix4f getScreenToCamera()
+	{
+		return screenToCamera;
+	}
+
+	float getAmbientR()
+	{
+		return ambientR;
+	}
+
+	float getAmbientG()
+	{
+		return ambientG;
+	}
+
+	float getAmbientB()
+	{
+		return ambientB;
+	}
+}
@@ -0,0 +1,290 @@
+package jrtr.swrenderer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import jrtr.SceneManagerInterface;
+
+/**
+ * Renders scenes with the software renderer without a window, for example
+ * on servers without a display. Use {@link #render} to obtain the rendered
+ * image in memory, or {@link #renderToFile} to write it to disk.
+ * <p>
+ * Images are written by a background thread, so that encoding and writing
+ * a frame overlaps with rendering the next one. The rendered pixels are
+ * copied to one of a small pool of images, which is handed to the writer
+ * thread. If the writer falls behind, {@link #renderToFile} waits until an
+ * image of the pool becomes free. Call {@link #finish} to wait until all
+ * images have been written, and {@link #close} to stop all threads of the
+ * renderer.
+ * <p>
+ * Example, rendering a sequence of frames:
+ * <pre>
+ * SWOffscreenRenderer renderer = new SWOffscreenRenderer(640, 480);
+ * for(int i=0; i&lt;n; i++)
+ * {
+ *     // Update the scene...
+ *     renderer.renderToFile(sceneManager, new File(String.format("frame%04d.png", i)));
+ * }
+ * renderer.close();
+ * </pre>
+ */
+public class SWOffscreenRenderer {
+
+	/**
+	 * Number of images that can be waiting to be written while the next
+	 * frame is rendered.
+	 */
+	private static final int POOL_SIZE = 2;
+
+	/**
+	 * An image and the file it needs to be written to. A job without an
+	 * image stops the writer thread.
+	 */
+	private static class WriteJob {
+		final BufferedImage image;
+		final File file;
+
+		WriteJob(BufferedImage image, File file)
+		{
+			this.image = image;
+			this.file = file;
+		}
+	}
+
+	private final SWRenderContext renderContext;
+	private final int width, height;
+	private final String formatName;
+
+	// Images that are free to receive the next frame, and frames to be written
+	private final BlockingQueue<BufferedImage> freeImages;
+	private final BlockingQueue<WriteJob> writeJobs;
+	private final Thread writer;
+	private volatile boolean closed;
+
+	/**
+	 * The first error of the writer thread, it is reported by the next call
+	 * to {@link #renderToFile}, {@link #finish} or {@link #close}. Runtime
+	 * exceptions and errors of the image writers are wrapped in an
+	 * IOException, and the writer thread continues with the next image.
+	 */
+	private volatile IOException writeError;
+
+	/**
+	 * Make an offscreen renderer that writes PNG images.
+	 *
+	 * @param width the width of the images in pixels
+	 * @param height the height of the images in pixels
+	 */
+	public SWOffscreenRenderer(int width, int height)
+	{
+		this(width, height, "png");
+	}
+
+	/**
+	 * Make an offscreen renderer.
+	 *
+	 * @param width the width of the images in pixels
+	 * @param height the height of the images in pixels
+	 * @param formatName the informal name of the image format, as used by
+	 * 		{@link ImageIO#write}, for example "png" or "bmp"
+	 */
+	public SWOffscreenRenderer(int width, int height, String formatName)
+	{
+		if(!ImageIO.getImageWritersByFormatName(formatName).hasNext())
+			throw new IllegalArgumentException("No image writer for format '" + formatName + "'");
+
+		this.width = width;
+		this.height = height;
+		this.formatName = formatName;
+		renderContext = new SWRenderContext();
+		renderContext.setViewportSize(width, height);
+
+		freeImages = new ArrayBlockingQueue<BufferedImage>(POOL_SIZE);
+		for(int i=0; i<POOL_SIZE; i++)
+			freeImages.add(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+		writeJobs = new ArrayBlockingQueue<WriteJob>(POOL_SIZE+1);
+
+		writer = new Thread(new Runnable() {
+			public void run()
+			{
+				writeImages();
+			}
+		}, "SWOffscreenRenderer writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Return the render context, for example to set rendering options.
+	 */
+	public SWRenderContext getRenderContext()
+	{
+		return renderContext;
+	}
+
+	/**
+	 * Render a scene to memory. The returned image is overwritten by the
+	 * next call to this method or {@link #renderToFile}.
+	 *
+	 * @return the rendered image
+	 */
+	public BufferedImage render(SceneManagerInterface sceneManager)
+	{
+		if(closed)
+			throw new IllegalStateException("The renderer has been closed");
+
+		renderContext.setSceneManager(sceneManager);
+		renderContext.display();
+		return renderContext.getColorBuffer();
+	}
+
+	/**
+	 * Render a scene and write the image to a file. This returns as soon as
+	 * the scene is rendered, the file is written in the background.
+	 *
+	 * @throws IOException if writing an earlier image failed, or if the
+	 * 		writer thread has stopped
+	 * @throws InterruptedException if interrupted while waiting for the writer
+	 */
+	public void renderToFile(SceneManagerInterface sceneManager, File file) throws IOException, InterruptedException
+	{
+		if(closed)
+			throw new IllegalStateException("The renderer has been closed");
+		checkWriteError();
+		if(!writer.isAlive())
+			throw new IOException("The writer thread has stopped");
+		render(sceneManager);
+
+		// Copy the frame, so that the next frame can be rendered while it
+		// is written
+		BufferedImage image = takeFreeImage();
+		int[] src = renderContext.getColorBufferData();
+		int[] dst = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		System.arraycopy(src, 0, dst, 0, width*height);
+		writeJobs.put(new WriteJob(image, file));
+	}
+
+	/**
+	 * Wait until all images have been written.
+	 *
+	 * @throws IOException if writing an image failed, or if the writer
+	 * 		thread has stopped before writing all images
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void finish() throws IOException, InterruptedException
+	{
+		// All images are back in the pool when they have been written
+		BufferedImage[] images = new BufferedImage[POOL_SIZE];
+		int n = 0;
+		try {
+			while(n < POOL_SIZE)
+			{
+				images[n] = takeFreeImage();
+				n++;
+			}
+		} finally {
+			for(int i=0; i<n; i++)
+				freeImages.add(images[i]);
+		}
+		checkWriteError();
+	}
+
+	/**
+	 * Wait until all images have been written, and stop the writer thread
+	 * and the rasterization threads of the render context.
+	 *
+	 * @throws IOException if writing an image failed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void close() throws IOException, InterruptedException
+	{
+		closed = true;
+		renderContext.shutdown();
+		if(writer.isAlive())
+		{
+			writeJobs.put(new WriteJob(null, null));
+			writer.join();
+		}
+		checkWriteError();
+	}
+
+	private void checkWriteError() throws IOException
+	{
+		IOException e = writeError;
+		if(e != null)
+		{
+			writeError = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Take an image from the pool, waiting until the writer thread has
+	 * written one if necessary. If the writer thread has stopped, the images
+	 * it has not written never return to the pool, so this does not wait
+	 * for them.
+	 *
+	 * @throws IOException if the writer thread has stopped and the pool is
+	 * 		empty
+	 */
+	private BufferedImage takeFreeImage() throws IOException, InterruptedException
+	{
+		while(true)
+		{
+			BufferedImage image = freeImages.poll(100, TimeUnit.MILLISECONDS);
+			if(image != null) return image;
+			if(!writer.isAlive())
+			{
+				checkWriteError();
+				throw new IOException("The writer thread has stopped");
+			}
+		}
+	}
+
+	/**
+	 * The loop of the writer thread. Errors while writing an image are
+	 * stored in {@link #writeError}, and the loop continues, so that the
+	 * image always returns to the pool.
+	 */
+	private void writeImages()
+	{
+		while(true)
+		{
+			WriteJob job;
+			try {
+				job = writeJobs.take();
+			} catch(InterruptedException e) {
+				return;
+			}
+			if(job.image == null) return;
+
+			try {
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(job.file));
+				try {
+					ImageIO.write(job.image, formatName, out);
+				} finally {
+					out.close();
+				}
+			} catch(IOException e) {
+				if(writeError == null) writeError = e;
+			} catch(RuntimeException e) {
+				if(writeError == null) writeError = new IOException("Writing " + job.file + " failed", e);
+			} catch(Error e) {
+				if(writeError == null) writeError = new IOException("Writing " + job.file + " failed", e);
+			} finally {
+				freeImages.add(job.image);
+			}
+		}
+	}
+}
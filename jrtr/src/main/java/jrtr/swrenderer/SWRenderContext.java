@@ -1,5 +1,6 @@
 package jrtr.swrenderer;
 
+import jrtr.InstancedShape;
 import jrtr.RenderContext;
 import jrtr.RenderItem;
 import jrtr.SceneManagerInterface;
@@ -7,12 +8,13 @@ import jrtr.SceneManagerIterator;
 import jrtr.Shader;
 import jrtr.Texture;
 import jrtr.VertexData;
-import jrtr.Material;
 
 import java.awt.image.*;
 import javax.vecmath.*;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.LockSupport;
 
 
 /**
@@ -20,34 +22,229 @@ import java.util.ListIterator;
  * {@link SWRenderPanel}, which displays the output image. In project 2 
  * you will implement your own rasterizer in this class.
  * <p>
+ * Rendering proceeds in two stages. First, all triangles of the scene are
+ * transformed to screen space by {@link SWVertexStage}, which also culls
+ * invisible objects and triangles, and sorted into the bins of screen tiles
+ * ({@link SWTileBinner}). Then the tiles are rasterized in parallel by
+ * several {@link SWTileRasterizer} workers.
+ * <p>
+ * With deferred shading (see {@link #setDeferredShading}), the rasterizers
+ * write the surface attributes to a geometry buffer ({@link SWGBuffer})
+ * instead of colors. The visible pixels are then lit in a third stage,
+ * again in parallel over the tiles, by {@link SWDeferredShader} workers.
+ * <p>
+ * The triangles, bins and lights of a frame are stored in an {@link SWFrame}.
+ * There are two frames, so that the scene can be traversed for the next 
+ * frame while the current one is rasterized on the worker threads. 
+ * {@link #display()} performs all stages one after another, 
+ * {@link SWRenderThread} overlaps them.
+ * <p>
+ * Edges can be antialiased with multisampling (see {@link #setMultisampling}).
+ * <p>
  * To use the software renderer, you will simply replace {@link GLRenderPanel} 
  * with {@link SWRenderPanel} in the user application.
  */
 public class SWRenderContext implements RenderContext {
 
 	private SceneManagerInterface sceneManager;
+	
+	/**
+	 * The image that {@link #display()} renders to. The rasterizer writes
+	 * directly to the pixels of the image, i.e., the backing array of the
+	 * {@link BufferedImage}, where each pixel is stored as an int in 
+	 * 0xRRGGBB format.
+	 */
 	private BufferedImage colorBuffer;
-	private int[] zeroColorBuffer;
 	private int width, height;
 	
+	/**
+	 * The depth buffer stores the depth in [0,1] of the closest surface at 
+	 * each pixel. The coarse level of the hierarchical depth buffer stores
+	 * the maximum depth of each block of {@link SWTileRasterizer#BLOCK_SIZE}^2 
+	 * pixels. The maximum depth of each tile is stored in the {@link SWTile}.
+	 */
+	private float[] depthBuffer;
+	private float[] blockMaxDepth;
+	private int blocksX;
+	
+	/**
+	 * With multisampling, the depth buffer stores the depth of each sample,
+	 * and the colors of the samples are stored here. The samples of a pixel
+	 * are stored one after another. 
+	 */
+	private int[] sampleColors;
+	private int multisampling;
+	
+	// The vector implementation of span shading, or null if the vector API
+	// is not available
+	private final SWSpanShader spanShader;
+	private boolean spanShading;
+	
 	// Rendering pipeline state variables
 	private Matrix4f viewportMatrix;
 	private Matrix4f projectionMatrix;
-	private float[] vertexColor;
-	private float[] vertexNormal;
-	private float[] vertexTexCoords;
+	
+	// The counters of the last frame that has been rasterized completely,
+	// the frames collect their own counters while they are processed
+	private SWRenderStatistics statistics;
+	
+	// Vertex, binning and rasterization stages
+	private SWVertexStage vertexStage;
+	private RenderItem instanceItem;
+	private Matrix4f instanceTransformation;
+	private ForkJoinPool rasterPool;
+	private SWTileRasterizer[] rasterizers;
+	private ParallelStage rasterStage;
+	
+	// Deferred shading stage
+	private boolean deferredShading;
+	private SWGBuffer gBuffer;
+	private ParallelStage shadingStage;
+	private Matrix4f screenToCamera;
+	
+	// The frame that the vertex stage writes to and the frame that is 
+	// rasterized, and the task that rasterizes it. The task signals the 
+	// waiting thread itself when it is done, since ForkJoinTask.join 
+	// allocates memory whenever it has to block.
+	private SWFrame[] frames;
+	private SWFrame traversedFrame, rasterizedFrame;
+	private RasterizeFrame rasterizeFrame;
+	private boolean framePending;
+	private volatile boolean frameDone;
+	private volatile Thread frameWaiter;
+	private Throwable frameError;
+	
+	/**
+	 * Starts all workers of a stage and waits until every tile is done.
+	 */
+	private static class ParallelStage extends RecursiveAction {
+		
+		static final long serialVersionUID = 0;
+		
+		private final RecursiveAction[] workers;
+		
+		ParallelStage(RecursiveAction[] workers)
+		{
+			this.workers = workers;
+		}
+		
+		protected void compute()
+		{
+			for(int i=0; i<workers.length; i++)
+				workers[i].reinitialize();
+			invokeAll(workers);
+		}
+	}
+	
+	/**
+	 * Clears the frame buffer and runs the rasterization stage and the
+	 * deferred shading stage for the rasterized frame.
+	 */
+	private class RasterizeFrame extends RecursiveAction {
+		
+		static final long serialVersionUID = 0;
+		
+		protected void compute()
+		{
+			try {
+				rasterizeFrame();
+			} catch(Throwable e) {
+				frameError = e;
+			} finally {
+				frameDone = true;
+				Thread waiter = frameWaiter;
+				if(waiter != null)
+					LockSupport.unpark(waiter);
+			}
+		}
+		
+		private void rasterizeFrame()
+		{
+			// Clear framebuffer. Filling the pixel array directly avoids the 
+			// per pixel color model conversions of BufferedImage.setRGB.
+			Arrays.fill(rasterizedFrame.getColorBufferData(), 0);
+			Arrays.fill(depthBuffer, 1.f);
+			Arrays.fill(blockMaxDepth, 1.f);
+			if(sampleColors != null)
+				Arrays.fill(sampleColors, 0);
+			
+			// Rasterize the binned triangles, the tiles are processed in parallel
+			rasterizedFrame.binner.rewind();
+			rasterStage.reinitialize();
+			rasterStage.invoke();
+			
+			// Light the visible pixels
+			if(deferredShading)
+			{
+				rasterizedFrame.binner.rewind();
+				shadingStage.reinitialize();
+				shadingStage.invoke();
+			}
+			
+			statistics.set(rasterizedFrame.statistics);
+		}
+	}
 	
 	public SWRenderContext()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Make a render context that rasterizes with a given number of threads.
+	 * 
+	 * @param nThreads the number of rasterization threads
+	 */
+	public SWRenderContext(int nThreads)
 	{
 		// Initialize rendering pipeline state variables to default values
 		projectionMatrix = new Matrix4f();
 		viewportMatrix = new Matrix4f();
-		vertexColor = new float[3];
-		vertexColor[0] = 1.f;
-		vertexColor[1] = 1.f;
-		vertexColor[2] = 1.f;
-		vertexNormal = new float[3];
-		vertexTexCoords = new float[2];
+		
+		statistics = new SWRenderStatistics();
+		vertexStage = new SWVertexStage();
+		instanceTransformation = new Matrix4f();
+		instanceItem = new RenderItem(null, null);
+		frames = new SWFrame[] {new SWFrame(), new SWFrame()};
+		traversedFrame = rasterizedFrame = frames[0];
+		rasterizeFrame = new RasterizeFrame();
+		rasterPool = new ForkJoinPool(nThreads);
+		rasterizers = new SWTileRasterizer[nThreads];
+		for(int i=0; i<nThreads; i++)
+			rasterizers[i] = new SWTileRasterizer(this);
+		rasterStage = new ParallelStage(rasterizers);
+		
+		screenToCamera = new Matrix4f();
+		SWDeferredShader[] shaders = new SWDeferredShader[nThreads];
+		for(int i=0; i<nThreads; i++)
+			shaders[i] = new SWDeferredShader(this);
+		shadingStage = new ParallelStage(shaders);
+		deferredShading = false;
+		multisampling = 1;
+		spanShader = loadSpanShader();
+		spanShading = false;
+	}
+	
+	/**
+	 * Load the vector implementation of {@link SWSpanShader} if the module
+	 * of the vector API is available, i.e., if it has been added with
+	 * <code>--add-modules jdk.incubator.vector</code>. The class is loaded
+	 * by name, because it is only compiled with JDK 16 or later.
+	 * 
+	 * @return the span shader, or null if it is not available
+	 */
+	private static SWSpanShader loadSpanShader()
+	{
+		try {
+			Class.forName("jdk.incubator.vector.FloatVector");
+			return (SWSpanShader)Class.forName("jrtr.swrenderer.SWVectorSpanShader").getDeclaredConstructor().newInstance();
+		} catch(ReflectiveOperationException e) {
+			return null;
+		} catch(LinkageError e) {
+			return null;
+		} catch(UnsupportedOperationException e) {
+			return null;
+		}
 	}
 	
 	public void setSceneManager(SceneManagerInterface sceneManager)
@@ -63,16 +260,95 @@ public class SWRenderContext implements RenderContext {
 	{
 		if(sceneManager == null) return;
 		
-		beginFrame();
+		traverse();
+		rasterize(colorBuffer);
+		finishFrame();
+	}
 	
+	/**
+	 * Traverse the scene and pass all render items through the vertex stage
+	 * into the frame that is not being rasterized. This may be called while
+	 * the previous frame is rasterized by {@link #rasterize}. Without a 
+	 * scene manager, the frame is empty.
+	 */
+	void traverse()
+	{
+		traversedFrame = (framePending && rasterizedFrame == frames[0]) ? frames[1] : frames[0];
+		
+		if(sceneManager == null)
+		{
+			traversedFrame.clear();
+			return;
+		}
+		beginFrame();
+		
 		SceneManagerIterator iterator = sceneManager.iterator();	
 		while(iterator.hasNext())
 		{
 			draw(iterator.next());
-		}		
+		}
+		
+		if(deferredShading)
+			traversedFrame.lights.set(sceneManager.lightIterator(), screenToCamera());
 		
 		endFrame();
 	}
+	
+	/**
+	 * Start rasterizing the frame that was last traversed on the worker 
+	 * threads, and return without waiting. The previous frame is finished
+	 * first.
+	 * 
+	 * @param target the image to rasterize into, of the size of the viewport
+	 */
+	void rasterize(BufferedImage target)
+	{
+		finishFrame();
+		rasterizedFrame = traversedFrame;
+		rasterizedFrame.setColorBuffer(target);
+		rasterizeFrame.reinitialize();
+		frameDone = false;
+		framePending = true;
+		rasterPool.execute(rasterizeFrame);
+	}
+	
+	/**
+	 * Wait until the rasterization started by {@link #rasterize} is done.
+	 * Exceptions of the rasterization are thrown here. Only one thread may
+	 * wait at a time.
+	 */
+	void finishFrame()
+	{
+		if(!framePending) return;
+		frameWaiter = Thread.currentThread();
+		while(!frameDone)
+			LockSupport.park(this);
+		frameWaiter = null;
+		// The pool marks the task as done only after compute returns, and 
+		// the task must not be reinitialized before that
+		while(!rasterizeFrame.isDone())
+			Thread.yield();
+		framePending = false;
+		
+		Throwable e = frameError;
+		frameError = null;
+		if(e instanceof RuntimeException)
+			throw (RuntimeException)e;
+		if(e instanceof Error)
+			throw (Error)e;
+	}
+
+	/**
+	 * Wait for the current frame and stop the rasterization threads. The 
+	 * render context cannot display frames afterwards. Call this when the
+	 * render context is no longer needed, the threads are not stopped 
+	 * otherwise.
+	 */
+	public void shutdown()
+	{
+		finishFrame();
+		rasterPool.shutdown();
+	}
 
 	/**
 	 * This is called by the {@link SWJPanel} to obtain the color buffer that
@@ -83,12 +359,221 @@ public class SWRenderContext implements RenderContext {
 		return colorBuffer;
 	}
 	
+	/**
+	 * Return the counters of the last frame whose rasterization has 
+	 * finished. The returned object is updated when the next frame is 
+	 * finished, use {@link SWRenderStatistics#set} to keep a copy.
+	 */
+	public SWRenderStatistics getStatistics()
+	{
+		return statistics;
+	}
+	
+	/**
+	 * Enable or disable culling of triangles that face away from the camera.
+	 * Front faces have counterclockwise vertex order as seen from the camera. 
+	 * Culling is disabled by default, like in the OpenGL renderer,
+	 * because it only gives correct images for closed and consistently 
+	 * oriented meshes.
+	 */
+	public void setBackfaceCulling(boolean backfaceCulling)
+	{
+		vertexStage.setBackfaceCulling(backfaceCulling);
+	}
+	
+	public boolean isBackfaceCulling()
+	{
+		return vertexStage.isBackfaceCulling();
+	}
+	
+	/**
+	 * Enable or disable deferred shading, which is disabled by default.
+	 * Without deferred shading, pixels get the interpolated vertex color
+	 * times the diffuse map, and lights are ignored. With deferred shading,
+	 * this color is lit by the lights of the scene. Each visible pixel is 
+	 * lit once, after all triangles have been rasterized, so the cost of 
+	 * lighting does not depend on how many triangles cover a pixel.
+	 */
+	public void setDeferredShading(boolean deferredShading)
+	{
+		finishFrame();
+		this.deferredShading = deferredShading;
+		if(deferredShading && gBuffer == null && width > 0)
+			gBuffer = new SWGBuffer(width, height);
+		if(!deferredShading)
+			gBuffer = null;
+		if(width > 0)
+			allocateSampleBuffers();
+	}
+	
+	public boolean isDeferredShading()
+	{
+		return deferredShading;
+	}
+	
+	/**
+	 * Set the number of samples per pixel for multisampling antialiasing,
+	 * which is 1 (no antialiasing) by default. With 4 or 8 samples, the
+	 * coverage and depth of each triangle are determined at each sample, 
+	 * but the triangle is shaded only once per pixel. The image is the 
+	 * average of the samples of each pixel. Multisampling is not available
+	 * with deferred shading, which always uses one sample per pixel.
+	 * 
+	 * @param samples the number of samples per pixel, 1, 4 or 8
+	 */
+	public void setMultisampling(int samples)
+	{
+		if(samples != 1 && samples != 4 && samples != 8)
+			throw new IllegalArgumentException("Unsupported number of samples: " + samples);
+		finishFrame();
+		multisampling = samples;
+		if(width > 0)
+			allocateSampleBuffers();
+	}
+	
+	public int getMultisampling()
+	{
+		return multisampling;
+	}
+	
+	/**
+	 * Enable or disable span shading, which is disabled by default. The
+	 * pixels of untextured triangles are then depth tested and shaded 8 
+	 * pixels at a time, one row of a block, with the vector API of the JDK.
+	 * Textured triangles, and all triangles with multisampling or deferred 
+	 * shading, are shaded one pixel at a time. The images differ at most in
+	 * the rounding of a few pixels.
+	 * <p>
+	 * Span shading needs JDK 16 or later at compile time, and the module 
+	 * <code>jdk.incubator.vector</code> at run time, which is added with 
+	 * the JVM option <code>--add-modules jdk.incubator.vector</code>.
+	 * 
+	 * @throws UnsupportedOperationException if span shading is enabled
+	 * but not supported, see {@link #isSpanShadingSupported}
+	 */
+	public void setSpanShading(boolean spanShading)
+	{
+		if(spanShading && spanShader == null)
+			throw new UnsupportedOperationException("Span shading needs the module jdk.incubator.vector");
+		finishFrame();
+		this.spanShading = spanShading;
+	}
+	
+	public boolean isSpanShading()
+	{
+		return spanShading;
+	}
+	
+	public boolean isSpanShadingSupported()
+	{
+		return spanShader != null;
+	}
+	
+	/**
+	 * @return the span shader, or null if span shading is disabled
+	 */
+	SWSpanShader getSpanShader()
+	{
+		return spanShading ? spanShader : null;
+	}
+	
+	/**
+	 * @return the number of samples per pixel that are rasterized
+	 */
+	int getSampleCount()
+	{
+		return deferredShading ? 1 : multisampling;
+	}
+	
+	/**
+	 * @return the colors of the samples, or null without multisampling
+	 */
+	int[] getSampleColors()
+	{
+		return sampleColors;
+	}
+	
+	/**
+	 * @return the geometry buffer, or null if deferred shading is disabled
+	 */
+	SWGBuffer getGBuffer()
+	{
+		return gBuffer;
+	}
+	
+	SWLights getLights()
+	{
+		return rasterizedFrame.lights;
+	}
+	
+	/**
+	 * Compute the transformation from screen coordinates to camera 
+	 * coordinates, the inverse of the viewport matrix times the projection
+	 * matrix.
+	 */
+	private Matrix4f screenToCamera()
+	{
+		screenToCamera.mul(viewportMatrix, projectionMatrix);
+		screenToCamera.invert();
+		return screenToCamera;
+	}
+	
+	/**
+	 * @return the pixels of the image that the current frame is rasterized into
+	 */
+	int[] getColorBufferData()
+	{
+		return rasterizedFrame.getColorBufferData();
+	}
+	
+	float[] getDepthBuffer()
+	{
+		return depthBuffer;
+	}
+	
+	float[] getBlockMaxDepth()
+	{
+		return blockMaxDepth;
+	}
+	
+	int getBlocksX()
+	{
+		return blocksX;
+	}
+	
+	int getWidth()
+	{
+		return width;
+	}
+	
+	int getHeight()
+	{
+		return height;
+	}
+	
+	SWTriangleBuffer getTriangles()
+	{
+		return rasterizedFrame.triangles;
+	}
+	
+	SWTileBinner getBinner()
+	{
+		return rasterizedFrame.binner;
+	}
+	
+	SWRenderStatistics getFrameStatistics()
+	{
+		return rasterizedFrame.statistics;
+	}
+	
 	/**
 	 * Set a new viewport size. The render context will also need to store
 	 * a viewport matrix, which you need to reset here. 
 	 */
 	public void setViewportSize(int width, int height)
 	{
+		finishFrame();
+		
 		this.width = width;
 		this.height = height;
 		
@@ -105,19 +590,40 @@ public class SWRenderContext implements RenderContext {
 		viewportMatrix.setElement(2,3,.5f);
 		
 		// Allocate framebuffer
-		colorBuffer = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-		zeroColorBuffer = new int[width*height];
+		colorBuffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		allocateSampleBuffers();
+		blocksX = (width + SWTileRasterizer.BLOCK_SIZE - 1) / SWTileRasterizer.BLOCK_SIZE;
+		int blocksY = (height + SWTileRasterizer.BLOCK_SIZE - 1) / SWTileRasterizer.BLOCK_SIZE;
+		blockMaxDepth = new float[blocksX*blocksY];
+		if(deferredShading)
+			gBuffer = new SWGBuffer(width, height);
+		
+		for(int i=0; i<frames.length; i++)
+			frames[i].binner.setViewportSize(width, height);
+	}
+	
+	/**
+	 * Allocate the depth buffer and the sample colors for the current 
+	 * number of samples.
+	 */
+	private void allocateSampleBuffers()
+	{
+		int samples = getSampleCount();
+		depthBuffer = new float[width*height*samples];
+		sampleColors = samples > 1 ? new int[width*height*samples] : null;
 	}
 		
 	/**
-	 * Clear the framebuffer here.
+	 * Prepare the vertex stage and the traversed frame. The framebuffer is
+	 * cleared when the frame is rasterized.
 	 */
 	private void beginFrame()
 	{
 		projectionMatrix = sceneManager.getFrustum().getProjectionMatrix();
 		
-		// Clear framebuffer
-		colorBuffer.setRGB(0, 0, width, height, zeroColorBuffer, 0, width);
+		// Remove the triangles and counters of the previous frame
+		traversedFrame.clear();
+		vertexStage.beginFrame(viewportMatrix, projectionMatrix, sceneManager.getCamera().getCameraMatrix(), traversedFrame.statistics);
 	}
 	
 	private void endFrame()
@@ -125,118 +631,31 @@ public class SWRenderContext implements RenderContext {
 	}
 	
 	/**
-	 * The main rendering method. This collects all information necessary to render each triangle
-	 * and calls @drawTriangle to perform the rasterization.
+	 * The main rendering method. The vertex stage transforms the vertices of the render
+	 * item and passes its triangles to the binning stage. The triangles are rasterized 
+	 * later by {@link SWTileRasterizer}. The instances of an {@link InstancedShape}
+	 * are drawn one by one, and their vertex colors are multiplied by the color of
+	 * the instance. There is no blending, so its alpha is ignored.
 	 */
 	private void draw(RenderItem renderItem)
 	{
-		VertexData vertexData = renderItem.getShape().getVertexData();
-		LinkedList<VertexData.VertexElement> vertexElements = vertexData.getElements();
-		int indices[] = vertexData.getIndices();
-
-		// Don't draw if there are no indices
-		if(indices == null) return;
-		
-		// Vertex attributes for a triangle
-		float[][] colors = new float[3][3];
-		float[][] positions = new float[3][4];
-		float[][] normals = new float[3][3];
-		float[][] texCoords = new float[3][2];
-
-		// Construct full transformation matrix
-		Matrix4f t= new Matrix4f(viewportMatrix);
-		t.mul(projectionMatrix);
-		t.mul(sceneManager.getCamera().getCameraMatrix());
-		t.mul(renderItem.getT());
-	     
-        // Draw geometry
-		int k = 0;	// index of triangle vertex
-		for(int j=0; j<indices.length; j++)
-		{
-			int i = indices[j];
-			
-			// Iterate over vertex elements, i.e., position, color, normal, texture, etc.
-			ListIterator<VertexData.VertexElement> itr = vertexElements.listIterator(0);
-			while(itr.hasNext())
-			{
-				VertexData.VertexElement e = itr.next();
-				if(e.getSemantic() == VertexData.Semantic.POSITION)
-				{
-					Vector4f p = new Vector4f(e.getData()[i*3],e.getData()[i*3+1],e.getData()[i*3+2],1);
-					t.transform(p);
-					positions[k][0] = p.x;
-					positions[k][1] = p.y;
-					positions[k][2] = p.z;
-					positions[k][3] = p.w;
-	
-					// Assign the other "state variables" to the current vertex
-					colors[k][0] = vertexColor[0];
-					colors[k][1] = vertexColor[1];
-					colors[k][2] = vertexColor[2];
-					
-					normals[k][0] = vertexNormal[0];
-					normals[k][1] = vertexNormal[1];
-					normals[k][2] = vertexNormal[2];
-			
-					texCoords[k][0] = vertexTexCoords[0];
-					texCoords[k][1] = vertexTexCoords[1];
-					
-					k++;
-				}
-				// Read the "state variables" for color, normals, textures, if they are available
-				if(e.getSemantic() == VertexData.Semantic.COLOR)
-				{
-					vertexColor[0] = e.getData()[i*3];
-					vertexColor[1] = e.getData()[i*3+1];
-					vertexColor[2] = e.getData()[i*3+2];
-				}
-				if(e.getSemantic() == VertexData.Semantic.NORMAL)
-				{
-					vertexNormal[0] = e.getData()[i*3];
-					vertexNormal[1] = e.getData()[i*3+1];
-					vertexNormal[2] = e.getData()[i*3+2];
-				}
-				if(e.getSemantic() == VertexData.Semantic.TEXCOORD)
-				{
-					vertexTexCoords[0] = e.getData()[i*2];
-					vertexTexCoords[1] = e.getData()[i*2+1];
-				}
-			}
-			
-			if(k == 3)
-			{
-				drawTriangle(positions, colors, normals, texCoords, renderItem.getShape().getMaterial());
-				k = 0;
-			}
-		}
-	}
-	
-	/**
-	 * Draw a triangle. Implement triangle rasterization here. You will need to include a z-buffer to 
-	 * resolve visibility.  
-	 */
-	void drawTriangle(float positions[][], float colors[][], float normals[][], float texCoords[][], Material mat)
-	{							
-		// Project vertices and draw. This is only for demonstration purposes and needs to be replace
-		// by your triangle rasterization code.
-		for(int i=0; i<3; i++)	
+		if(renderItem.getShape() instanceof InstancedShape)
 		{
-			if(positions[i][3]!=0)
+			InstancedShape shape = (InstancedShape)renderItem.getShape();
+			float[] d = shape.getInstanceData();
+			for(int i=0; i<shape.getInstanceCount(); i++)
 			{
-				// Project vertex to pixel coordinates by dividing by the w coordinate.
-				int vx = (int)(positions[i][0]/positions[i][3]);
-				int vy = (int)(positions[i][1]/positions[i][3]);
-							
-				if(vx>=0 && vx<width && vy>=0 && vy<height)
-				{
-					// Draw the pixel using the vertex color.
-					// colorBuffer.setRGB(vx, vy, ((int)(255.f*colors[i][0]) << 16) | ((int)(255.f*colors[i][1]) << 8) | ((int)(255.f*colors[i][2])));
-					
-					// Draw vertices in white for better visibility
-					colorBuffer.setRGB(vx, vy, ((int)(255) << 16) | ((int)(255) << 8) | ((int)(255)));
-				}
+				int o = i*InstancedShape.FLOATS_PER_INSTANCE + 16;
+				shape.getInstanceTransformation(i, instanceTransformation);
+				instanceTransformation.mul(renderItem.getT(), instanceTransformation);
+				instanceItem.set(shape, instanceTransformation);
+				vertexStage.setColor(d[o], d[o+1], d[o+2]);
+				vertexStage.draw(instanceItem, traversedFrame.triangles, traversedFrame.binner);
 			}
+			vertexStage.setColor(1.f, 1.f, 1.f);
 		}
+		else
+			vertexStage.draw(renderItem, traversedFrame.triangles, traversedFrame.binner);
 	}
 	
 	/**
@@ -262,7 +681,8 @@ public class SWRenderContext implements RenderContext {
 	}
 
 	/**
-	 * Does nothing. We will not implement textures for the software renderer.
+	 * Make a texture for the software renderer. Diffuse maps of materials 
+	 * are multiplied with the vertex colors.
 	 */
 	public Texture makeTexture()
 	{
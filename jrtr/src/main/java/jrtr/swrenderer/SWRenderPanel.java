@@ -16,11 +16,16 @@ import jrtr.glrenderer.GLRenderPanel;
  * renderer instead of the OpenGL renderer in your application, you will 
  * simply derive your render panel from {@link SWRenderPanel} instead of
  * {@link GLRenderPanel}.
+ * <p>
+ * By default, a frame is rendered whenever the canvas is repainted, on the
+ * Swing event dispatch thread. Call {@link #startRenderThread} to render
+ * frames continuously on a separate thread instead.
  */
 public abstract class SWRenderPanel implements RenderPanel {
 
 	private SWJPanel canvas;
 	private SWRenderContext renderContext;
+	private SWRenderThread renderThread;
 	
 	public SWRenderPanel()
 	{
@@ -41,6 +46,40 @@ public abstract class SWRenderPanel implements RenderPanel {
 		return canvas;
 	}
 
+	/**
+	 * Start rendering frames continuously on a separate render thread,
+	 * which also calls <code>executeStep</code> at fixed time intervals.
+	 * Traversing the scene for a frame overlaps with rasterizing the 
+	 * previous frame, and the canvas shows the latest complete frame
+	 * without waiting for rendering. Changes to the scene should be made
+	 * in <code>executeStep</code>, which runs on the render thread.
+	 */
+	public void startRenderThread()
+	{
+		if(renderThread != null) return;
+		renderThread = new SWRenderThread(this, renderContext, canvas);
+		renderThread.setViewportSize(renderContext.getWidth(), renderContext.getHeight());
+		canvas.setRenderThread(renderThread);
+		renderThread.start();
+	}
+	
+	/**
+	 * Stop the render thread and wait until it has finished its last frame.
+	 * Afterwards, frames are rendered when the canvas is repainted.
+	 */
+	public void stopRenderThread()
+	{
+		if(renderThread == null) return;
+		renderThread.finish();
+		try {
+			renderThread.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		canvas.setRenderThread(null);
+		renderThread = null;
+	}
+
 	/**
 	 * This needs to be implemented by the derived class.
 	 */
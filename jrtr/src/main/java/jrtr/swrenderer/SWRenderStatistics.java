@@ -0,0 +1,184 @@
+package jrtr.swrenderer;
+
+/**
+ * Counters collected by the {@link SWRenderContext} while rendering a
+ * frame. Each frame that is being processed has its own counters. When 
+ * the rasterization of a frame has finished, its counters are copied to 
+ * the counters returned by {@link SWRenderContext#getStatistics()}, so 
+ * these always describe one complete frame, also when frames are rendered
+ * by a {@link SWRenderThread}. The getters are synchronized with the copy.
+ */
+public class SWRenderStatistics {
+
+	private long vertexCacheHits;
+	private long vertexCacheMisses;
+	private long triangles;
+	private long clippedTriangles;
+	private long backfacingTriangles;
+	private long culledItems;
+	private long hiZRejectedTriangles;
+	private long hiZRejectedBlocks;
+
+	/**
+	 * Copy the counters of another object.
+	 */
+	public synchronized void set(SWRenderStatistics s)
+	{
+		vertexCacheHits = s.vertexCacheHits;
+		vertexCacheMisses = s.vertexCacheMisses;
+		triangles = s.triangles;
+		clippedTriangles = s.clippedTriangles;
+		backfacingTriangles = s.backfacingTriangles;
+		culledItems = s.culledItems;
+		hiZRejectedTriangles = s.getHiZRejectedTriangles();
+		hiZRejectedBlocks = s.getHiZRejectedBlocks();
+	}
+
+	void reset()
+	{
+		vertexCacheHits = 0;
+		vertexCacheMisses = 0;
+		triangles = 0;
+		clippedTriangles = 0;
+		backfacingTriangles = 0;
+		culledItems = 0;
+		hiZRejectedTriangles = 0;
+		hiZRejectedBlocks = 0;
+	}
+
+	void addVertexCacheHits(long n)
+	{
+		vertexCacheHits += n;
+	}
+
+	void addVertexCacheMisses(long n)
+	{
+		vertexCacheMisses += n;
+	}
+
+	void addTriangles(long n)
+	{
+		triangles += n;
+	}
+
+	void addClippedTriangles(long n)
+	{
+		clippedTriangles += n;
+	}
+
+	void addBackfacingTriangles(long n)
+	{
+		backfacingTriangles += n;
+	}
+
+	void addCulledItems(long n)
+	{
+		culledItems += n;
+	}
+
+	/**
+	 * Add the counters of a rasterization thread. This is called 
+	 * concurrently by all rasterization threads.
+	 */
+	synchronized void addHiZRejections(long triangles, long blocks)
+	{
+		hiZRejectedTriangles += triangles;
+		hiZRejectedBlocks += blocks;
+	}
+
+	/**
+	 * @return the number of vertex references that were served from the
+	 * post-transform vertex cache
+	 */
+	public synchronized long getVertexCacheHits()
+	{
+		return vertexCacheHits;
+	}
+
+	/**
+	 * @return the number of vertices that were transformed, i.e., the number
+	 * of vertex references that were not in the post-transform vertex cache
+	 */
+	public synchronized long getVertexCacheMisses()
+	{
+		return vertexCacheMisses;
+	}
+
+	/**
+	 * @return the fraction of vertex references served from the post-transform
+	 * vertex cache, or 0 if no vertices were processed
+	 */
+	public synchronized float getVertexCacheHitRate()
+	{
+		long n = vertexCacheHits + vertexCacheMisses;
+		return n > 0 ? (float)vertexCacheHits / n : 0.f;
+	}
+
+	/**
+	 * @return the number of triangles of all render items that were not 
+	 * culled by the view frustum test
+	 */
+	public synchronized long getTriangles()
+	{
+		return triangles;
+	}
+
+	/**
+	 * @return the number of triangles that crossed the near plane or the
+	 * guard band and were clipped
+	 */
+	public synchronized long getClippedTriangles()
+	{
+		return clippedTriangles;
+	}
+
+	/**
+	 * @return the number of triangles that were culled because they face
+	 * away from the camera
+	 */
+	public synchronized long getBackfacingTriangles()
+	{
+		return backfacingTriangles;
+	}
+
+	/**
+	 * @return the number of render items that were skipped because their
+	 * bounding sphere is outside of the view frustum
+	 */
+	public synchronized long getCulledItems()
+	{
+		return culledItems;
+	}
+
+	/**
+	 * @return the number of times a triangle was rejected for a whole tile
+	 * by the hierarchical depth buffer, i.e., the triangle was behind all 
+	 * surfaces already drawn in the tile
+	 */
+	public synchronized long getHiZRejectedTriangles()
+	{
+		return hiZRejectedTriangles;
+	}
+
+	/**
+	 * @return the number of blocks of {@link SWTileRasterizer#BLOCK_SIZE}^2 pixels
+	 * that were rejected by the hierarchical depth buffer
+	 */
+	public synchronized long getHiZRejectedBlocks()
+	{
+		return hiZRejectedBlocks;
+	}
+
+	public synchronized String toString()
+	{
+		return "triangles: " + triangles
+				+ ", clipped: " + clippedTriangles
+				+ ", backfacing: " + backfacingTriangles
+				+ ", culled items: " + culledItems
+				+ ", vertex cache hits: " + vertexCacheHits
+				+ ", misses: " + vertexCacheMisses
+				+ String.format(" (hit rate %.1f%%)", 100.f*getVertexCacheHitRate())
+				+ ", Hi-Z rejected triangles: " + getHiZRejectedTriangles()
+				+ ", blocks: " + getHiZRejectedBlocks();
+	}
+}
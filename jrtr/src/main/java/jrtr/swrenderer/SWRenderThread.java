@@ -0,0 +1,161 @@
+package jrtr.swrenderer;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.swing.JPanel;
+
+import jrtr.RenderPanel;
+
+/**
+ * Renders frames continuously, so that the Swing event dispatch thread
+ * only needs to copy finished images to the screen. Like the render loop
+ * of the OpenGL render panel, the thread calls
+ * {@link RenderPanel#executeStep} at fixed time intervals and renders a
+ * frame after each iteration.
+ * <p>
+ * The stages of consecutive frames overlap: the scene is traversed for
+ * frame N+1 on this thread while frame N is rasterized on the worker
+ * threads of the {@link SWRenderContext}. Frames are rendered into a ring
+ * of three images (triple buffering). One image is being rasterized, one
+ * holds the latest complete frame, and one is being shown. When a frame is
+ * complete, its image is exchanged with the latest one, and the panel
+ * exchanges the latest image with the shown one when it repaints. Neither
+ * thread ever waits for the other.
+ * <p>
+ * Since the scene is traversed on this thread, changes to the scene and
+ * to the render context should be made in <code>executeStep</code>.
+ */
+class SWRenderThread extends Thread {
+
+	private final RenderPanel renderPanel;
+	private final SWRenderContext renderContext;
+	private final JPanel canvas;
+
+	// Fixed time step in seconds to call executeStep
+	private final double timeStep;
+
+	// The ring of images and the roles of the images in it
+	private final BufferedImage[] images;
+	private int rasterized, latest, shown;
+	private boolean hasNewFrame;
+
+	private final AtomicReference<Dimension> requestedSize;
+	private volatile boolean running;
+
+	SWRenderThread(RenderPanel renderPanel, SWRenderContext renderContext, JPanel canvas)
+	{
+		super("SWRenderThread");
+		setDaemon(true);
+		this.renderPanel = renderPanel;
+		this.renderContext = renderContext;
+		this.canvas = canvas;
+		timeStep = 0.01d;
+		images = new BufferedImage[3];
+		rasterized = 0;
+		latest = 1;
+		shown = 2;
+		requestedSize = new AtomicReference<Dimension>();
+		running = true;
+	}
+
+	/**
+	 * Request a new viewport size. The size is changed by the render thread
+	 * between two frames.
+	 */
+	void setViewportSize(int width, int height)
+	{
+		requestedSize.set(new Dimension(width, height));
+	}
+
+	/**
+	 * Stop rendering after the current frame.
+	 */
+	void finish()
+	{
+		running = false;
+	}
+
+	/**
+	 * Return the latest complete frame, or null if no frame has been
+	 * completed yet. The image is not modified until the next call.
+	 */
+	synchronized BufferedImage getFrame()
+	{
+		if(hasNewFrame)
+		{
+			int t = shown; shown = latest; latest = t;
+			hasNewFrame = false;
+		}
+		return images[shown];
+	}
+
+	/**
+	 * Make the image that has just been rasterized the latest frame.
+	 */
+	private synchronized void publish()
+	{
+		int t = latest; latest = rasterized; rasterized = t;
+		hasNewFrame = true;
+	}
+
+	public void run()
+	{
+		boolean pending = false;
+		long t0 = System.nanoTime();
+		while(running)
+		{
+			// Resize between frames
+			Dimension size = requestedSize.getAndSet(null);
+			if(size != null)
+			{
+				renderContext.finishFrame();
+				if(pending) publish();
+				pending = false;
+				resize(size.width, size.height);
+			}
+			if(images[rasterized] == null)
+			{
+				try {
+					Thread.sleep(10);
+				} catch(InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+
+			// Execute next time step
+			long t1 = System.nanoTime();
+			if((t1-t0)*1e-9 > timeStep)
+			{
+				renderPanel.executeStep();
+				t0 = t1;
+			}
+
+			// Traverse the scene while the previous frame is rasterized, then
+			// start rasterizing this frame
+			renderContext.traverse();
+			renderContext.finishFrame();
+			if(pending)
+			{
+				publish();
+				canvas.repaint();
+			}
+			renderContext.rasterize(images[rasterized]);
+			pending = true;
+		}
+		renderContext.finishFrame();
+	}
+
+	private void resize(int width, int height)
+	{
+		renderContext.setViewportSize(width, height);
+		synchronized(this)
+		{
+			for(int i=0; i<images.length; i++)
+				images[i] = width > 0 && height > 0 ? new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB) : null;
+			hasNewFrame = false;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package jrtr.swrenderer;
+
+/**
+ * Shades the pixels in one row of a block that are covered by the current
+ * triangle, several pixels at a time. {@link SWTileRasterizer} uses it for
+ * the triangles that are not textured if there is neither multisampling
+ * nor deferred shading, except in the blocks that are cut off by the
+ * border of the image. All other pixels are shaded one at a time.
+ * <p>
+ * The implementation, {@code SWVectorSpanShader}, uses the incubating
+ * vector API of the JDK (module {@code jdk.incubator.vector}). It is
+ * compiled from <code>src/main/java16</code> when the project is built
+ * with JDK 16 or later, and it is only loaded if the module has been
+ * added at run time with <code>--add-modules jdk.incubator.vector</code>,
+ * see {@link SWRenderContext#setSpanShading}.
+ */
+interface SWSpanShader {
+
+	// Offsets of the vertex attributes in the triangle constants, for
+	// vertex i at offset + i
+	static final int Z = 0, INV_W = 3, R = 6, G = 9, B = 12;
+	static final int CONSTANTS = 15;
+
+	// The coverage of a row in which all pixels are covered
+	static final int COVERED = (1 << SWTileRasterizer.BLOCK_SIZE) - 1;
+
+	/**
+	 * Perform the depth test for {@link SWTileRasterizer#BLOCK_SIZE}
+	 * consecutive pixels that are covered by the triangle, and write the perspective correct interpolated
+	 * vertex color of the pixels that pass it to the color buffer.
+	 *
+	 * @param t the depth, 1/w and color of the three vertices of the
+	 * triangle, at the offsets given above
+	 * @param p the index of the first pixel
+	 * @param coverage bit i is set if pixel p+i is covered by the triangle
+	 * @param l1 screen space barycentric coordinate of vertex 1 at the center
+	 * of the first pixel
+	 * @param l2 screen space barycentric coordinate of vertex 2 at the center
+	 * of the first pixel
+	 * @param l1dx increment of l1 per pixel
+	 * @param l2dx increment of l2 per pixel
+	 * @return the number of pixels that passed the depth test
+	 */
+	int shade(float[] t, float[] depthBuffer, int[] colorBuffer, int p, int coverage,
+			float l1, float l2, float l1dx, float l2dx);
+}
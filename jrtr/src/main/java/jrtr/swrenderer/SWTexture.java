@@ -1,15 +1,294 @@
 package jrtr.swrenderer;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
 
+import javax.imageio.ImageIO;
+
 import jrtr.Texture;
 
 /**
- * Manages textures for the software renderer. Not implemented here.
+ * Manages textures for the software renderer. The texture is stored as a
+ * mip pyramid: level 0 is the loaded image, and each further level has half
+ * the width and height of the previous one, down to 1x1 texels. Texels are
+ * stored as ints in 0xRRGGBB format.
+ * <p>
+ * The texels of each level are stored in blocks of {@link #BLOCK_SIZE}^2
+ * texels, each block occupies one cache line. The blocks are stored row by
+ * row, and the texels in a block as well. Compared to storing the rows of
+ * the image one after another, the texels that are read for a pixel and
+ * its neighbors are more likely to be in the same cache lines, no matter
+ * in which direction the texture is traversed on screen. Use {@link #fetch}
+ * to read individual texels.
+ * <p>
+ * As in OpenGL, the texture coordinates (0,0) refer to the lower left
+ * corner of the image, and texture coordinates outside of [0,1] repeat the
+ * texture. Textures are sampled with one of the filters in {@link Filter}.
+ * When the texture is minified, trilinear filtering reads from the two mip
+ * levels whose texel size is closest to the pixel size. These are much
+ * smaller than level 0 for distant surfaces, and they fit in the caches.
  */
 public class SWTexture implements Texture {
 
-	public void load(String fileName) throws IOException {
+	/**
+	 * Texture filters.
+	 */
+	public enum Filter {
+		/**
+		 * The texel closest to the sample point on level 0.
+		 */
+		NEAREST,
+		/**
+		 * Bilinear interpolation on level 0.
+		 */
+		BILINEAR,
+		/**
+		 * Bilinear interpolation on the two closest mip levels, and linear
+		 * interpolation between them.
+		 */
+		TRILINEAR
+	}
+
+	/**
+	 * Width and height of the blocks of texels.
+	 */
+	public static final int BLOCK_SIZE = 4;
+	private static final int BLOCK_BITS = 2;
+
+	// The mip pyramid, level i has size widths[i] x heights[i] and it has
+	// blocksX[i] blocks per row
+	private int[][] levels;
+	private int[] widths, heights, blocksX;
+	private Filter filter;
+
+	public SWTexture()
+	{
+		filter = Filter.TRILINEAR;
+	}
+
+	/**
+	 * Load the texture from an image file and build the mip pyramid.
+	 */
+	public void load(String fileName) throws IOException
+	{
+		BufferedImage img = ImageIO.read(new File(fileName));
+		if(img == null)
+			throw new IOException("Could not read image " + fileName);
+
+		int w = img.getWidth(), h = img.getHeight();
+
+		// Rows are stored bottom to top, so that v = 0 is the bottom of the image
+		int[] level0 = new int[w*h];
+		for(int y=0; y<h; y++)
+			img.getRGB(0, h-1-y, w, 1, level0, y*w, w);
+		for(int i=0; i<level0.length; i++)
+			level0[i] &= 0xFFFFFF;
+
+		int nLevels = 1;
+		while((w >> (nLevels-1)) > 1 || (h >> (nLevels-1)) > 1)
+			nLevels++;
+		levels = new int[nLevels][];
+		widths = new int[nLevels];
+		heights = new int[nLevels];
+		blocksX = new int[nLevels];
+		levels[0] = level0;
+		widths[0] = w;
+		heights[0] = h;
+		for(int i=1; i<nLevels; i++)
+			downsample(i);
+
+		// The pyramid is built with rows one after another, then each level
+		// is rearranged into blocks
+		for(int i=0; i<nLevels; i++)
+			toBlocks(i);
+	}
+
+	/**
+	 * Rearrange level i from rows of texels into blocks. Blocks that extend
+	 * beyond the level are padded.
+	 */
+	private void toBlocks(int i)
+	{
+		int w = widths[i], h = heights[i];
+		blocksX[i] = (w + BLOCK_SIZE-1) >> BLOCK_BITS;
+		int blocksY = (h + BLOCK_SIZE-1) >> BLOCK_BITS;
+		int[] rows = levels[i];
+		int[] blocks = new int[blocksX[i]*blocksY*BLOCK_SIZE*BLOCK_SIZE];
+		for(int y=0; y<h; y++)
+			for(int x=0; x<w; x++)
+				blocks[address(i, x, y)] = rows[y*w+x];
+		levels[i] = blocks;
+	}
+
+	/**
+	 * Return the index of a texel of a mip level in the block layout.
+	 */
+	private int address(int level, int x, int y)
+	{
+		int block = (y >> BLOCK_BITS)*blocksX[level] + (x >> BLOCK_BITS);
+		return (block << 2*BLOCK_BITS) | ((y & (BLOCK_SIZE-1)) << BLOCK_BITS) | (x & (BLOCK_SIZE-1));
+	}
+
+	/**
+	 * Read a texel.
+	 *
+	 * @param level the mip level
+	 * @param x the column, in [0, width of the level)
+	 * @param y the row from the bottom, in [0, height of the level)
+	 * @return the texel in 0xRRGGBB format
+	 */
+	public int fetch(int level, int x, int y)
+	{
+		return levels[level][address(level, x, y)];
+	}
+
+	/**
+	 * Compute mip level i from level i-1 with a 2x2 box filter. For odd
+	 * sizes, the last row or column of level i-1 is not used.
+	 */
+	private void downsample(int i)
+	{
+		int[] src = levels[i-1];
+		int sw = widths[i-1], sh = heights[i-1];
+		int w = Math.max(sw/2, 1), h = Math.max(sh/2, 1);
+		int[] dst = new int[w*h];
+		for(int y=0; y<h; y++)
+		{
+			int y0 = Math.min(2*y, sh-1), y1 = Math.min(2*y+1, sh-1);
+			for(int x=0; x<w; x++)
+			{
+				int x0 = Math.min(2*x, sw-1), x1 = Math.min(2*x+1, sw-1);
+				int c00 = src[y0*sw+x0], c10 = src[y0*sw+x1];
+				int c01 = src[y1*sw+x0], c11 = src[y1*sw+x1];
+				int r = ((c00 >> 16 & 0xFF) + (c10 >> 16 & 0xFF) + (c01 >> 16 & 0xFF) + (c11 >> 16 & 0xFF) + 2) >> 2;
+				int g = ((c00 >> 8 & 0xFF) + (c10 >> 8 & 0xFF) + (c01 >> 8 & 0xFF) + (c11 >> 8 & 0xFF) + 2) >> 2;
+				int b = ((c00 & 0xFF) + (c10 & 0xFF) + (c01 & 0xFF) + (c11 & 0xFF) + 2) >> 2;
+				dst[y*w+x] = (r << 16) | (g << 8) | b;
+			}
+		}
+		levels[i] = dst;
+		widths[i] = w;
+		heights[i] = h;
+	}
+
+	/**
+	 * @return true if an image has been loaded
+	 */
+	public boolean isLoaded()
+	{
+		return levels != null;
 	}
 
+	public void setFilter(Filter filter)
+	{
+		this.filter = filter;
+	}
+
+	public Filter getFilter()
+	{
+		return filter;
+	}
+
+	public int getWidth()
+	{
+		return widths[0];
+	}
+
+	public int getHeight()
+	{
+		return heights[0];
+	}
+
+	public int getNumberOfLevels()
+	{
+		return levels.length;
+	}
+
+	public int getWidth(int level)
+	{
+		return widths[level];
+	}
+
+	public int getHeight(int level)
+	{
+		return heights[level];
+	}
+
+	/**
+	 * Sample the texture with the current filter.
+	 *
+	 * @param u the horizontal texture coordinate
+	 * @param v the vertical texture coordinate
+	 * @param lod the level of detail, i.e., the binary logarithm of the
+	 * 		size of a pixel in texels of level 0
+	 * @return the filtered color in 0xRRGGBB format
+	 */
+	public int sample(float u, float v, float lod)
+	{
+		switch(filter)
+		{
+		case NEAREST:
+			return sampleNearest(0, u, v);
+		case BILINEAR:
+			return sampleBilinear(0, u, v);
+		default:
+			// Magnification, or minification beyond the smallest level
+			if(!(lod > 0)) return sampleBilinear(0, u, v);
+			if(lod >= levels.length-1) return sampleBilinear(levels.length-1, u, v);
+
+			int level = (int)lod;
+			int t = (int)((lod - level)*256);
+			return lerp(sampleBilinear(level, u, v), sampleBilinear(level+1, u, v), t);
+		}
+	}
+
+	/**
+	 * Return the texel of a mip level that is closest to the sample point.
+	 */
+	public int sampleNearest(int level, float u, float v)
+	{
+		int w = widths[level], h = heights[level];
+		int x = wrap((int)Math.floor(u*w), w);
+		int y = wrap((int)Math.floor(v*h), h);
+		return fetch(level, x, y);
+	}
+
+	/**
+	 * Bilinearly interpolate the four texels of a mip level around the
+	 * sample point.
+	 */
+	public int sampleBilinear(int level, float u, float v)
+	{
+		int w = widths[level], h = heights[level];
+
+		// Texel centers are at half integer coordinates
+		float x = u*w - .5f, y = v*h - .5f;
+		float fx = (float)Math.floor(x), fy = (float)Math.floor(y);
+		int tx = (int)((x - fx)*256), ty = (int)((y - fy)*256);
+		int x0 = wrap((int)fx, w), x1 = x0+1 == w ? 0 : x0+1;
+		int y0 = wrap((int)fy, h), y1 = y0+1 == h ? 0 : y0+1;
+
+		int c0 = lerp(fetch(level, x0, y0), fetch(level, x1, y0), tx);
+		int c1 = lerp(fetch(level, x0, y1), fetch(level, x1, y1), tx);
+		return lerp(c0, c1, ty);
+	}
+
+	private static int wrap(int i, int n)
+	{
+		i %= n;
+		return i < 0 ? i+n : i;
+	}
+
+	/**
+	 * Linearly interpolate two colors, with weight t/256 for c1.
+	 */
+	private static int lerp(int c0, int c1, int t)
+	{
+		int r0 = c0 >> 16 & 0xFF, g0 = c0 >> 8 & 0xFF, b0 = c0 & 0xFF;
+		int r = r0 + (((c1 >> 16 & 0xFF) - r0)*t >> 8);
+		int g = g0 + (((c1 >> 8 & 0xFF) - g0)*t >> 8);
+		int b = b0 + (((c1 & 0xFF) - b0)*t >> 8);
+		return (r << 16) | (g << 8) | b;
+	}
 }
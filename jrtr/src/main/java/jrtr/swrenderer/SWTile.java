@@ -0,0 +1,65 @@
+package jrtr.swrenderer;
+
+/**
+ * A rectangular region of the frame buffer. The tile stores the indices of
+ * all triangles that overlap it (its "bin"), in submission order. During
+ * rasterization each tile is processed by exactly one thread, which is
+ * therefore allowed to write to the pixels of the tile without locking.
+ */
+class SWTile {
+
+	/**
+	 * Pixel bounds of the tile, x0 and y0 are inclusive, x1 and y1 exclusive.
+	 */
+	final int x0, y0, x1, y1;
+
+	/**
+	 * The maximum depth in the depth buffer over all pixels of the tile. 
+	 * This is the top level of the hierarchical depth buffer.
+	 */
+	float maxDepth;
+
+	private int[] triangles;
+	private int count;
+
+	SWTile(int x0, int y0, int x1, int y1)
+	{
+		this.x0 = x0;
+		this.y0 = y0;
+		this.x1 = x1;
+		this.y1 = y1;
+		triangles = new int[64];
+		count = 0;
+		maxDepth = 1.f;
+	}
+
+	/**
+	 * Empty the bin and reset the maximum depth to the cleared depth buffer.
+	 */
+	void clear()
+	{
+		count = 0;
+		maxDepth = 1.f;
+	}
+
+	void add(int triangle)
+	{
+		if(count == triangles.length)
+		{
+			int[] t = new int[2*triangles.length];
+			System.arraycopy(triangles, 0, t, 0, count);
+			triangles = t;
+		}
+		triangles[count++] = triangle;
+	}
+
+	int size()
+	{
+		return count;
+	}
+
+	int getTriangle(int i)
+	{
+		return triangles[i];
+	}
+}
@@ -0,0 +1,121 @@
+package jrtr.swrenderer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sorts screen space triangles into a regular grid of square tiles
+ * ({@link SWTile}). A triangle is added to the bin of every tile that its
+ * screen space bounding box overlaps. The rasterization stage then
+ * processes the tiles independently of each other.
+ */
+class SWTileBinner {
+
+	/**
+	 * Width and height of a tile in pixels.
+	 */
+	static final int TILE_SIZE = 64;
+
+	private SWTile[] tiles;
+	private int tilesX, tilesY;
+	private int width, height;
+
+	/**
+	 * Index of the next tile to be handed out to a rasterization thread.
+	 */
+	private final AtomicInteger nextTile;
+
+	SWTileBinner()
+	{
+		tiles = new SWTile[0];
+		nextTile = new AtomicInteger();
+	}
+
+	/**
+	 * Rebuild the tile grid for a new frame buffer size.
+	 */
+	void setViewportSize(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+
+		tiles = new SWTile[tilesX*tilesY];
+		for(int ty=0; ty<tilesY; ty++)
+			for(int tx=0; tx<tilesX; tx++)
+			{
+				int x0 = tx*TILE_SIZE;
+				int y0 = ty*TILE_SIZE;
+				tiles[ty*tilesX+tx] = new SWTile(x0, y0, Math.min(x0+TILE_SIZE, width), Math.min(y0+TILE_SIZE, height));
+			}
+	}
+
+	/**
+	 * Empty all bins at the beginning of a frame.
+	 */
+	void clear()
+	{
+		for(int i=0; i<tiles.length; i++)
+			tiles[i].clear();
+	}
+
+	/**
+	 * Add a triangle to the bins of all tiles that its bounding box
+	 * overlaps. Triangles that are entirely off screen are dropped.
+	 *
+	 * @param triangles the buffer containing the triangle
+	 * @param triangle the index of the triangle in the buffer
+	 */
+	void bin(SWTriangleBuffer triangles, int triangle)
+	{
+		float[] d = triangles.getData();
+		int o = triangle*SWTriangleBuffer.TRIANGLE_STRIDE;
+
+		float xMin = Float.MAX_VALUE, xMax = -Float.MAX_VALUE;
+		float yMin = Float.MAX_VALUE, yMax = -Float.MAX_VALUE;
+		for(int i=0; i<3; i++, o+=SWTriangleBuffer.VERTEX_STRIDE)
+		{
+			// Vertices with w = 0 cannot be projected
+			if(d[o+SWTriangleBuffer.INV_W] == 0) continue;
+
+			float x = d[o+SWTriangleBuffer.X];
+			float y = d[o+SWTriangleBuffer.Y];
+			xMin = Math.min(xMin, x);
+			xMax = Math.max(xMax, x);
+			yMin = Math.min(yMin, y);
+			yMax = Math.max(yMax, y);
+		}
+
+		// Reject triangles outside of the viewport
+		if(xMax < 0 || yMax < 0 || xMin >= width || yMin >= height) return;
+
+		int tx0 = Math.max((int)xMin, 0) / TILE_SIZE;
+		int ty0 = Math.max((int)yMin, 0) / TILE_SIZE;
+		int tx1 = Math.min((int)xMax, width-1) / TILE_SIZE;
+		int ty1 = Math.min((int)yMax, height-1) / TILE_SIZE;
+
+		for(int ty=ty0; ty<=ty1; ty++)
+			for(int tx=tx0; tx<=tx1; tx++)
+				tiles[ty*tilesX+tx].add(triangle);
+	}
+
+	/**
+	 * Start handing out tiles from the beginning of the grid.
+	 */
+	void rewind()
+	{
+		nextTile.set(0);
+	}
+
+	/**
+	 * Hand out the next unprocessed tile. This is called concurrently by
+	 * the rasterization threads, every tile is returned exactly once.
+	 *
+	 * @return the next tile, or null if all tiles have been handed out
+	 */
+	SWTile nextTile()
+	{
+		int i = nextTile.getAndIncrement();
+		return i < tiles.length ? tiles[i] : null;
+	}
+}
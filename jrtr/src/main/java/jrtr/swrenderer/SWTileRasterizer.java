@@ -0,0 +1,744 @@
+package jrtr.swrenderer;
+
+import java.util.concurrent.RecursiveAction;
+
+import jrtr.Material;
+
+/**
+ * A rasterization worker. Several workers run in parallel in the
+ * {@link java.util.concurrent.ForkJoinPool} of the {@link SWRenderContext}.
+ * Each worker repeatedly takes the next unprocessed tile from the
+ * {@link SWTileBinner} and draws all triangles in the bin of that tile,
+ * writing only to pixels inside the tile. Since every tile is handed out
+ * to exactly one worker, the frame buffer needs no synchronization.
+ * <p>
+ * Triangles are rasterized with edge functions. Vertex positions are
+ * snapped to a fixed point grid with {@link #SUBPIXEL_BITS} fractional bits,
+ * so that edge functions can be evaluated exactly with integer arithmetic.
+ * Pixels on shared edges are assigned to exactly one triangle using the
+ * top-left fill rule. The part of the triangle inside the tile is
+ * traversed in blocks of {@link #BLOCK_SIZE}x{@link #BLOCK_SIZE} pixels:
+ * blocks that are entirely outside the triangle are skipped, and blocks
+ * that are entirely inside are filled without per pixel coverage tests.
+ * <p>
+ * Vertex colors and texture coordinates are interpolated in a perspective
+ * correct way. If the material of a triangle has a diffuse map, the vertex
+ * color is multiplied by the texture, which is sampled with a level of
+ * detail computed from the screen space derivatives of the texture
+ * coordinates (see {@link SWTexture}). With deferred shading, the color,
+ * the normal and the texture coordinates are written to the geometry buffer
+ * instead, and the pixels are lit later by {@link SWDeferredShader}.
+ * <p>
+ * With multisampling, coverage and depth are determined at several sample
+ * positions in each pixel (see {@link SWRenderContext#setMultisampling}).
+ * A triangle is shaded once per pixel, at the pixel center, and the color
+ * is stored in all samples that the triangle covers and that pass the
+ * depth test. When all triangles of a tile are drawn, the sample colors of
+ * each pixel are averaged into the color buffer (the resolve step).
+ * <p>
+ * Visibility is resolved with a depth buffer, which is augmented by a
+ * hierarchical depth buffer (Hi-Z) storing the maximum depth of each block
+ * and of each tile. A triangle whose minimum depth is behind the maximum
+ * depth of a tile or a block cannot be visible there, and it is rejected
+ * for the whole tile or block without any per pixel work. The maximum
+ * depths only need to be upper bounds of the depth buffer. When a triangle
+ * overwrites a whole block, the maximum depth of the block is bounded using
+ * the plane of the triangle. Otherwise, it is recomputed from the depth
+ * buffer. The maximum depth of a tile is only recomputed when the maximum
+ * depth of one of its blocks that was equal to it decreases.
+ * <p>
+ * With span shading (see {@link SWRenderContext#setSpanShading}), the
+ * pixels of untextured triangles are shaded by a {@link SWSpanShader},
+ * which processes the covered pixels of a row of a block with vector
+ * instructions.
+ * <p>
+ * Workers are created once and reused for every frame.
+ */
+class SWTileRasterizer extends RecursiveAction {
+
+	static final long serialVersionUID = 0;
+
+	/**
+	 * Number of fractional bits of the fixed point vertex positions.
+	 */
+	static final int SUBPIXEL_BITS = 8;
+	static final int SUBPIXEL_ONE = 1 << SUBPIXEL_BITS;
+
+	/**
+	 * Largest absolute screen coordinate that can be rasterized without
+	 * overflowing the 64 bit edge function values.
+	 */
+	static final float MAX_COORDINATE = 1 << 20;
+
+	static final int BLOCK_SIZE = 8;
+
+	// Sample positions for multisampling, as x and y offsets from the pixel
+	// center in 1/16 pixels
+	private static final int[] SAMPLES_4 = {-2,-6, 6,-2, -6,2, 2,6};
+	private static final int[] SAMPLES_8 = {1,-3, -1,3, 5,1, -3,-5, -5,5, -7,-1, 3,7, 7,-7};
+
+	private final SWRenderContext renderContext;
+
+	// Frame buffer of the current frame. The depth buffer and the sample
+	// colors store the samples of each pixel one after another.
+	private int[] colorBuffer;
+	private float[] depthBuffer;
+	private int[] sampleColors;
+	private int samples;
+	private float[] blockMaxDepth;
+	private int width, blocksX;
+
+	// The geometry buffer if deferred shading is enabled, or null
+	private SWGBuffer gBuffer;
+
+	// The shader for spans of covered pixels if span shading is enabled, or
+	// null, and the constants of the current triangle that it reads
+	private SWSpanShader spanShader;
+	private final float[] spanConstants = new float[SWSpanShader.CONSTANTS];
+
+	// Offsets of the samples from the pixel center, in pixels, and the 
+	// offsets of the edge functions and the depth of the current triangle
+	private final float[] sampleX = new float[8], sampleY = new float[8];
+	private final long[] sampleE0 = new long[8], sampleE1 = new long[8], sampleE2 = new long[8];
+	private final float[] sampleZ = new float[8];
+	private long sampleMax0, sampleMax1, sampleMax2;
+
+	// Hi-Z rejections of this worker in the current frame
+	private long hiZRejectedTriangles, hiZRejectedBlocks;
+
+	// Triangle setup: the edge functions have the form E(x,y) = a*x + b*y + c,
+	// where x and y are fixed point coordinates. E0, E1, E2 are the edges
+	// opposite of vertex 0, 1, 2, and they are positive inside the triangle.
+	private long a0, b0, c0, a1, b1, c1, a2, b2, c2;
+	private float invArea;
+	private int xMin, yMin, xMax, yMax;
+
+	// Depth of the triangle: the minimum and maximum over the vertices, and 
+	// the increments of the linearly interpolated depth per pixel in x and y
+	private float zMin, zMax, dzdx, dzdy;
+
+	// Offsets of the three vertices in the triangle data, in counterclockwise
+	// order (in screen space, with y pointing down)
+	private int o0, o1, o2;
+
+	// The diffuse map of the current triangle, or null
+	private SWTexture texture;
+
+	// Derivatives in x and y of the interpolation denominator q = sum(l_i/w_i),
+	// and of the numerators of the texture coordinates, sum(l_i*u_i/w_i) and
+	// sum(l_i*v_i/w_i), in texels of level 0
+	private float qdx, qdy, udx, udy, vdx, vdy;
+
+	// Perspective correct barycentric coordinates and color at the current
+	// pixel, see surface
+	private float pw0, pw1, pw2, r, g, b;
+
+	SWTileRasterizer(SWRenderContext renderContext)
+	{
+		this.renderContext = renderContext;
+	}
+
+	protected void compute()
+	{
+		colorBuffer = renderContext.getColorBufferData();
+		depthBuffer = renderContext.getDepthBuffer();
+		sampleColors = renderContext.getSampleColors();
+		samples = renderContext.getSampleCount();
+		if(samples > 1)
+		{
+			int[] pattern = samples == 8 ? SAMPLES_8 : SAMPLES_4;
+			for(int i=0; i<samples; i++)
+			{
+				sampleX[i] = pattern[2*i]/16.f;
+				sampleY[i] = pattern[2*i+1]/16.f;
+			}
+		}
+		blockMaxDepth = renderContext.getBlockMaxDepth();
+		width = renderContext.getWidth();
+		blocksX = renderContext.getBlocksX();
+		gBuffer = renderContext.getGBuffer();
+		spanShader = renderContext.getSpanShader();
+		hiZRejectedTriangles = 0;
+		hiZRejectedBlocks = 0;
+
+		SWTileBinner binner = renderContext.getBinner();
+		SWTile tile;
+		while((tile = binner.nextTile()) != null)
+		{
+			rasterizeTile(tile);
+		}
+
+		renderContext.getFrameStatistics().addHiZRejections(hiZRejectedTriangles, hiZRejectedBlocks);
+	}
+
+	private void rasterizeTile(SWTile tile)
+	{
+		SWTriangleBuffer triangles = renderContext.getTriangles();
+		float[] d = triangles.getData();
+		for(int i=0; i<tile.size(); i++)
+		{
+			int triangle = tile.getTriangle(i);
+			if(!setup(d, triangle*SWTriangleBuffer.TRIANGLE_STRIDE))
+				continue;
+
+			// The triangle is behind everything drawn in the tile so far
+			if(zMin >= tile.maxDepth)
+			{
+				hiZRejectedTriangles++;
+				continue;
+			}
+
+			setupTexture(d, triangles.getMaterial(triangle));
+
+			// Update the maximum depth of the tile if the maximum depth of a 
+			// block that could have determined it has decreased
+			if(drawTriangle(tile, d))
+				updateTileMaxDepth(tile);
+		}
+
+		if(samples > 1 && tile.size() > 0)
+			resolve(tile);
+	}
+
+	/**
+	 * Average the sample colors of each pixel of a tile into the color buffer.
+	 */
+	private void resolve(SWTile tile)
+	{
+		final int n = samples;
+		for(int y=tile.y0; y<tile.y1; y++)
+		{
+			for(int p=y*width+tile.x0, pEnd=y*width+tile.x1; p<pEnd; p++)
+			{
+				// Inside of triangles, all samples usually have the same color
+				int i0 = p*n, c0 = sampleColors[i0];
+				boolean uniform = true;
+				for(int i=i0+1; i<i0+n && uniform; i++)
+					uniform = sampleColors[i] == c0;
+				if(uniform)
+				{
+					colorBuffer[p] = c0;
+					continue;
+				}
+
+				int r = 0, g = 0, b = 0;
+				for(int i=i0, iEnd=i0+n; i<iEnd; i++)
+				{
+					int c = sampleColors[i];
+					r += c >> 16 & 0xFF;
+					g += c >> 8 & 0xFF;
+					b += c & 0xFF;
+				}
+				colorBuffer[p] = ((r + n/2)/n << 16) | ((g + n/2)/n << 8) | (b + n/2)/n;
+			}
+		}
+	}
+
+	/**
+	 * Recompute the maximum depth of a tile from the maximum depths of its
+	 * blocks.
+	 */
+	private void updateTileMaxDepth(SWTile tile)
+	{
+		float max = 0;
+		for(int by=tile.y0/BLOCK_SIZE; by*BLOCK_SIZE<tile.y1; by++)
+			for(int bx=tile.x0/BLOCK_SIZE; bx*BLOCK_SIZE<tile.x1; bx++)
+				max = Math.max(max, blockMaxDepth[by*blocksX+bx]);
+		tile.maxDepth = max;
+	}
+
+	/**
+	 * Compute the maximum depth of a block over all samples in the depth
+	 * buffer.
+	 */
+	private float blockMaxDepth(int bx, int by, int xEnd, int yEnd)
+	{
+		float max = 0;
+		for(int y=by; y<yEnd; y++)
+			for(int i=(y*width+bx)*samples, iEnd=(y*width+xEnd)*samples; i<iEnd; i++)
+				max = Math.max(max, depthBuffer[i]);
+		return max;
+	}
+
+	/**
+	 * Compute the edge functions and the bounding box of a triangle.
+	 *
+	 * @return false if the triangle does not cover any pixels or cannot be
+	 * rasterized
+	 */
+	private boolean setup(float[] d, int o)
+	{
+		o0 = o;
+		o1 = o + SWTriangleBuffer.VERTEX_STRIDE;
+		o2 = o + 2*SWTriangleBuffer.VERTEX_STRIDE;
+
+		// The vertex stage clips triangles against the near plane and the
+		// guard band, this only guards against invalid input
+		for(int i=o0; i<=o2; i+=SWTriangleBuffer.VERTEX_STRIDE)
+		{
+			if(!(d[i+SWTriangleBuffer.INV_W] > 0)) return false;
+			if(!(Math.abs(d[i+SWTriangleBuffer.X]) < MAX_COORDINATE && Math.abs(d[i+SWTriangleBuffer.Y]) < MAX_COORDINATE)) return false;
+		}
+
+		long x0 = toFixed(d[o0+SWTriangleBuffer.X]), y0 = toFixed(d[o0+SWTriangleBuffer.Y]);
+		long x1 = toFixed(d[o1+SWTriangleBuffer.X]), y1 = toFixed(d[o1+SWTriangleBuffer.Y]);
+		long x2 = toFixed(d[o2+SWTriangleBuffer.X]), y2 = toFixed(d[o2+SWTriangleBuffer.Y]);
+
+		// Twice the signed area. Make the vertex order counterclockwise, so
+		// that the edge functions are positive inside.
+		long area = (x1-x0)*(y2-y0) - (y1-y0)*(x2-x0);
+		if(area == 0) return false;
+		if(area < 0)
+		{
+			long t = x1; x1 = x2; x2 = t;
+			t = y1; y1 = y2; y2 = t;
+			int ot = o1; o1 = o2; o2 = ot;
+			area = -area;
+		}
+		invArea = 1.f/area;
+
+		// Depth is interpolated linearly in screen space
+		float z0 = d[o0+SWTriangleBuffer.Z], z1 = d[o1+SWTriangleBuffer.Z], z2 = d[o2+SWTriangleBuffer.Z];
+		zMin = Math.min(z0, Math.min(z1, z2));
+		zMax = Math.max(z0, Math.max(z1, z2));
+		dzdx = ((z1-z0)*(y2-y0) - (z2-z0)*(y1-y0))*SUBPIXEL_ONE*invArea;
+		dzdy = ((z2-z0)*(x1-x0) - (z1-z0)*(x2-x0))*SUBPIXEL_ONE*invArea;
+
+		// Bounding box in pixels
+		xMin = (int)(Math.min(x0, Math.min(x1, x2)) >> SUBPIXEL_BITS);
+		yMin = (int)(Math.min(y0, Math.min(y1, y2)) >> SUBPIXEL_BITS);
+		xMax = (int)(Math.max(x0, Math.max(x1, x2)) >> SUBPIXEL_BITS);
+		yMax = (int)(Math.max(y0, Math.max(y1, y2)) >> SUBPIXEL_BITS);
+
+		// Edge functions. Pixels exactly on an edge belong to the triangle
+		// only if the edge is a top or a left edge, which is implemented by
+		// biasing the other edge functions by -1.
+		a0 = y1-y2; b0 = x2-x1; c0 = x1*y2 - y1*x2 - (isTopLeft(a0, b0) ? 0 : 1);
+		a1 = y2-y0; b1 = x0-x2; c1 = x2*y0 - y2*x0 - (isTopLeft(a1, b1) ? 0 : 1);
+		a2 = y0-y1; b2 = x1-x0; c2 = x0*y1 - y0*x1 - (isTopLeft(a2, b2) ? 0 : 1);
+		return true;
+	}
+
+	/**
+	 * Look up the diffuse map of a triangle and compute the derivatives that
+	 * determine the level of detail for texture sampling.
+	 */
+	private void setupTexture(float[] d, Material material)
+	{
+		texture = null;
+		if(material == null || !(material.diffuseMap instanceof SWTexture)) return;
+		SWTexture t = (SWTexture)material.diffuseMap;
+		if(!t.isLoaded()) return;
+		texture = t;
+
+		// Derivatives of the screen space barycentric coordinates l1 and l2
+		float l1dx = a1*SUBPIXEL_ONE*invArea, l1dy = b1*SUBPIXEL_ONE*invArea;
+		float l2dx = a2*SUBPIXEL_ONE*invArea, l2dy = b2*SUBPIXEL_ONE*invArea;
+
+		float q0 = d[o0+SWTriangleBuffer.INV_W], q1 = d[o1+SWTriangleBuffer.INV_W], q2 = d[o2+SWTriangleBuffer.INV_W];
+		float w = t.getWidth(), h = t.getHeight();
+		float u0 = d[o0+SWTriangleBuffer.U]*q0*w, u1 = d[o1+SWTriangleBuffer.U]*q1*w, u2 = d[o2+SWTriangleBuffer.U]*q2*w;
+		float v0 = d[o0+SWTriangleBuffer.V]*q0*h, v1 = d[o1+SWTriangleBuffer.V]*q1*h, v2 = d[o2+SWTriangleBuffer.V]*q2*h;
+		qdx = l1dx*(q1-q0) + l2dx*(q2-q0);
+		qdy = l1dy*(q1-q0) + l2dy*(q2-q0);
+		udx = l1dx*(u1-u0) + l2dx*(u2-u0);
+		udy = l1dy*(u1-u0) + l2dy*(u2-u0);
+		vdx = l1dx*(v1-v0) + l2dx*(v2-v0);
+		vdy = l1dy*(v1-v0) + l2dy*(v2-v0);
+	}
+
+	private static long toFixed(float x)
+	{
+		return Math.round(x*SUBPIXEL_ONE);
+	}
+
+	/**
+	 * An edge with function E(x,y) = a*x + b*y + c is a top edge if it is
+	 * horizontal and the triangle lies below it, and a left edge if the
+	 * triangle lies to its right (y points down).
+	 */
+	private static boolean isTopLeft(long a, long b)
+	{
+		return a > 0 || (a == 0 && b > 0);
+	}
+
+	/**
+	 * Draw the part of the current triangle that lies inside a tile.
+	 *
+	 * @return true if the maximum depth of the tile needs to be updated
+	 */
+	private boolean drawTriangle(SWTile tile, float[] d)
+	{
+		int x0 = Math.max(xMin, tile.x0), x1 = Math.min(xMax, tile.x1-1);
+		int y0 = Math.max(yMin, tile.y0), y1 = Math.min(yMax, tile.y1-1);
+		if(x0 > x1 || y0 > y1) return false;
+		boolean tileChanged = false;
+
+		// Offsets from the first pixel center of a block to the pixels with the
+		// smallest and largest depth on the plane of the triangle
+		float dzMin = (Math.min(dzdx, 0) + Math.min(dzdy, 0))*(BLOCK_SIZE-1);
+		float dzMax = (Math.max(dzdx, 0) + Math.max(dzdy, 0))*(BLOCK_SIZE-1);
+
+		// With multisampling, samples are up to half a pixel away from the
+		// pixel centers, which extends the ranges of depths and edge functions
+		boolean multisampled = samples > 1;
+		if(multisampled)
+		{
+			float m = (Math.abs(dzdx) + Math.abs(dzdy))/2;
+			dzMin -= m;
+			dzMax += m;
+			setupSamples();
+		}
+
+		// Edge function increments for one pixel step in x and y, and the
+		// increments of the screen space barycentric coordinates in x
+		long sx0 = a0*SUBPIXEL_ONE, sy0 = b0*SUBPIXEL_ONE;
+		long sx1 = a1*SUBPIXEL_ONE, sy1 = b1*SUBPIXEL_ONE;
+		long sx2 = a2*SUBPIXEL_ONE, sy2 = b2*SUBPIXEL_ONE;
+		float l1dx = sx1*invArea, l2dx = sx2*invArea;
+
+		// Rows of blocks are shaded in spans if the span shader can compute
+		// the color of the pixels
+		boolean spans = spanShader != null && !multisampled && gBuffer == null && texture == null;
+		if(spans)
+			setupSpans(d);
+
+		// Offsets from the first pixel center of a block to the block pixel
+		// with the largest and smallest edge function value
+		final int n = BLOCK_SIZE-1;
+		long max0 = (Math.max(sx0, 0) + Math.max(sy0, 0))*n, min0 = (Math.min(sx0, 0) + Math.min(sy0, 0))*n;
+		long max1 = (Math.max(sx1, 0) + Math.max(sy1, 0))*n, min1 = (Math.min(sx1, 0) + Math.min(sy1, 0))*n;
+		long max2 = (Math.max(sx2, 0) + Math.max(sy2, 0))*n, min2 = (Math.min(sx2, 0) + Math.min(sy2, 0))*n;
+		if(multisampled)
+		{
+			long m0 = (Math.abs(sx0) + Math.abs(sy0))/2, m1 = (Math.abs(sx1) + Math.abs(sy1))/2, m2 = (Math.abs(sx2) + Math.abs(sy2))/2;
+			max0 += m0; min0 -= m0;
+			max1 += m1; min1 -= m1;
+			max2 += m2; min2 -= m2;
+		}
+
+		for(int by=y0 & ~(BLOCK_SIZE-1); by<=y1; by+=BLOCK_SIZE)
+		{
+			for(int bx=x0 & ~(BLOCK_SIZE-1); bx<=x1; bx+=BLOCK_SIZE)
+			{
+				// Edge functions at the center of the first pixel of the block
+				long px = ((long)bx << SUBPIXEL_BITS) + SUBPIXEL_ONE/2;
+				long py = ((long)by << SUBPIXEL_BITS) + SUBPIXEL_ONE/2;
+				long e0 = a0*px + b0*py + c0;
+				long e1 = a1*px + b1*py + c1;
+				long e2 = a2*px + b2*py + c2;
+
+				// Trivial reject: the block is outside of one of the edges
+				if(e0 + max0 < 0 || e1 + max1 < 0 || e2 + max2 < 0) continue;
+
+				// Hi-Z reject: the triangle is behind everything drawn in the block.
+				// The smallest depth of the triangle in the block is bounded by the 
+				// smallest depth of its plane in the block and of its vertices.
+				int block = (by/BLOCK_SIZE)*blocksX + bx/BLOCK_SIZE;
+				float z = depth(d, e1, e2);
+				if(Math.max(zMin, z + dzMin) >= blockMaxDepth[block])
+				{
+					hiZRejectedBlocks++;
+					continue;
+				}
+
+				// Trivial accept: the block is inside of all edges
+				boolean covered = e0 + min0 >= 0 && e1 + min1 >= 0 && e2 + min2 >= 0;
+
+				int xEnd = Math.min(bx+BLOCK_SIZE, tile.x1);
+				int yEnd = Math.min(by+BLOCK_SIZE, tile.y1);
+				int nWritten = 0;
+				if(multisampled)
+				{
+					for(int y=by; y<yEnd; y++)
+					{
+						long f0 = e0, f1 = e1, f2 = e2;
+						for(int x=bx; x<xEnd; x++)
+						{
+							// Skip pixels where no sample is inside of all edges
+							if(covered || (f0 + sampleMax0 >= 0 && f1 + sampleMax1 >= 0 && f2 + sampleMax2 >= 0))
+								nWritten += shadeSamples(d, x, y, f0, f1, f2, covered);
+							f0 += sx0; f1 += sx1; f2 += sx2;
+						}
+						e0 += sy0; e1 += sy1; e2 += sy2;
+					}
+				}
+				else if(spans && xEnd-bx == BLOCK_SIZE)
+				{
+					for(int y=by; y<yEnd; y++)
+					{
+						// The coverage of the row is tested here with the exact
+						// edge functions, one bit per pixel
+						int coverage = covered ? SWSpanShader.COVERED : 0;
+						long f0 = e0, f1 = e1, f2 = e2;
+						for(int i=0; i<BLOCK_SIZE && !covered; i++)
+						{
+							if((f0 | f1 | f2) >= 0)
+								coverage |= 1 << i;
+							f0 += sx0; f1 += sx1; f2 += sx2;
+						}
+						if(coverage != 0)
+							nWritten += spanShader.shade(spanConstants, depthBuffer, colorBuffer, y*width+bx, coverage,
+									e1*invArea, e2*invArea, l1dx, l2dx);
+						e0 += sy0; e1 += sy1; e2 += sy2;
+					}
+				}
+				else
+				{
+					for(int y=by; y<yEnd; y++)
+					{
+						// Coverage is tested with the exact edge functions, the
+						// barycentric coordinates are stepped in floating point
+						long f0 = e0, f1 = e1, f2 = e2;
+						float l1 = e1*invArea, l2 = e2*invArea;
+						for(int x=bx, p=y*width+bx; x<xEnd; x++, p++)
+						{
+							if((covered || (f0 | f1 | f2) >= 0) && shade(d, p, l1, l2))
+								nWritten++;
+							f0 += sx0; f1 += sx1; f2 += sx2;
+							l1 += l1dx; l2 += l2dx;
+						}
+						e0 += sy0; e1 += sy1; e2 += sy2;
+					}
+				}
+				if(nWritten == 0) continue;
+
+				// Update the maximum depth of the block
+				float oldMax = blockMaxDepth[block], newMax = oldMax;
+				if(covered && nWritten == (xEnd-bx)*(yEnd-by)*samples)
+				{
+					// The whole block now contains the triangle
+					newMax = Math.min(oldMax, Math.min(zMax, z + dzMax));
+				}
+				else
+				{
+					newMax = blockMaxDepth(bx, by, xEnd, yEnd);
+				}
+				if(newMax < oldMax)
+				{
+					blockMaxDepth[block] = newMax;
+					tileChanged |= oldMax >= tile.maxDepth;
+				}
+			}
+		}
+		return tileChanged;
+	}
+
+	/**
+	 * Copy the depth, 1/w and color of the vertices of the current triangle
+	 * to the constants of the span shader.
+	 */
+	private void setupSpans(float[] d)
+	{
+		setupSpanVertex(d, 0, o0);
+		setupSpanVertex(d, 1, o1);
+		setupSpanVertex(d, 2, o2);
+	}
+
+	private void setupSpanVertex(float[] d, int i, int o)
+	{
+		float[] t = spanConstants;
+		t[SWSpanShader.Z+i] = d[o+SWTriangleBuffer.Z];
+		t[SWSpanShader.INV_W+i] = d[o+SWTriangleBuffer.INV_W];
+		t[SWSpanShader.R+i] = d[o+SWTriangleBuffer.R];
+		t[SWSpanShader.G+i] = d[o+SWTriangleBuffer.G];
+		t[SWSpanShader.B+i] = d[o+SWTriangleBuffer.B];
+	}
+
+	/**
+	 * Interpolate the depth of the current triangle.
+	 */
+	private float depth(float[] d, long e1, long e2)
+	{
+		float l1 = e1*invArea;
+		float l2 = e2*invArea;
+		float z0 = d[o0+SWTriangleBuffer.Z];
+		return z0 + l1*(d[o1+SWTriangleBuffer.Z]-z0) + l2*(d[o2+SWTriangleBuffer.Z]-z0);
+	}
+
+	/**
+	 * Perform the depth test for a pixel covered by the current triangle,
+	 * and shade the pixel if it passes.
+	 *
+	 * @param p the index of the pixel
+	 * @param l1 screen space barycentric coordinate of vertex 1 at the pixel center
+	 * @param l2 screen space barycentric coordinate of vertex 2 at the pixel center
+	 * @return true if the pixel passed the depth test
+	 */
+	private boolean shade(float[] d, int p, float l1, float l2)
+	{
+		float l0 = 1.f - l1 - l2;
+		float z = l0*d[o0+SWTriangleBuffer.Z] + l1*d[o1+SWTriangleBuffer.Z] + l2*d[o2+SWTriangleBuffer.Z];
+		if(!(z < depthBuffer[p])) return false;
+		depthBuffer[p] = z;
+
+		surface(d, l1, l2);
+		if(gBuffer != null)
+			storeSurface(d, p);
+		else
+			colorBuffer[p] = toRGB(r, g, b);
+		return true;
+	}
+
+	/**
+	 * Store the surface attributes of a pixel in the geometry buffer for the
+	 * deferred shading pass. This is kept out of {@link #shade}, which is 
+	 * called for every pixel and needs to be small enough to be inlined.
+	 */
+	private void storeSurface(float[] d, int p)
+	{
+		float w0 = pw0, w1 = pw1, w2 = pw2;
+		gBuffer.albedoR[p] = r;
+		gBuffer.albedoG[p] = g;
+		gBuffer.albedoB[p] = b;
+		gBuffer.normalX[p] = w0*d[o0+SWTriangleBuffer.NX] + w1*d[o1+SWTriangleBuffer.NX] + w2*d[o2+SWTriangleBuffer.NX];
+		gBuffer.normalY[p] = w0*d[o0+SWTriangleBuffer.NY] + w1*d[o1+SWTriangleBuffer.NY] + w2*d[o2+SWTriangleBuffer.NY];
+		gBuffer.normalZ[p] = w0*d[o0+SWTriangleBuffer.NZ] + w1*d[o1+SWTriangleBuffer.NZ] + w2*d[o2+SWTriangleBuffer.NZ];
+		gBuffer.u[p] = w0*d[o0+SWTriangleBuffer.U] + w1*d[o1+SWTriangleBuffer.U] + w2*d[o2+SWTriangleBuffer.U];
+		gBuffer.v[p] = w0*d[o0+SWTriangleBuffer.V] + w1*d[o1+SWTriangleBuffer.V] + w2*d[o2+SWTriangleBuffer.V];
+	}
+
+	/**
+	 * Compute the edge function and depth offsets of the samples for the 
+	 * current triangle.
+	 */
+	private void setupSamples()
+	{
+		sampleMax0 = sampleMax1 = sampleMax2 = Long.MIN_VALUE;
+		for(int i=0; i<samples; i++)
+		{
+			long dx = Math.round(sampleX[i]*SUBPIXEL_ONE), dy = Math.round(sampleY[i]*SUBPIXEL_ONE);
+			sampleE0[i] = a0*dx + b0*dy;
+			sampleE1[i] = a1*dx + b1*dy;
+			sampleE2[i] = a2*dx + b2*dy;
+			sampleZ[i] = dzdx*sampleX[i] + dzdy*sampleY[i];
+			sampleMax0 = Math.max(sampleMax0, sampleE0[i]);
+			sampleMax1 = Math.max(sampleMax1, sampleE1[i]);
+			sampleMax2 = Math.max(sampleMax2, sampleE2[i]);
+		}
+	}
+
+	/**
+	 * Perform the coverage and depth tests for the samples of a pixel, and
+	 * shade the pixel once at its center if any sample passes. The color is
+	 * stored in all samples that passed.
+	 *
+	 * @param e0 edge function opposite of vertex 0 at the pixel center
+	 * @param e1 edge function opposite of vertex 1 at the pixel center
+	 * @param e2 edge function opposite of vertex 2 at the pixel center
+	 * @param covered true if all samples are known to be covered
+	 * @return the number of samples that passed the depth test
+	 */
+	private int shadeSamples(float[] d, int x, int y, long e0, long e1, long e2, boolean covered)
+	{
+		float l1 = e1*invArea;
+		float l2 = e2*invArea;
+		float l0 = 1.f - l1 - l2;
+		float z = l0*d[o0+SWTriangleBuffer.Z] + l1*d[o1+SWTriangleBuffer.Z] + l2*d[o2+SWTriangleBuffer.Z];
+
+		int ps = (y*width + x)*samples;
+		int mask = 0;
+		for(int i=0; i<samples; i++)
+		{
+			if(!covered && ((e0 + sampleE0[i]) | (e1 + sampleE1[i]) | (e2 + sampleE2[i])) < 0)
+				continue;
+			float zs = z + sampleZ[i];
+			if(zs < depthBuffer[ps+i])
+			{
+				depthBuffer[ps+i] = zs;
+				mask |= 1 << i;
+			}
+		}
+		if(mask == 0) return 0;
+
+		surface(d, l1, l2);
+		int c = toRGB(r, g, b);
+		for(int i=0; i<samples; i++)
+			if((mask & (1 << i)) != 0) sampleColors[ps+i] = c;
+		return Integer.bitCount(mask);
+	}
+
+	/**
+	 * Compute the perspective correct barycentric coordinates pw0, pw1, pw2
+	 * and the color r, g, b of the current triangle from the screen space
+	 * barycentric coordinates. The vertex colors are interpolated in a 
+	 * perspective correct way and multiplied by the diffuse map.
+	 */
+	private void surface(float[] d, float l1, float l2)
+	{
+		float w0 = (1.f - l1 - l2)*d[o0+SWTriangleBuffer.INV_W];
+		float w1 = l1*d[o1+SWTriangleBuffer.INV_W];
+		float w2 = l2*d[o2+SWTriangleBuffer.INV_W];
+		float s = 1.f/(w0 + w1 + w2);
+		w0 *= s; w1 *= s; w2 *= s;
+		pw0 = w0; pw1 = w1; pw2 = w2;
+
+		r = w0*d[o0+SWTriangleBuffer.R] + w1*d[o1+SWTriangleBuffer.R] + w2*d[o2+SWTriangleBuffer.R];
+		g = w0*d[o0+SWTriangleBuffer.G] + w1*d[o1+SWTriangleBuffer.G] + w2*d[o2+SWTriangleBuffer.G];
+		b = w0*d[o0+SWTriangleBuffer.B] + w1*d[o1+SWTriangleBuffer.B] + w2*d[o2+SWTriangleBuffer.B];
+
+		if(texture != null)
+			applyTexture(d, s);
+	}
+
+	/**
+	 * Multiply the color r, g, b by the diffuse map, sampled at the 
+	 * interpolated texture coordinates. This is a separate method to keep
+	 * {@link #surface} small enough to be inlined.
+	 *
+	 * @param invQ 1/q at the pixel, see {@link #lod}
+	 */
+	private void applyTexture(float[] d, float invQ)
+	{
+		float w0 = pw0, w1 = pw1, w2 = pw2;
+		float u = w0*d[o0+SWTriangleBuffer.U] + w1*d[o1+SWTriangleBuffer.U] + w2*d[o2+SWTriangleBuffer.U];
+		float v = w0*d[o0+SWTriangleBuffer.V] + w1*d[o1+SWTriangleBuffer.V] + w2*d[o2+SWTriangleBuffer.V];
+		int texel = texture.sample(u, v, lod(u*texture.getWidth(), v*texture.getHeight(), invQ));
+		r *= (texel >> 16 & 0xFF)*(1.f/255);
+		g *= (texel >> 8 & 0xFF)*(1.f/255);
+		b *= (texel & 0xFF)*(1.f/255);
+	}
+
+	/**
+	 * Compute the level of detail for texture sampling at a pixel, from the
+	 * larger of the lengths of the derivatives of the texture coordinates in
+	 * x and y. Texture coordinates are the ratios of the interpolated
+	 * numerators and the denominator q, so their derivative in x is
+	 * (dnum/dx - (texture coordinate)*dq/dx)/q.
+	 *
+	 * @param u the horizontal texture coordinate in texels
+	 * @param v the vertical texture coordinate in texels
+	 * @param invQ 1/q at the pixel
+	 */
+	private float lod(float u, float v, float invQ)
+	{
+		float dudx = (udx - u*qdx)*invQ, dvdx = (vdx - v*qdx)*invQ;
+		float dudy = (udy - u*qdy)*invQ, dvdy = (vdy - v*qdy)*invQ;
+		float lx = dudx*dudx + dvdx*dvdx, ly = dudy*dudy + dvdy*dvdy;
+		return .5f*log2(Math.max(lx, ly));
+	}
+
+	/**
+	 * An approximation of the binary logarithm, which is exact at powers of
+	 * two and linear in between. This is accurate enough to select mip levels.
+	 */
+	private static float log2(float x)
+	{
+		if(!(x > 0)) return -Float.MAX_VALUE;
+		int bits = Float.floatToRawIntBits(x);
+		return ((bits >> 23) & 0xFF) - 127 + (bits & 0x7FFFFF)*(1.f/(1 << 23));
+	}
+
+	/**
+	 * Pack a color with components in [0,1] into an int in 0xRRGGBB format.
+	 */
+	static int toRGB(float r, float g, float b)
+	{
+		return (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+	}
+
+	private static int toByte(float c)
+	{
+		return Math.min(Math.max((int)(255.f*c), 0), 255);
+	}
+}
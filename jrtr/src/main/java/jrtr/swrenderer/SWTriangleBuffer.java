@@ -0,0 +1,109 @@
+package jrtr.swrenderer;
+
+import jrtr.Material;
+
+/**
+ * Stores the screen space triangles of one frame in the order in which
+ * they were submitted by {@link SWRenderContext}. The vertex attributes of
+ * all triangles are packed into a single float array, which is reused from
+ * frame to frame. Each vertex occupies {@link #VERTEX_STRIDE} floats, the
+ * offsets of the individual attributes are given by the constants below.
+ */
+class SWTriangleBuffer {
+
+	// Offsets of the vertex attributes. Positions are stored after the
+	// division by w, the reciprocal of w is kept for interpolation. Normals
+	// are in camera coordinates.
+	static final int X = 0, Y = 1, Z = 2, INV_W = 3;
+	static final int R = 4, G = 5, B = 6;
+	static final int NX = 7, NY = 8, NZ = 9;
+	static final int U = 10, V = 11;
+
+	static final int VERTEX_STRIDE = 12;
+	static final int TRIANGLE_STRIDE = 3*VERTEX_STRIDE;
+
+	private float[] data;
+	private Material[] materials;
+	private int count;
+
+	public SWTriangleBuffer()
+	{
+		data = new float[1024*TRIANGLE_STRIDE];
+		materials = new Material[1024];
+		count = 0;
+	}
+
+	/**
+	 * Remove all triangles, but keep the allocated memory.
+	 */
+	void clear()
+	{
+		// Release references to materials of the previous frame
+		for(int i=0; i<count; i++)
+			materials[i] = null;
+		count = 0;
+	}
+
+	int size()
+	{
+		return count;
+	}
+
+	float[] getData()
+	{
+		return data;
+	}
+
+	Material getMaterial(int triangle)
+	{
+		return materials[triangle];
+	}
+
+	/**
+	 * Append a triangle. The vertices are read from an array in the layout
+	 * of this buffer, except that positions are given in homogeneous screen
+	 * coordinates with w stored in place of 1/w. The positions are divided
+	 * by w here. Vertices with w = 0 get 1/w = 0 and are ignored by the
+	 * rasterizer.
+	 *
+	 * @param v the array containing the vertices
+	 * @param o0 offset of the first vertex in v
+	 * @param o1 offset of the second vertex in v
+	 * @param o2 offset of the third vertex in v
+	 * @param mat the material of the triangle
+	 * @return the index of the new triangle
+	 */
+	int add(float[] v, int o0, int o1, int o2, Material mat)
+	{
+		if(count == materials.length)
+			grow();
+
+		int o = count*TRIANGLE_STRIDE;
+		addVertex(v, o0, o);
+		addVertex(v, o1, o+VERTEX_STRIDE);
+		addVertex(v, o2, o+2*VERTEX_STRIDE);
+		materials[count] = mat;
+		return count++;
+	}
+
+	private void addVertex(float[] v, int src, int o)
+	{
+		float w = v[src+INV_W];
+		float invW = (w != 0) ? 1.f/w : 0.f;
+		data[o+X] = v[src+X]*invW;
+		data[o+Y] = v[src+Y]*invW;
+		data[o+Z] = v[src+Z]*invW;
+		data[o+INV_W] = invW;
+		System.arraycopy(v, src+R, data, o+R, VERTEX_STRIDE-R);
+	}
+
+	private void grow()
+	{
+		float[] d = new float[2*data.length];
+		System.arraycopy(data, 0, d, 0, data.length);
+		data = d;
+		Material[] m = new Material[2*materials.length];
+		System.arraycopy(materials, 0, m, 0, materials.length);
+		materials = m;
+	}
+}
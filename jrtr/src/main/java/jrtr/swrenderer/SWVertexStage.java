@@ -0,0 +1,408 @@
+package jrtr.swrenderer;
+
+import java.util.Arrays;
+
+import javax.vecmath.Matrix4f;
+
+import jrtr.FrustumPlanes;
+import jrtr.Material;
+import jrtr.RenderItem;
+import jrtr.VertexData;
+
+/**
+ * Transforms the vertices of {@link RenderItem}s to screen space and
+ * assembles them into triangles, which are passed on to the binning stage.
+ * <p>
+ * The vertex stage does not allocate any memory in the steady state. The
+ * vertex attribute arrays are looked up once per render item, and the
+ * transformed vertices are written to a scratch array that is reused for
+ * all render items. The vertex stage is used by one thread only, the thread
+ * that traverses the scene.
+ * <p>
+ * The scratch array acts as a post-transform vertex cache: it has one slot
+ * per vertex of the mesh, and a vertex is only transformed the first time
+ * one of its indices is encountered in a render item. Vertices shared by
+ * several triangles are thus transformed once per render item.
+ */
+class SWVertexStage {
+
+	// Attribute values for vertices that do not specify them
+	private static final float[] DEFAULT_COLOR = {1.f, 1.f, 1.f};
+	private static final float[] DEFAULT_NORMAL = {0.f, 0.f, 0.f};
+	private static final float[] DEFAULT_TEXCOORDS = {0.f, 0.f};
+
+	/**
+	 * The transformation from world to homogeneous screen coordinates.
+	 */
+	private final Matrix4f worldToScreen;
+
+	/**
+	 * The transformation from object to homogeneous screen coordinates of
+	 * the current render item.
+	 */
+	private final Matrix4f t;
+
+	/**
+	 * The transformation from world to camera coordinates, and from object
+	 * to camera coordinates of the current render item. The latter is used
+	 * to transform normals.
+	 */
+	private final Matrix4f worldToCamera, modelview;
+
+	/**
+	 * The transformation from world to clip coordinates, and from object to
+	 * clip coordinates of the current render item.
+	 */
+	private final Matrix4f worldToClip, objectToClip;
+
+	/**
+	 * The view frustum in object coordinates of the current render item.
+	 */
+	private final FrustumPlanes frustum;
+
+	private boolean backfaceCulling;
+
+	// The color that the vertex colors are multiplied with, the color of
+	// the current instance of an InstancedShape, or white
+	private float colorR, colorG, colorB;
+
+	// Vertex attribute arrays of the current render item. Attribute j of
+	// vertex i is at index i*stride + offset + j of its array. If the vertex
+	// data is interleaved, all attributes share one array.
+	private float[] positions, colors, normals, texCoords;
+	private int positionStride, colorStride, normalStride, texCoordStride;
+	private int positionOffset, colorOffset, normalOffset, texCoordOffset;
+	private int positionDim;
+
+	/**
+	 * The transformed vertices of the current render item in the layout of
+	 * {@link SWTriangleBuffer}, with positions in homogeneous coordinates
+	 * (w is stored in place of 1/w). Vertex i is stored at offset
+	 * i*{@link SWTriangleBuffer#VERTEX_STRIDE}.
+	 */
+	private float[] vertices;
+
+	/**
+	 * Vertex i has been transformed for the current render item if
+	 * cacheTags[i] == cacheTag.
+	 */
+	private int[] cacheTags;
+	private int cacheTag;
+
+	/**
+	 * The clip codes of the transformed vertices, see {@link SWClipper}.
+	 */
+	private int[] clipCodes;
+
+	private final SWClipper clipper;
+
+	// The counters of the current frame
+	private SWRenderStatistics statistics;
+
+	SWVertexStage()
+	{
+		worldToScreen = new Matrix4f();
+		t = new Matrix4f();
+		worldToCamera = new Matrix4f();
+		modelview = new Matrix4f();
+		worldToClip = new Matrix4f();
+		objectToClip = new Matrix4f();
+		frustum = new FrustumPlanes();
+		backfaceCulling = false;
+		colorR = colorG = colorB = 1.f;
+		vertices = new float[0];
+		cacheTags = new int[0];
+		cacheTag = 0;
+		clipCodes = new int[0];
+		clipper = new SWClipper();
+	}
+
+	/**
+	 * Set the per frame part of the transformation, and the counters of the
+	 * frame. Called at the beginning of each frame.
+	 */
+	void beginFrame(Matrix4f viewportMatrix, Matrix4f projectionMatrix, Matrix4f cameraMatrix, SWRenderStatistics statistics)
+	{
+		this.statistics = statistics;
+		worldToScreen.set(viewportMatrix);
+		worldToScreen.mul(projectionMatrix);
+		worldToScreen.mul(cameraMatrix);
+		worldToClip.mul(projectionMatrix, cameraMatrix);
+		worldToCamera.set(cameraMatrix);
+	}
+
+	/**
+	 * Enable or disable culling of triangles that face away from the camera.
+	 * Front faces have counterclockwise vertex order in normalized device
+	 * coordinates, as in OpenGL.
+	 */
+	/**
+	 * Set the color that the vertex colors of the following render items
+	 * are multiplied with.
+	 */
+	void setColor(float r, float g, float b)
+	{
+		colorR = r;
+		colorG = g;
+		colorB = b;
+	}
+
+	void setBackfaceCulling(boolean backfaceCulling)
+	{
+		this.backfaceCulling = backfaceCulling;
+	}
+
+	boolean isBackfaceCulling()
+	{
+		return backfaceCulling;
+	}
+
+	/**
+	 * Transform the vertices of a render item and pass its triangles to the
+	 * binning stage. Render items whose bounding sphere is outside of the
+	 * view frustum are skipped. Triangles that face away from the camera
+	 * are culled if backface culling is enabled. Triangles that cross the
+	 * near plane or the guard band are clipped, and triangles that are 
+	 * entirely outside of one of these planes are dropped.
+	 */
+	void draw(RenderItem renderItem, SWTriangleBuffer triangles, SWTileBinner binner)
+	{
+		VertexData vertexData = renderItem.getShape().getVertexData();
+		int indices[] = vertexData.getIndices();
+
+		// Don't draw if there are no indices
+		if(indices == null) return;
+
+		// Skip items that are outside of the view frustum, the test is done
+		// in object coordinates
+		objectToClip.mul(worldToClip, renderItem.getT());
+		frustum.set(objectToClip);
+		if(frustum.isOutside(vertexData.getBoundingSphere()))
+		{
+			statistics.addCulledItems(1);
+			return;
+		}
+
+		resolveElements(vertexData);
+		if(positions == null) return;
+
+		// Construct full transformation matrix
+		t.mul(worldToScreen, renderItem.getT());
+		modelview.mul(worldToCamera, renderItem.getT());
+
+		invalidateCache(vertexData.getNumberOfVertices());
+
+		Material material = renderItem.getShape().getMaterial();
+		int misses = 0, clipped = 0, backfacing = 0;
+		int nTriangles = indices.length/3;
+		for(int j=0; j<3*nTriangles; j+=3)
+		{
+			int i0 = indices[j], i1 = indices[j+1], i2 = indices[j+2];
+			if(cacheTags[i0] != cacheTag) { transformVertex(i0); misses++; }
+			if(cacheTags[i1] != cacheTag) { transformVertex(i1); misses++; }
+			if(cacheTags[i2] != cacheTag) { transformVertex(i2); misses++; }
+
+			int c0 = clipCodes[i0], c1 = clipCodes[i1], c2 = clipCodes[i2];
+			int o0 = i0*SWTriangleBuffer.VERTEX_STRIDE;
+			int o1 = i1*SWTriangleBuffer.VERTEX_STRIDE;
+			int o2 = i2*SWTriangleBuffer.VERTEX_STRIDE;
+			if(backfaceCulling && isBackfacing(o0, o1, o2))
+			{
+				backfacing++;
+				continue;
+			}
+			if((c0 | c1 | c2) == 0)
+			{
+				// The common case, the triangle is inside of all clip planes
+				binner.bin(triangles, triangles.add(vertices, o0, o1, o2, material));
+			}
+			else if((c0 & c1 & c2) == 0)
+			{
+				// The triangle crosses a clip plane, draw the clipped polygon 
+				// as a triangle fan
+				int n = clipper.clip(vertices, o0, o1, o2, c0 | c1 | c2);
+				float[] p = clipper.getPolygon();
+				for(int k=2; k<n; k++)
+					binner.bin(triangles, triangles.add(p, 0, (k-1)*SWTriangleBuffer.VERTEX_STRIDE, 
+							k*SWTriangleBuffer.VERTEX_STRIDE, material));
+				clipped++;
+			}
+			// Otherwise all vertices are outside of the same plane
+		}
+
+		statistics.addVertexCacheMisses(misses);
+		statistics.addVertexCacheHits(3*nTriangles - misses);
+		statistics.addTriangles(nTriangles);
+		statistics.addClippedTriangles(clipped);
+		statistics.addBackfacingTriangles(backfacing);
+
+		// Do not keep references to the vertex data of this item
+		positions = colors = normals = texCoords = null;
+	}
+
+	/**
+	 * Test whether a triangle faces away from the camera. The determinant
+	 * of the x, y and w coordinates of the vertices is the signed area of
+	 * the triangle in screen space times the w coordinates of the vertices.
+	 * Its sign gives the orientation of the triangle as seen from the
+	 * camera, even for vertices behind the camera, so the test can be done
+	 * before clipping. Screen space has y pointing down, so front faces 
+	 * have clockwise order there.
+	 */
+	private boolean isBackfacing(int o0, int o1, int o2)
+	{
+		float[] v = vertices;
+		float x0 = v[o0+SWTriangleBuffer.X], y0 = v[o0+SWTriangleBuffer.Y], w0 = v[o0+SWTriangleBuffer.INV_W];
+		float x1 = v[o1+SWTriangleBuffer.X], y1 = v[o1+SWTriangleBuffer.Y], w1 = v[o1+SWTriangleBuffer.INV_W];
+		float x2 = v[o2+SWTriangleBuffer.X], y2 = v[o2+SWTriangleBuffer.Y], w2 = v[o2+SWTriangleBuffer.INV_W];
+		float det = x0*(y1*w2 - w1*y2) - y0*(x1*w2 - w1*x2) + w0*(x1*y2 - y1*x2);
+		return det >= 0;
+	}
+
+	/**
+	 * Look up the attribute arrays of the vertex data. Missing attributes
+	 * are replaced by constant default values.
+	 */
+	private void resolveElements(VertexData vertexData)
+	{
+		positions = null;
+		colors = DEFAULT_COLOR;
+		normals = DEFAULT_NORMAL;
+		texCoords = DEFAULT_TEXCOORDS;
+		positionStride = colorStride = normalStride = texCoordStride = 0;
+		positionOffset = colorOffset = normalOffset = texCoordOffset = 0;
+		positionDim = 0;
+
+		if(vertexData.isInterleaved())
+		{
+			resolveInterleaved(vertexData);
+			return;
+		}
+
+		// Look up the elements without iterating over the element list, 
+		// which would allocate an iterator for every render item
+		VertexData.VertexElement e = vertexData.getElement(VertexData.Semantic.POSITION);
+		if(e != null)
+		{
+			positions = e.getData();
+			positionDim = e.getNumberOfComponents();
+			positionStride = positionDim;
+		}
+		e = vertexData.getElement(VertexData.Semantic.COLOR);
+		if(e != null)
+		{
+			colors = e.getData();
+			colorStride = e.getNumberOfComponents();
+		}
+		e = vertexData.getElement(VertexData.Semantic.NORMAL);
+		if(e != null)
+		{
+			normals = e.getData();
+			normalStride = e.getNumberOfComponents();
+		}
+		e = vertexData.getElement(VertexData.Semantic.TEXCOORD);
+		if(e != null)
+		{
+			texCoords = e.getData();
+			texCoordStride = e.getNumberOfComponents();
+		}
+	}
+
+	/**
+	 * Look up the attributes in the interleaved array of the vertex data.
+	 */
+	private void resolveInterleaved(VertexData vertexData)
+	{
+		float[] data = vertexData.getInterleavedData();
+		int stride = vertexData.getStride();
+
+		int o = vertexData.getOffset(VertexData.Semantic.POSITION);
+		if(o == -1) return;
+		positions = data;
+		positionStride = stride;
+		positionOffset = o;
+		positionDim = vertexData.getElement(VertexData.Semantic.POSITION).getNumberOfComponents();
+
+		o = vertexData.getOffset(VertexData.Semantic.COLOR);
+		if(o != -1)
+		{
+			colors = data;
+			colorStride = stride;
+			colorOffset = o;
+		}
+		o = vertexData.getOffset(VertexData.Semantic.NORMAL);
+		if(o != -1)
+		{
+			normals = data;
+			normalStride = stride;
+			normalOffset = o;
+		}
+		o = vertexData.getOffset(VertexData.Semantic.TEXCOORD);
+		if(o != -1)
+		{
+			texCoords = data;
+			texCoordStride = stride;
+			texCoordOffset = o;
+		}
+	}
+
+	/**
+	 * Mark all cached vertices as invalid, and make sure the cache can hold
+	 * n vertices.
+	 */
+	private void invalidateCache(int n)
+	{
+		if(cacheTags.length < n)
+		{
+			vertices = new float[n*SWTriangleBuffer.VERTEX_STRIDE];
+			cacheTags = new int[n];
+			clipCodes = new int[n];
+		}
+
+		// A new tag invalidates all entries. Only when the tag wraps around,
+		// the entries need to be reset explicitly.
+		cacheTag++;
+		if(cacheTag == Integer.MAX_VALUE)
+		{
+			Arrays.fill(cacheTags, 0);
+			cacheTag = 1;
+		}
+	}
+
+	/**
+	 * Transform vertex i of the current render item and store it in the
+	 * vertex cache.
+	 */
+	private void transformVertex(int i)
+	{
+		float[] v = vertices;
+		int o = i*SWTriangleBuffer.VERTEX_STRIDE;
+		cacheTags[i] = cacheTag;
+
+		int p = i*positionStride + positionOffset;
+		float x = positions[p], y = positions[p+1], z = positions[p+2];
+		float w = positionDim > 3 ? positions[p+3] : 1.f;
+		v[o+SWTriangleBuffer.X] = t.m00*x + t.m01*y + t.m02*z + t.m03*w;
+		v[o+SWTriangleBuffer.Y] = t.m10*x + t.m11*y + t.m12*z + t.m13*w;
+		v[o+SWTriangleBuffer.Z] = t.m20*x + t.m21*y + t.m22*z + t.m23*w;
+		v[o+SWTriangleBuffer.INV_W] = t.m30*x + t.m31*y + t.m32*z + t.m33*w;
+		clipCodes[i] = SWClipper.clipCode(v, o);
+
+		int c = i*colorStride + colorOffset;
+		v[o+SWTriangleBuffer.R] = colors[c]*colorR;
+		v[o+SWTriangleBuffer.G] = colors[c+1]*colorG;
+		v[o+SWTriangleBuffer.B] = colors[c+2]*colorB;
+
+		// Normals are transformed to camera coordinates like in the shaders of
+		// the OpenGL renderer, i.e., with the modelview matrix
+		int n = i*normalStride + normalOffset;
+		float nx = normals[n], ny = normals[n+1], nz = normals[n+2];
+		v[o+SWTriangleBuffer.NX] = modelview.m00*nx + modelview.m01*ny + modelview.m02*nz;
+		v[o+SWTriangleBuffer.NY] = modelview.m10*nx + modelview.m11*ny + modelview.m12*nz;
+		v[o+SWTriangleBuffer.NZ] = modelview.m20*nx + modelview.m21*ny + modelview.m22*nz;
+
+		int uv = i*texCoordStride + texCoordOffset;
+		v[o+SWTriangleBuffer.U] = texCoords[uv];
+		v[o+SWTriangleBuffer.V] = texCoords[uv+1];
+	}
+}
@@ -0,0 +1,90 @@
+package jrtr.swrenderer;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A {@link SWSpanShader} that shades a row of a block, 8 pixels, with
+ * 256 bit vectors of the vector API. The barycentric coordinates, the
+ * depth test and the interpolation of the color are evaluated for all
+ * pixels at once, and the covered pixels that pass the depth test are
+ * blended into the depth and color buffers. The arithmetic is the same as in
+ * {@link SWTileRasterizer#shade}, except that the barycentric coordinates
+ * are computed from the first pixel instead of being stepped, so the
+ * results may differ in the last bit.
+ * <p>
+ * Since the class uses the incubator module, it is compiled separately
+ * from the rest of the renderer (see the profile <code>vector-api</code>
+ * in the pom) and only loaded through reflection by
+ * {@link SWRenderContext}.
+ */
+class SWVectorSpanShader implements SWSpanShader {
+
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_256;
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_256;
+
+	private static final float ROUND = 1 << 23;
+
+	// The offsets 0, 1, ..., 7 of the pixels from the first pixel, and the
+	// bits of the pixels in the coverage
+	private static final FloatVector LANES = FloatVector.fromArray(FLOATS,
+			new float[] {0, 1, 2, 3, 4, 5, 6, 7}, 0);
+	private static final IntVector BITS = IntVector.fromArray(INTS,
+			new int[] {1, 2, 4, 8, 16, 32, 64, 128}, 0);
+
+	/**
+	 * @throws UnsupportedOperationException if the processor has no 256 bit
+	 * vectors, and the vector API would emulate them
+	 */
+	SWVectorSpanShader()
+	{
+		if(FloatVector.SPECIES_PREFERRED.length() < FLOATS.length() || FLOATS.length() != SWTileRasterizer.BLOCK_SIZE)
+			throw new UnsupportedOperationException("No hardware support for " + FLOATS);
+	}
+
+	public int shade(float[] t, float[] depthBuffer, int[] colorBuffer, int p, int coverage,
+			float l1, float l2, float l1dx, float l2dx)
+	{
+		FloatVector v1 = LANES.mul(l1dx).add(l1);
+		FloatVector v2 = LANES.mul(l2dx).add(l2);
+		FloatVector v0 = FloatVector.broadcast(FLOATS, 1.f).sub(v1).sub(v2);
+
+		FloatVector z = v0.mul(t[Z]).add(v1.mul(t[Z+1])).add(v2.mul(t[Z+2]));
+		FloatVector depth = FloatVector.fromArray(FLOATS, depthBuffer, p);
+		VectorMask<Float> pass = z.lt(depth);
+		if(coverage != COVERED)
+			pass = pass.and(IntVector.broadcast(INTS, coverage).and(BITS).compare(VectorOperators.NE, 0).cast(FLOATS));
+		if(!pass.anyTrue()) return 0;
+		depth.blend(z, pass).intoArray(depthBuffer, p);
+
+		FloatVector w0 = v0.mul(t[INV_W]), w1 = v1.mul(t[INV_W+1]), w2 = v2.mul(t[INV_W+2]);
+		FloatVector s = FloatVector.broadcast(FLOATS, 1.f).div(w0.add(w1).add(w2));
+		w0 = w0.mul(s); w1 = w1.mul(s); w2 = w2.mul(s);
+
+		IntVector r = toByte(w0.mul(t[R]).add(w1.mul(t[R+1])).add(w2.mul(t[R+2])));
+		IntVector g = toByte(w0.mul(t[G]).add(w1.mul(t[G+1])).add(w2.mul(t[G+2])));
+		IntVector b = toByte(w0.mul(t[B]).add(w1.mul(t[B+1])).add(w2.mul(t[B+2])));
+		IntVector c = r.lanewise(VectorOperators.LSHL, 16).or(g.lanewise(VectorOperators.LSHL, 8)).or(b);
+		IntVector.fromArray(INTS, colorBuffer, p).blend(c, pass.cast(INTS)).intoArray(colorBuffer, p);
+		return pass.trueCount();
+	}
+
+	/**
+	 * Convert color components in [0,1] to [0,255], truncating like
+	 * {@link SWTileRasterizer#toRGB}. The conversion F2I of the vector API
+	 * is not compiled to vector instructions by JDK 17, and it made the
+	 * shader slower than the scalar code. Instead, adding 2^23 to a float in
+	 * [0,255] rounds it to an integer, which then is in the low bits of the
+	 * mantissa, and one is subtracted where it was rounded up.
+	 */
+	private static IntVector toByte(FloatVector c)
+	{
+		FloatVector x = c.mul(255.f).max(0.f).min(255.f);
+		FloatVector rounded = x.add(ROUND).sub(ROUND);
+		FloatVector truncated = rounded.sub(1.f, rounded.compare(VectorOperators.GT, x));
+		return truncated.add(ROUND).reinterpretAsInts().and(0xFF);
+	}
+}
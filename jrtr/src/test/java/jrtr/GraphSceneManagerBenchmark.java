@@ -0,0 +1,122 @@
+package jrtr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.vecmath.*;
+
+import jrtr.swrenderer.SWVertexData;
+
+/**
+ * Measures the traversal of a large scene graph in which a few groups are
+ * animated per frame. The scene is a 4-ary tree of {@link TransformGroup}s
+ * of depth 7, with 5 shape nodes below each leaf group, 103,765 nodes in
+ * total. In each frame, the transformations of 1% of the nodes are set to
+ * new rotations, and the scene is traversed with {@link GraphSceneManager}.
+ * <p>
+ * The world transformations are either cached, so that only the animated
+ * groups and their subtrees are recomputed, or every group is invalidated
+ * before each traversal, which costs one matrix multiplication per group
+ * as without the cache. Both are measured with and without frustum
+ * culling; the whole scene is in view of the default camera.
+ * <p>
+ * Run from the jrtr directory with
+ * <code>java jrtr.GraphSceneManagerBenchmark</code>.
+ */
+public class GraphSceneManagerBenchmark {
+
+	private static final int DEPTH = 7, SHAPES = 5, WARMUP = 100, FRAMES = 300;
+
+	// The groups and their translations relative to their parents
+	private static ArrayList<TransformGroup> groups = new ArrayList<TransformGroup>();
+	private static ArrayList<Vector3f> offsets = new ArrayList<Vector3f>();
+	private static int nodes;
+
+	public static void main(String[] args)
+	{
+		VertexData vertexData = new SWVertexData(3);
+		vertexData.addElement(new float[] {-.01f,-.01f,0, .01f,-.01f,0, 0,.01f,0}, VertexData.Semantic.POSITION, 3);
+		vertexData.addIndices(new int[] {0,1,2});
+		Shape shape = new Shape(vertexData);
+		TransformGroup root = makeTree(shape, 0, new Vector3f());
+		GraphSceneManager sceneManager = new GraphSceneManager(root);
+
+		int animated = nodes/100;
+		System.out.printf("%d nodes, %d groups, %d animated per frame, median ms/frame%n", nodes, groups.size(), animated);
+		System.out.printf("                  culling off  culling on%n");
+		for(boolean cached : new boolean[] {true, false})
+		{
+			double[] t = new double[2];
+			for(int c=0; c<2; c++)
+			{
+				sceneManager.setFrustumCulling(c == 1);
+				Random random = new Random(0);
+				for(int i=0; i<WARMUP; i++)
+					frame(sceneManager, random, animated, cached);
+				long[] times = new long[FRAMES];
+				for(int i=0; i<FRAMES; i++)
+				{
+					long t0 = System.nanoTime();
+					frame(sceneManager, random, animated, cached);
+					times[i] = System.nanoTime()-t0;
+				}
+				Arrays.sort(times);
+				t[c] = times[FRAMES/2]/1e6;
+			}
+			System.out.printf("  %-16s %11.3f %11.3f%n", cached ? "cached" : "every group", t[0], t[1]);
+		}
+	}
+
+	/**
+	 * Animate random groups and traverse the scene.
+	 */
+	private static float frame(GraphSceneManager sceneManager, Random random, int animated, boolean cached)
+	{
+		Matrix4f t = new Matrix4f();
+		for(int i=0; i<animated; i++)
+		{
+			int g = 1 + random.nextInt(groups.size()-1);
+			t.rotZ(random.nextFloat()*.1f);
+			t.setTranslation(offsets.get(g));
+			groups.get(g).setTransformation(t);
+		}
+		if(!cached)
+		{
+			for(int i=0; i<groups.size(); i++)
+				groups.get(i).invalidateWorldTransformation();
+		}
+
+		float sum = 0;
+		SceneManagerIterator it = sceneManager.iterator();
+		while(it.hasNext())
+			sum += it.next().getT().m03;
+		return sum;
+	}
+
+	/**
+	 * Make a group at the given offset from its parent, with 4 children on
+	 * the corners of a square half as large, or with shapes at the leaves.
+	 */
+	private static TransformGroup makeTree(Shape shape, int level, Vector3f offset)
+	{
+		TransformGroup group = new TransformGroup();
+		Matrix4f t = new Matrix4f();
+		t.setIdentity();
+		t.setTranslation(offset);
+		group.setTransformation(t);
+		groups.add(group);
+		offsets.add(offset);
+		nodes++;
+
+		float s = 2.f/(1 << level);
+		for(int i=0; i<4 && level<DEPTH; i++)
+			group.addChild(makeTree(shape, level+1, new Vector3f((i&1) == 0 ? -s : s, (i&2) == 0 ? -s : s, 0)));
+		for(int i=0; i<SHAPES && level==DEPTH; i++)
+		{
+			group.addChild(new ShapeNode(shape));
+			nodes++;
+		}
+		return group;
+	}
+}
@@ -0,0 +1,110 @@
+package jrtr;
+
+import javax.vecmath.*;
+
+import junit.framework.TestCase;
+import jrtr.swrenderer.SWVertexData;
+
+/**
+ * Checks that frustum culling in {@link GraphSceneManager} sees changes to
+ * the scene graph that are made after the first traversal, i.e., after the
+ * bounds of the groups have been computed.
+ */
+public class GraphSceneManagerTest extends TestCase {
+
+	private Shape shape;
+	private TransformGroup root, group;
+	private GraphSceneManager sceneManager;
+
+	protected void setUp()
+	{
+		VertexData vertexData = new SWVertexData(3);
+		vertexData.addElement(new float[] {-.1f,-.1f,0, .1f,-.1f,0, 0,.1f,0}, VertexData.Semantic.POSITION, 3);
+		vertexData.addIndices(new int[] {0,1,2});
+		shape = new Shape(vertexData);
+
+		// The root has a group with one shape far to the side of the view
+		root = new TransformGroup();
+		group = new TransformGroup();
+		group.setTransformation(translation(100, 0, 0));
+		group.addChild(new ShapeNode(shape));
+		root.addChild(group);
+		sceneManager = new GraphSceneManager(root);
+		assertEquals(0, countShapes());
+	}
+
+	public void testAddAndRemoveChild()
+	{
+		// A child that moves back into view extends the bounds of the group
+		TransformGroup child = new TransformGroup();
+		child.setTransformation(translation(-100, 0, 0));
+		child.addChild(new ShapeNode(shape));
+		group.addChild(child);
+		assertEquals(1, countShapes());
+
+		assertTrue(group.removeChild(child));
+		assertFalse(group.removeChild(child));
+		assertEquals(0, countShapes());
+	}
+
+	public void testTransformationOfDescendant()
+	{
+		TransformGroup child = new TransformGroup();
+		child.addChild(new ShapeNode(shape));
+		group.addChild(child);
+		assertEquals(0, countShapes());
+
+		child.setTransformation(translation(-100, 0, 0));
+		assertEquals(1, countShapes());
+		child.setTransformation(translation(0, 0, 0));
+		assertEquals(0, countShapes());
+	}
+
+	public void testSharedGroup()
+	{
+		// A group below two parents, which is visible through one of them
+		TransformGroup shared = new TransformGroup();
+		shared.addChild(new ShapeNode(shape));
+		TransformGroup other = new TransformGroup();
+		other.addChild(shared);
+		group.addChild(shared);
+		root.addChild(other);
+		assertEquals(1, countShapes());
+
+		// A child of the shared group, which is visible only through the group
+		// far to the side
+		TransformGroup child = new TransformGroup();
+		child.setTransformation(translation(-100, 0, 0));
+		child.addChild(new ShapeNode(shape));
+		shared.addChild(child);
+		assertEquals(2, countShapes());
+	}
+
+	public void testCopyOfTransformation()
+	{
+		group.getTransformation(new Matrix4f()).setTranslation(new Vector3f());
+		assertEquals(0, countShapes());
+		group.getWorldTransformation(new Matrix4f()).setTranslation(new Vector3f());
+		assertEquals(0, countShapes());
+	}
+
+	private int countShapes()
+	{
+		int n = 0;
+		SceneManagerIterator it = sceneManager.iterator();
+		while(it.hasNext())
+		{
+			it.next();
+			n++;
+		}
+		return n;
+	}
+
+	private static Matrix4f translation(float x, float y, float z)
+	{
+		Matrix4f t = new Matrix4f();
+		t.setIdentity();
+		t.setTranslation(new Vector3f(x, y, z));
+		return t;
+	}
+}
@@ -0,0 +1,85 @@
+package jrtr;
+
+import javax.vecmath.*;
+
+import junit.framework.TestCase;
+import jrtr.swrenderer.SWVertexData;
+
+/**
+ * Checks that {@link OctreeSceneManager} follows the transformations of its
+ * shapes like {@link SimpleSceneManager}, also when they are modified in
+ * place, as the example applications do in every frame.
+ */
+public class OctreeSceneManagerTest extends TestCase {
+
+	private Shape shape, other;
+	private OctreeSceneManager sceneManager;
+
+	protected void setUp()
+	{
+		VertexData vertexData = new SWVertexData(3);
+		vertexData.addElement(new float[] {-.1f,-.1f,0, .1f,-.1f,0, 0,.1f,0}, VertexData.Semantic.POSITION, 3);
+		vertexData.addIndices(new int[] {0,1,2});
+
+		// One shape far to the side of the view, and one in view
+		shape = new Shape(vertexData);
+		shape.setTransformation(translation(100, 0, 0));
+		other = new Shape(vertexData);
+		other.setTransformation(translation(0, 0, 0));
+		sceneManager = new OctreeSceneManager();
+		sceneManager.addShape(shape);
+		sceneManager.addShape(other);
+		assertEquals(1, countShapes());
+	}
+
+	public void testTransformationModifiedInPlace()
+	{
+		shape.getTransformation().setTranslation(new Vector3f(0, 0, 0));
+		assertEquals(2, countShapes());
+		shape.getTransformation().setTranslation(new Vector3f(100, 0, 0));
+		assertEquals(1, countShapes());
+	}
+
+	public void testTransformationReplaced()
+	{
+		shape.setTransformation(translation(0, 0, 0));
+		assertEquals(2, countShapes());
+	}
+
+	public void testWithoutTracking()
+	{
+		sceneManager.setTransformationTracking(false);
+		shape.getTransformation().setTranslation(new Vector3f(0, 0, 0));
+		assertEquals(1, countShapes());
+		assertTrue(sceneManager.moveShape(shape));
+		assertEquals(2, countShapes());
+	}
+
+	public void testRemovedShape()
+	{
+		assertTrue(sceneManager.removeShape(other));
+		shape.getTransformation().setTranslation(new Vector3f(0, 0, 0));
+		assertEquals(1, countShapes());
+		assertEquals(1, sceneManager.getShapeCount());
+	}
+
+	private int countShapes()
+	{
+		int n = 0;
+		SceneManagerIterator it = sceneManager.iterator();
+		while(it.hasNext())
+		{
+			it.next();
+			n++;
+		}
+		return n;
+	}
+
+	private static Matrix4f translation(float x, float y, float z)
+	{
+		Matrix4f t = new Matrix4f();
+		t.setIdentity();
+		t.setTranslation(new Vector3f(x, y, z));
+		return t;
+	}
+}
@@ -0,0 +1,47 @@
+package jrtr;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the interleaved layout of {@link VertexData} stores the same
+ * element of each semantic that {@link VertexData#getElement} returns, and
+ * that adding an element notifies subclasses that the layout changed.
+ */
+public class VertexDataTest extends TestCase {
+
+	private int layoutChanges;
+	private VertexData vertexData;
+
+	protected void setUp()
+	{
+		vertexData = new VertexData(1) {
+			protected void layoutChanged()
+			{
+				layoutChanges++;
+			}
+		};
+		vertexData.addElement(new float[] {1, 2, 3}, VertexData.Semantic.POSITION, 3);
+		vertexData.addElement(new float[] {.1f, .2f, .3f}, VertexData.Semantic.COLOR, 3);
+	}
+
+	public void testDuplicateSemantics()
+	{
+		// The newest position and the oldest color are used
+		vertexData.addElement(new float[] {4, 5, 6}, VertexData.Semantic.POSITION, 3);
+		vertexData.addElement(new float[] {.4f, .5f, .6f}, VertexData.Semantic.COLOR, 3);
+		float[] data = vertexData.getInterleavedData();
+		assertEquals(6, vertexData.getStride());
+		assertEquals(4.f, data[vertexData.getOffset(VertexData.Semantic.POSITION)]);
+		assertEquals(.1f, data[vertexData.getOffset(VertexData.Semantic.COLOR)]);
+		assertEquals(4.f, vertexData.getElement(VertexData.Semantic.POSITION).getData()[0]);
+		assertEquals(.1f, vertexData.getElement(VertexData.Semantic.COLOR).getData()[0]);
+	}
+
+	public void testAddElementChangesLayout()
+	{
+		layoutChanges = 0;
+		vertexData.addElement(new float[] {0, 0, 1}, VertexData.Semantic.NORMAL, 3);
+		assertEquals(1, layoutChanges);
+		assertEquals(9, vertexData.getStride());
+	}
+}
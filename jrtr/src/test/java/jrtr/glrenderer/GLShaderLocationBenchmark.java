@@ -0,0 +1,146 @@
+package jrtr.glrenderer;
+
+import static org.lwjgl.glfw.GLFW.*;
+import static org.lwjgl.opengl.GL45.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import org.lwjgl.opengl.GL;
+
+/**
+ * Compares the location queries of a frame before and after
+ * {@link GLShader} cached the locations. Before, each draw call of a
+ * textured shape with four vertex attributes and one light made these
+ * queries:
+ * <ul>
+ * <li>4 glGetAttribLocation, one for each vertex attribute</li>
+ * <li>2 glGetUniformLocation for "modelview" and "projection"</li>
+ * <li>4 glGetUniformLocation in setMaterial for "myTexture",
+ * "lightDirection[0]" for the default light and again for the light of
+ * the scene, and "nLights", with the names of the array elements built by
+ * string concatenation</li>
+ * </ul>
+ * Now the locations are queried once when the shader is linked, and a
+ * frame makes no queries. Each draw call reads "modelview" and
+ * "projection" from the cache, and the material uniforms are read once per
+ * shader and frame.
+ * <p>
+ * The queries listed above are taken from reading the code of the render
+ * context before the cache. The benchmark replays them for a frame of draw
+ * calls with the diffuse shader, counting the glGet*Location calls it
+ * makes, and times them against the lookups in the cache. It needs an
+ * OpenGL context, which it makes in a hidden GLFW window. Without one, it
+ * prints nothing but a note.
+ * <p>
+ * Run from the jrtr directory with
+ * <code>java jrtr.glrenderer.GLShaderLocationBenchmark [draw calls]</code>.
+ */
+public class GLShaderLocationBenchmark {
+
+	private static final int WARMUP = 50, FRAMES = 200;
+	private static final String[] ATTRIBUTES = {"position", "normal", "texcoord", "color"};
+
+	// The number of glGet*Location calls made by queried
+	private static int queries;
+
+	public static void main(String[] args) throws Exception
+	{
+		int draws = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		System.out.printf("%d draw calls per frame, one light%n", draws);
+
+		// GLFW fails to load if the natives for this platform are missing
+		long window = NULL;
+		try {
+			if(glfwInit())
+			{
+				glfwWindowHint(GLFW_VISIBLE, GLFW_FALSE);
+				window = glfwCreateWindow(64, 64, "GLShaderLocationBenchmark", NULL, NULL);
+			}
+		} catch(LinkageError e) {
+		}
+		if(window == NULL)
+		{
+			System.out.println("  no OpenGL context, the lookups are not timed");
+			return;
+		}
+		glfwMakeContextCurrent(window);
+		GL.createCapabilities();
+
+		GLShader shader = new GLShader();
+		shader.load("../jrtr/shaders/diffuse.vert", "../jrtr/shaders/diffuse.frag");
+		int p = shader.programId();
+
+		for(int i=0; i<WARMUP; i++)
+		{
+			queried(p, draws);
+			cached(shader, draws);
+		}
+		queries = 0;
+		queried(p, draws);
+		System.out.printf("  glGet*Location calls per frame before the cache: %d%n", queries);
+
+		long t0 = System.nanoTime();
+		for(int i=0; i<FRAMES; i++)
+			queried(p, draws);
+		long t1 = System.nanoTime();
+		for(int i=0; i<FRAMES; i++)
+			cached(shader, draws);
+		long t2 = System.nanoTime();
+		System.out.printf("  glGet*Location:  %8.3f ms/frame%n", (t1-t0)/1e6/FRAMES);
+		System.out.printf("  cached:          %8.3f ms/frame%n", (t2-t1)/1e6/FRAMES);
+
+		shader.dispose();
+		glfwDestroyWindow(window);
+		glfwTerminate();
+	}
+
+	/**
+	 * The queries of a frame before the locations were cached.
+	 */
+	private static int queried(int p, int draws)
+	{
+		int sum = 0;
+		for(int i=0; i<draws; i++)
+		{
+			for(String a : ATTRIBUTES)
+				sum += attribLocation(p, a);
+			sum += uniformLocation(p, "modelview");
+			sum += uniformLocation(p, "projection");
+			sum += uniformLocation(p, "myTexture");
+			sum += uniformLocation(p, "lightDirection[0]");
+			for(int l=0; l<1; l++)
+				sum += uniformLocation(p, "lightDirection[" + l + "]");
+			sum += uniformLocation(p, "nLights");
+		}
+		return sum;
+	}
+
+	private static int attribLocation(int p, String name)
+	{
+		queries++;
+		return glGetAttribLocation(p, name);
+	}
+
+	private static int uniformLocation(int p, String name)
+	{
+		queries++;
+		return glGetUniformLocation(p, name);
+	}
+
+	/**
+	 * The lookups of a frame with the cache.
+	 */
+	private static int cached(GLShader shader, int draws)
+	{
+		int sum = shader.getUniformLocation("myTexture");
+		sum += shader.getUniformLocation("lightDirection", 0);
+		for(int l=0; l<1; l++)
+			sum += shader.getUniformLocation("lightDirection", l);
+		sum += shader.getUniformLocation("nLights");
+		for(int i=0; i<draws; i++)
+		{
+			sum += shader.getUniformLocation("modelview");
+			sum += shader.getUniformLocation("projection");
+		}
+		return sum;
+	}
+}
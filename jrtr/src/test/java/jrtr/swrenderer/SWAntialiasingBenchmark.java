@@ -0,0 +1,114 @@
+package jrtr.swrenderer;
+
+import java.io.IOException;
+
+import javax.vecmath.*;
+
+import jrtr.Material;
+import jrtr.ObjReader;
+import jrtr.Shape;
+import jrtr.SimpleSceneManager;
+import jrtr.VertexData;
+
+/**
+ * Compares the cost of multisampling (MSAA) with supersampling (SSAA) at
+ * four samples per pixel. Multisampling renders the image with
+ * {@link SWRenderContext#setMultisampling}, which shades each triangle once
+ * per pixel. Supersampling renders an image of twice the width and height
+ * without multisampling, which shades every sample, and averages each 2x2
+ * block of pixels; the averaging is included in the time. The scene is a
+ * grid of textured teapots.
+ * <p>
+ * Run from the jrtr directory with
+ * <code>java jrtr.swrenderer.SWAntialiasingBenchmark [width height]</code>.
+ */
+public class SWAntialiasingBenchmark {
+
+	private static final int WARMUP = 20, FRAMES = 50;
+
+	public static void main(String[] args) throws IOException
+	{
+		int width = args.length > 1 ? Integer.parseInt(args[0]) : 800;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+
+		SWRenderContext renderContext = new SWRenderContext();
+		SimpleSceneManager sceneManager = makeScene(renderContext);
+		renderContext.setSceneManager(sceneManager);
+		System.out.printf("%dx%d pixels, ms/frame%n", width, height);
+
+		renderContext.setViewportSize(width, height);
+		System.out.printf("  1 sample:    %8.3f%n", time(renderContext, null));
+		renderContext.setMultisampling(4);
+		System.out.printf("  4x MSAA:     %8.3f%n", time(renderContext, null));
+		renderContext.setMultisampling(1);
+		renderContext.setViewportSize(2*width, 2*height);
+		System.out.printf("  4x SSAA:     %8.3f%n", time(renderContext, new int[width*height]));
+		renderContext.shutdown();
+	}
+
+	/**
+	 * Render frames and return the time per frame in milliseconds.
+	 *
+	 * @param downsampled the image to average 2x2 blocks of pixels into, or
+	 * 		null if the image is not downsampled
+	 */
+	private static double time(SWRenderContext renderContext, int[] downsampled)
+	{
+		for(int i=0; i<WARMUP; i++)
+			render(renderContext, downsampled);
+		long t0 = System.nanoTime();
+		for(int i=0; i<FRAMES; i++)
+			render(renderContext, downsampled);
+		return (System.nanoTime()-t0)/1e6/FRAMES;
+	}
+
+	private static void render(SWRenderContext renderContext, int[] downsampled)
+	{
+		renderContext.display();
+		if(downsampled == null) return;
+
+		int[] src = renderContext.getColorBufferData();
+		int w = renderContext.getWidth();
+		int dw = w/2, dh = renderContext.getHeight()/2;
+		for(int y=0; y<dh; y++)
+		{
+			for(int x=0; x<dw; x++)
+			{
+				int p = 2*y*w + 2*x;
+				int c00 = src[p], c10 = src[p+1], c01 = src[p+w], c11 = src[p+w+1];
+				int r = ((c00 >> 16 & 0xFF) + (c10 >> 16 & 0xFF) + (c01 >> 16 & 0xFF) + (c11 >> 16 & 0xFF) + 2) >> 2;
+				int g = ((c00 >> 8 & 0xFF) + (c10 >> 8 & 0xFF) + (c01 >> 8 & 0xFF) + (c11 >> 8 & 0xFF) + 2) >> 2;
+				int b = ((c00 & 0xFF) + (c10 & 0xFF) + (c01 & 0xFF) + (c11 & 0xFF) + 2) >> 2;
+				downsampled[y*dw+x] = (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	/**
+	 * Make a 4x3 grid of textured teapots that fills most of the view of
+	 * the default camera.
+	 */
+	private static SimpleSceneManager makeScene(SWRenderContext renderContext) throws IOException
+	{
+		VertexData vertexData = ObjReader.read("../obj/teapot_texcoords.obj", 2.f, renderContext);
+		Material material = new Material();
+		material.diffuseMap = renderContext.makeTexture();
+		material.diffuseMap.load("../textures/wood.jpg");
+
+		SimpleSceneManager sceneManager = new SimpleSceneManager();
+		for(int j=0; j<3; j++)
+		{
+			for(int i=0; i<4; i++)
+			{
+				Shape shape = new Shape(vertexData);
+				shape.setMaterial(material);
+				Matrix4f t = new Matrix4f();
+				t.setIdentity();
+				t.setTranslation(new Vector3f(2.5f*i - 3.75f, 2.5f*j - 2.5f, 0));
+				shape.setTransformation(t);
+				sceneManager.addShape(shape);
+			}
+		}
+		return sceneManager;
+	}
+}
@@ -0,0 +1,87 @@
+package jrtr.swrenderer;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Measures the cost of clearing the color buffer and presenting it, for
+ * the formats and clearing methods the software renderer has used: a
+ * three byte BGR image cleared with {@link BufferedImage#setRGB} for each
+ * pixel, the same image cleared by filling its byte array, and the current
+ * int RGB image cleared by filling its int array (see
+ * {@link SWRenderContext#setViewportSize}). Presenting is simulated by
+ * drawing the color buffer into an int RGB image, which is what
+ * {@link SWJPanel} does with the screen when it is not headless.
+ * <p>
+ * Run with <code>java jrtr.swrenderer.SWColorBufferBenchmark [width height]</code>.
+ */
+public class SWColorBufferBenchmark {
+
+	private static final int WARMUP = 20, FRAMES = 50;
+
+	private static BufferedImage target;
+
+	public static void main(String[] args)
+	{
+		int width = args.length > 1 ? Integer.parseInt(args[0]) : 1920;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 1080;
+		target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		System.out.printf("Clear and present at %dx%d, ms/frame%n", width, height);
+
+		final BufferedImage bgr = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		run("setRGB, 3 byte BGR", bgr, new Runnable() {
+			public void run()
+			{
+				for(int y=0; y<bgr.getHeight(); y++)
+					for(int x=0; x<bgr.getWidth(); x++)
+						bgr.setRGB(x, y, 0);
+			}
+		});
+
+		final byte[] bytes = ((DataBufferByte)bgr.getRaster().getDataBuffer()).getData();
+		run("byte fill, 3 byte BGR", bgr, new Runnable() {
+			public void run()
+			{
+				Arrays.fill(bytes, (byte)0);
+			}
+		});
+
+		BufferedImage rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		final int[] ints = ((DataBufferInt)rgb.getRaster().getDataBuffer()).getData();
+		run("int fill, int RGB", rgb, new Runnable() {
+			public void run()
+			{
+				Arrays.fill(ints, 0);
+			}
+		});
+	}
+
+	private static void run(String name, BufferedImage colorBuffer, Runnable clear)
+	{
+		Graphics2D g = target.createGraphics();
+		for(int i=0; i<WARMUP; i++)
+		{
+			clear.run();
+			g.drawImage(colorBuffer, 0, 0, null);
+		}
+
+		long clearTime = 0, presentTime = 0;
+		for(int i=0; i<FRAMES; i++)
+		{
+			long t0 = System.nanoTime();
+			clear.run();
+			long t1 = System.nanoTime();
+			g.drawImage(colorBuffer, 0, 0, null);
+			long t2 = System.nanoTime();
+			clearTime += t1-t0;
+			presentTime += t2-t1;
+		}
+		g.dispose();
+
+		System.out.printf("  %-22s clear %7.3f, present %7.3f, total %7.3f%n", name,
+				clearTime/1e6/FRAMES, presentTime/1e6/FRAMES, (clearTime+presentTime)/1e6/FRAMES);
+	}
+}
@@ -0,0 +1,51 @@
+package jrtr.swrenderer;
+
+import javax.vecmath.*;
+
+import junit.framework.TestCase;
+import jrtr.InstancedShape;
+import jrtr.SimpleSceneManager;
+import jrtr.VertexData;
+
+/**
+ * Checks that the software renderer multiplies the vertex colors of the
+ * instances of an {@link InstancedShape} by the colors of the instances,
+ * like the instanced shaders of the OpenGL renderer.
+ */
+public class SWInstancedShapeTest extends TestCase {
+
+	public void testInstanceColors()
+	{
+		SWRenderContext renderContext = new SWRenderContext(1);
+		try {
+			VertexData vertexData = renderContext.makeVertexData(4);
+			vertexData.addElement(new float[] {-.5f,-.5f,0, .5f,-.5f,0, .5f,.5f,0, -.5f,.5f,0}, VertexData.Semantic.POSITION, 3);
+			vertexData.addElement(new float[] {1,1,1, 1,1,1, 1,1,1, 1,1,1}, VertexData.Semantic.COLOR, 3);
+			vertexData.addIndices(new int[] {0,1,2, 0,2,3});
+
+			// A red instance on the left and a blue one on the right
+			InstancedShape shape = new InstancedShape(vertexData);
+			shape.addInstance(translation(-1, 0, 0), 1, 0, 0, 1);
+			shape.addInstance(translation(1, 0, 0), 0, 0, 1, 1);
+			SimpleSceneManager sceneManager = new SimpleSceneManager();
+			sceneManager.addShape(shape);
+			renderContext.setSceneManager(sceneManager);
+			renderContext.setViewportSize(128, 128);
+			renderContext.display();
+
+			int[] pixels = renderContext.getColorBufferData();
+			assertEquals(0xFF0000, pixels[64*128 + 64 - 16]);
+			assertEquals(0x0000FF, pixels[64*128 + 64 + 16]);
+		} finally {
+			renderContext.shutdown();
+		}
+	}
+
+	private static Matrix4f translation(float x, float y, float z)
+	{
+		Matrix4f t = new Matrix4f();
+		t.setIdentity();
+		t.setTranslation(new Vector3f(x, y, z));
+		return t;
+	}
+}
@@ -0,0 +1,40 @@
+package jrtr.swrenderer;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import jrtr.SimpleSceneManager;
+
+/**
+ * Checks that an error of the writer thread of {@link SWOffscreenRenderer}
+ * is reported once, and that the renderer keeps writing images afterwards.
+ */
+public class SWOffscreenRendererTest extends TestCase {
+
+	public void testWriterSurvivesRuntimeException() throws Exception
+	{
+		SWOffscreenRenderer renderer = new SWOffscreenRenderer(16, 16);
+		SimpleSceneManager sceneManager = new SimpleSceneManager();
+		File file = File.createTempFile("SWOffscreenRendererTest", ".png");
+		try {
+			// Opening a null file throws a NullPointerException in the writer
+			renderer.renderToFile(sceneManager, null);
+			try {
+				renderer.finish();
+				fail("The error of the writer was not reported");
+			} catch(IOException e) {
+				assertTrue(e.getCause() instanceof NullPointerException);
+			}
+
+			assertTrue(file.delete());
+			renderer.renderToFile(sceneManager, file);
+			renderer.finish();
+			assertTrue(file.length() > 0);
+			assertNotNull(renderer.render(sceneManager));
+		} finally {
+			renderer.close();
+			file.delete();
+		}
+	}
+}
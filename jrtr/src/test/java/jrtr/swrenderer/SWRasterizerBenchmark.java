@@ -0,0 +1,243 @@
+package jrtr.swrenderer;
+
+import java.util.Arrays;
+
+import javax.vecmath.*;
+
+import jrtr.Shape;
+import jrtr.SimpleSceneManager;
+import jrtr.VertexData;
+
+/**
+ * Compares the block based edge function rasterizer of
+ * {@link SWTileRasterizer} with a scanline rasterizer, on scenes of small
+ * and of large triangles. Both rasterize the same screen space triangles,
+ * which are produced once by the vertex stage, do the same per pixel work
+ * (depth test and perspective correct color interpolation) and clear the
+ * frame buffer in each frame. The render context uses one thread, so that
+ * the times are comparable.
+ * <p>
+ * The projection maps object coordinates directly to pixels, with the
+ * depth in [0,1]. Triangles are mostly submitted from back to front, so 
+ * that the hierarchical depth test of the edge function rasterizer does not
+ * reject any of them.
+ * <p>
+ * Run with <code>java jrtr.swrenderer.SWRasterizerBenchmark [width height]</code>.
+ */
+public class SWRasterizerBenchmark {
+
+	private static final int WARMUP = 30, FRAMES = 100;
+
+	private final int width, height;
+
+	// The frame buffer of the scanline rasterizer
+	private final int[] colors;
+	private final float[] depths;
+
+	private SWRasterizerBenchmark(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		colors = new int[width*height];
+		depths = new float[width*height];
+	}
+
+	public static void main(String[] args)
+	{
+		int width = args.length > 1 ? Integer.parseInt(args[0]) : 1024;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 768;
+		SWRasterizerBenchmark benchmark = new SWRasterizerBenchmark(width, height);
+
+		// Right triangles with legs of 4 pixels, two layers covering the screen
+		benchmark.run("small", 4, 2, false);
+		// Triangles covering half of the screen, 16 layers
+		benchmark.run("large", Math.max(width, height), 16, false);
+		// The same from front to back, where the hierarchical depth test of
+		// the edge function rasterizer rejects the hidden layers
+		benchmark.run("large, front to back,", Math.max(width, height), 16, true);
+	}
+
+	/**
+	 * Rasterize a scene with both rasterizers and print the times per frame.
+	 *
+	 * @param size the length of the legs of the triangles in pixels
+	 * @param layers the number of layers of triangles covering the screen
+	 * @param frontToBack submit the layers from front to back
+	 */
+	private void run(String name, int size, int layers, boolean frontToBack)
+	{
+		SWRenderContext renderContext = new SWRenderContext(1);
+		renderContext.setBackfaceCulling(false);
+		renderContext.setSceneManager(makeScene(size, layers, frontToBack));
+		renderContext.setViewportSize(width, height);
+		renderContext.display();
+		SWTriangleBuffer triangles = renderContext.getTriangles();
+
+		for(int i=0; i<WARMUP; i++)
+		{
+			renderContext.display();
+			scanline(triangles);
+		}
+
+		// The frame is traversed again before each rasterization, since
+		// rasterizing it updates the maximum depths of its tiles
+		long edgeTime = 0;
+		for(int i=0; i<FRAMES; i++)
+		{
+			renderContext.traverse();
+			long t = System.nanoTime();
+			renderContext.rasterize(renderContext.getColorBuffer());
+			renderContext.finishFrame();
+			edgeTime += System.nanoTime() - t;
+		}
+		long t = System.nanoTime();
+		for(int i=0; i<FRAMES; i++)
+			scanline(triangles);
+		long scanTime = System.nanoTime() - t;
+
+		// The rasterizers differ only in pixels on edges that are shared
+		// between triangles, and in rounding
+		int[] edgeColors = renderContext.getColorBufferData();
+		int different = 0;
+		for(int p=0; p<colors.length; p++)
+			if(colors[p] != edgeColors[p]) different++;
+
+		double edge = edgeTime/1e6/FRAMES, scan = scanTime/1e6/FRAMES;
+		System.out.printf("%s triangles: %d triangles, %dx%d pixels%n", name, triangles.size(), width, height);
+		System.out.printf("  edge functions: %8.3f ms/frame%n", edge);
+		System.out.printf("  scanline:       %8.3f ms/frame%n", scan);
+		System.out.printf("  speedup %.2fx, %d different pixels%n", scan/edge, different);
+		renderContext.shutdown();
+	}
+
+	/**
+	 * Make a scene of right triangles with colored vertices. Each layer is a
+	 * grid of squares that covers the screen, split into two triangles.
+	 */
+	private SimpleSceneManager makeScene(int size, int layers, boolean frontToBack)
+	{
+		int nx = (width + size - 1)/size, ny = (height + size - 1)/size;
+		int n = 4*nx*ny*layers;
+		float[] v = new float[3*n], c = new float[3*n];
+		int[] indices = new int[6*nx*ny*layers];
+		int k = 0, m = 0;
+		for(int l=0; l<layers; l++)
+		{
+			float z = (frontToBack ? l+1.f : layers-l)/(layers+1.f);
+			for(int j=0; j<ny; j++)
+			{
+				for(int i=0; i<nx; i++)
+				{
+					float[] corners = {i*size, j*size, (i+1)*size, j*size, (i+1)*size, (j+1)*size, i*size, (j+1)*size};
+					for(int q=0; q<4; q++)
+					{
+						v[3*(k+q)] = corners[2*q];
+						v[3*(k+q)+1] = corners[2*q+1];
+						v[3*(k+q)+2] = z;
+						c[3*(k+q)] = (float)q/3;
+						c[3*(k+q)+1] = (float)l/layers;
+						c[3*(k+q)+2] = 1.f - (float)q/3;
+					}
+					indices[m++] = k; indices[m++] = k+1; indices[m++] = k+2;
+					indices[m++] = k; indices[m++] = k+2; indices[m++] = k+3;
+					k += 4;
+				}
+			}
+		}
+
+		VertexData vertexData = new SWVertexData(n);
+		vertexData.addElement(c, VertexData.Semantic.COLOR, 3);
+		vertexData.addElement(v, VertexData.Semantic.POSITION, 3);
+		vertexData.addIndices(indices);
+
+		// Map pixel coordinates and depth in [0,1] to normalized device
+		// coordinates, the inverse of the viewport transformation
+		SimpleSceneManager sceneManager = new SimpleSceneManager();
+		Matrix4f camera = new Matrix4f();
+		camera.setIdentity();
+		sceneManager.getCamera().setCameraMatrix(camera);
+		Matrix4f projection = new Matrix4f();
+		projection.setIdentity();
+		projection.m00 = 2.f/width; projection.m03 = -1.f;
+		projection.m11 = -2.f/height; projection.m13 = 1.f;
+		projection.m22 = 2.f; projection.m23 = -1.f;
+		sceneManager.getFrustum().setProjectionMatrix(projection);
+		sceneManager.addShape(new Shape(vertexData));
+		return sceneManager;
+	}
+
+	/**
+	 * Clear the frame buffer and rasterize the triangles scanline by
+	 * scanline. Pixels whose centers lie inside a triangle are drawn.
+	 */
+	private void scanline(SWTriangleBuffer triangles)
+	{
+		Arrays.fill(colors, 0);
+		Arrays.fill(depths, 1.f);
+		float[] d = triangles.getData();
+		for(int t=0; t<triangles.size(); t++)
+		{
+			int o = t*SWTriangleBuffer.TRIANGLE_STRIDE;
+			int o0 = o, o1 = o + SWTriangleBuffer.VERTEX_STRIDE, o2 = o + 2*SWTriangleBuffer.VERTEX_STRIDE;
+
+			// Sort the vertices by y
+			if(d[o1+SWTriangleBuffer.Y] < d[o0+SWTriangleBuffer.Y]) { int s = o0; o0 = o1; o1 = s; }
+			if(d[o2+SWTriangleBuffer.Y] < d[o1+SWTriangleBuffer.Y]) { int s = o1; o1 = o2; o2 = s; }
+			if(d[o1+SWTriangleBuffer.Y] < d[o0+SWTriangleBuffer.Y]) { int s = o0; o0 = o1; o1 = s; }
+			float x0 = d[o0+SWTriangleBuffer.X], y0 = d[o0+SWTriangleBuffer.Y];
+			float x1 = d[o1+SWTriangleBuffer.X], y1 = d[o1+SWTriangleBuffer.Y];
+			float x2 = d[o2+SWTriangleBuffer.X], y2 = d[o2+SWTriangleBuffer.Y];
+			float area = (x1-x0)*(y2-y0) - (x2-x0)*(y1-y0);
+			if(area == 0 || y2 == y0) continue;
+
+			// Gradients of the barycentric coordinates of vertex 1 and 2
+			float l1dx = (y2-y0)/area, l1dy = -(x2-x0)/area;
+			float l2dx = -(y1-y0)/area, l2dy = (x1-x0)/area;
+
+			int yStart = Math.max((int)Math.ceil(y0 - .5f), 0);
+			int yEnd = Math.min((int)Math.ceil(y2 - .5f), height);
+			for(int y=yStart; y<yEnd; y++)
+			{
+				// Intersect the scanline with the long edge from vertex 0 to 2,
+				// and with the edge from vertex 0 to 1 or from 1 to 2
+				float yc = y + .5f;
+				float xa = x0 + (x2-x0)*(yc-y0)/(y2-y0);
+				float xb = yc < y1 ? x0 + (x1-x0)*(yc-y0)/(y1-y0) : x1 + (x2-x1)*(yc-y1)/(y2-y1);
+				int xStart = Math.max((int)Math.ceil(Math.min(xa, xb) - .5f), 0);
+				int xEnd = Math.min((int)Math.ceil(Math.max(xa, xb) - .5f), width);
+				if(xStart >= xEnd) continue;
+
+				float l1 = (xStart + .5f - x0)*l1dx + (yc - y0)*l1dy;
+				float l2 = (xStart + .5f - x0)*l2dx + (yc - y0)*l2dy;
+				for(int x=xStart, p=y*width+xStart; x<xEnd; x++, p++)
+				{
+					shade(d, o0, o1, o2, p, l1, l2);
+					l1 += l1dx;
+					l2 += l2dx;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The per pixel work of {@link SWTileRasterizer}: depth test, perspective
+	 * correct interpolation of the vertex colors, and writing the pixel.
+	 */
+	private void shade(float[] d, int o0, int o1, int o2, int p, float l1, float l2)
+	{
+		float l0 = 1.f - l1 - l2;
+		float z = l0*d[o0+SWTriangleBuffer.Z] + l1*d[o1+SWTriangleBuffer.Z] + l2*d[o2+SWTriangleBuffer.Z];
+		if(!(z < depths[p])) return;
+		depths[p] = z;
+
+		float w0 = l0*d[o0+SWTriangleBuffer.INV_W];
+		float w1 = l1*d[o1+SWTriangleBuffer.INV_W];
+		float w2 = l2*d[o2+SWTriangleBuffer.INV_W];
+		float s = 1.f/(w0 + w1 + w2);
+		w0 *= s; w1 *= s; w2 *= s;
+		float r = w0*d[o0+SWTriangleBuffer.R] + w1*d[o1+SWTriangleBuffer.R] + w2*d[o2+SWTriangleBuffer.R];
+		float g = w0*d[o0+SWTriangleBuffer.G] + w1*d[o1+SWTriangleBuffer.G] + w2*d[o2+SWTriangleBuffer.G];
+		float b = w0*d[o0+SWTriangleBuffer.B] + w1*d[o1+SWTriangleBuffer.B] + w2*d[o2+SWTriangleBuffer.B];
+		colors[p] = SWTileRasterizer.toRGB(r, g, b);
+	}
+}
@@ -0,0 +1,81 @@
+package jrtr.swrenderer;
+
+import java.lang.management.ManagementFactory;
+
+import javax.vecmath.*;
+
+import com.sun.management.ThreadMXBean;
+
+import junit.framework.TestCase;
+import jrtr.ObjReader;
+import jrtr.Shape;
+import jrtr.SimpleSceneManager;
+import jrtr.VertexData;
+
+/**
+ * Checks that the software renderer renders frames without allocating
+ * memory on the render thread once it has been warmed up.
+ */
+public class SWRenderContextAllocationTest extends TestCase {
+
+	private ThreadMXBean threads;
+	private long threadId;
+
+	protected void setUp()
+	{
+		threads = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+		threadId = Thread.currentThread().getId();
+	}
+
+	public void testSteadyStateFramesDoNotAllocate() throws Exception
+	{
+		if(!threads.isThreadAllocatedMemorySupported())
+			return;
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		SWRenderContext renderContext = new SWRenderContext(1);
+		SimpleSceneManager sceneManager = new SimpleSceneManager();
+		VertexData vertexData = ObjReader.read("../obj/teapot.obj", 1.f, renderContext);
+		for(int i=0; i<8; i++)
+		{
+			Shape shape = new Shape(vertexData);
+			Matrix4f t = new Matrix4f();
+			t.setIdentity();
+			t.setTranslation(new Vector3f(i-3.5f, 0, -i));
+			shape.setTransformation(t);
+			sceneManager.addShape(shape);
+		}
+		renderContext.setSceneManager(sceneManager);
+		renderContext.setViewportSize(256, 256);
+
+		try {
+			for(int i=0; i<100; i++)
+				renderContext.display();
+
+			// Reading the counter may allocate itself, measure this first
+			long overhead = allocatedBytes();
+			overhead = allocatedBytes() - overhead;
+
+			// The JIT may reallocate objects once when it deoptimizes code
+			// after the warm-up, so only require that one of several windows
+			// is free of allocations. Allocations per frame show up in all.
+			long minimum = Long.MAX_VALUE;
+			for(int w=0; w<10 && minimum > 0; w++)
+			{
+				long before = allocatedBytes();
+				for(int i=0; i<20; i++)
+					renderContext.display();
+				minimum = Math.min(minimum, allocatedBytes() - before - overhead);
+			}
+
+			assertEquals("Bytes allocated by 20 frames", 0, minimum);
+		} finally {
+			renderContext.shutdown();
+		}
+	}
+
+	private long allocatedBytes()
+	{
+		return threads.getThreadAllocatedBytes(threadId);
+	}
+}
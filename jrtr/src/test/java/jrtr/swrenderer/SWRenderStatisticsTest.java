@@ -0,0 +1,59 @@
+package jrtr.swrenderer;
+
+import javax.vecmath.*;
+
+import junit.framework.TestCase;
+import jrtr.Shape;
+import jrtr.SimpleSceneManager;
+import jrtr.VertexData;
+
+/**
+ * Checks that the statistics of the render context describe one complete
+ * frame when the next frame is traversed while the previous one is
+ * rasterized, as in {@link SWRenderThread}.
+ */
+public class SWRenderStatisticsTest extends TestCase {
+
+	public void testStatisticsOfPipelinedFrames()
+	{
+		SWRenderContext renderContext = new SWRenderContext(1);
+		SimpleSceneManager sceneManager = new SimpleSceneManager();
+		renderContext.setSceneManager(sceneManager);
+		renderContext.setViewportSize(128, 128);
+
+		try {
+			// Each frame has one more quad than the previous one
+			for(int i=0; i<20; i++)
+			{
+				sceneManager.addShape(makeQuad(renderContext, i));
+				renderContext.traverse();
+				renderContext.finishFrame();
+				if(i > 0)
+					assertEquals("Triangles of frame " + (i-1), 2*i, renderContext.getStatistics().getTriangles());
+				renderContext.rasterize(renderContext.getColorBuffer());
+			}
+			renderContext.finishFrame();
+			assertEquals("Triangles of the last frame", 40, renderContext.getStatistics().getTriangles());
+		} finally {
+			renderContext.shutdown();
+		}
+	}
+
+	/**
+	 * Make a quad in front of the default camera, behind the quads that
+	 * were made before.
+	 */
+	private Shape makeQuad(SWRenderContext renderContext, int i)
+	{
+		VertexData vertexData = renderContext.makeVertexData(4);
+		vertexData.addElement(new float[] {-1,-1,0, 1,-1,0, 1,1,0, -1,1,0}, VertexData.Semantic.POSITION, 3);
+		vertexData.addElement(new float[] {1,0,0, 0,1,0, 0,0,1, 1,1,1}, VertexData.Semantic.COLOR, 3);
+		vertexData.addIndices(new int[] {0,1,2, 0,2,3});
+		Shape shape = new Shape(vertexData);
+		Matrix4f t = new Matrix4f();
+		t.setIdentity();
+		t.setTranslation(new Vector3f(0, 0, -i));
+		shape.setTransformation(t);
+		return shape;
+	}
+}
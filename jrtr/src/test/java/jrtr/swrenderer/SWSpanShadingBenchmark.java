@@ -0,0 +1,111 @@
+package jrtr.swrenderer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.vecmath.*;
+
+import jrtr.ObjReader;
+import jrtr.Shape;
+import jrtr.SimpleSceneManager;
+import jrtr.VertexData;
+
+/**
+ * Compares span shading with the vector API (see
+ * {@link SWRenderContext#setSpanShading}) to shading one pixel at a time,
+ * at several resolutions. The scene is a 4x3 grid of teapots whose vertex
+ * colors are their normals, so that the colors are interpolated across
+ * the triangles. The benchmark also counts the pixels in which the two
+ * images differ.
+ * <p>
+ * Span shading is only available with JDK 16 or later and the module of
+ * the vector API. Run from the jrtr directory with
+ * <code>java --add-modules jdk.incubator.vector jrtr.swrenderer.SWSpanShadingBenchmark</code>.
+ * Without the module, only the scalar path is timed.
+ */
+public class SWSpanShadingBenchmark {
+
+	private static final int WARMUP = 20, FRAMES = 50;
+	private static final int[][] RESOLUTIONS = {{320, 240}, {800, 600}, {1920, 1080}};
+
+	public static void main(String[] args) throws IOException
+	{
+		SWRenderContext renderContext = new SWRenderContext();
+		renderContext.setSceneManager(makeScene(renderContext));
+		boolean supported = renderContext.isSpanShadingSupported();
+		if(!supported)
+			System.out.println("The vector API is not available, add the JVM option --add-modules jdk.incubator.vector");
+
+		System.out.printf("4x3 teapots, median ms/frame%n");
+		System.out.printf("  resolution      scalar      spans   different pixels%n");
+		for(int[] r : RESOLUTIONS)
+		{
+			renderContext.setViewportSize(r[0], r[1]);
+			renderContext.setSpanShading(false);
+			double scalar = time(renderContext);
+			int[] image = renderContext.getColorBufferData().clone();
+			if(!supported)
+			{
+				System.out.printf("  %4dx%-4d    %8.3f%n", r[0], r[1], scalar);
+				continue;
+			}
+
+			renderContext.setSpanShading(true);
+			double spans = time(renderContext);
+			int[] spanImage = renderContext.getColorBufferData();
+			int different = 0;
+			for(int i=0; i<image.length; i++)
+				if(image[i] != spanImage[i])
+					different++;
+			System.out.printf("  %4dx%-4d    %8.3f   %8.3f   %8d%n", r[0], r[1], scalar, spans, different);
+		}
+		renderContext.shutdown();
+	}
+
+	/**
+	 * Render frames and return the median time per frame in milliseconds.
+	 */
+	private static double time(SWRenderContext renderContext)
+	{
+		for(int i=0; i<WARMUP; i++)
+			renderContext.display();
+		long[] times = new long[FRAMES];
+		for(int i=0; i<FRAMES; i++)
+		{
+			long t0 = System.nanoTime();
+			renderContext.display();
+			times[i] = System.nanoTime()-t0;
+		}
+		Arrays.sort(times);
+		return times[FRAMES/2]/1e6;
+	}
+
+	/**
+	 * Make a 4x3 grid of teapots that fills most of the view of the default
+	 * camera, colored by their normals.
+	 */
+	private static SimpleSceneManager makeScene(SWRenderContext renderContext) throws IOException
+	{
+		VertexData vertexData = ObjReader.read("../obj/teapot.obj", 2.f, renderContext);
+		float[] normals = vertexData.getElement(VertexData.Semantic.NORMAL).getData();
+		float[] colors = new float[normals.length];
+		for(int i=0; i<normals.length; i++)
+			colors[i] = .5f + .5f*normals[i];
+		vertexData.addElement(colors, VertexData.Semantic.COLOR, 3);
+
+		SimpleSceneManager sceneManager = new SimpleSceneManager();
+		for(int j=0; j<3; j++)
+		{
+			for(int i=0; i<4; i++)
+			{
+				Shape shape = new Shape(vertexData);
+				Matrix4f t = new Matrix4f();
+				t.setIdentity();
+				t.setTranslation(new Vector3f(2.5f*i - 3.75f, 2.5f*j - 2.5f, 0));
+				shape.setTransformation(t);
+				sceneManager.addShape(shape);
+			}
+		}
+		return sceneManager;
+	}
+}
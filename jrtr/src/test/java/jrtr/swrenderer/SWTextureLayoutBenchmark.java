@@ -0,0 +1,133 @@
+package jrtr.swrenderer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Compares the throughput of bilinear sampling from the block layout of
+ * {@link SWTexture} with sampling from the same texels stored row by row.
+ * A screen of pixels is mapped onto level 0 of a large texture with one
+ * texel per pixel, rotated by different angles. At 0 degrees, the screen
+ * rows follow the texture rows, which is the best case for the row layout.
+ * At 90 degrees, consecutive pixels step through texture columns.
+ * <p>
+ * The row layout is sampled by a copy of {@link SWTexture#sampleBilinear}
+ * that differs only in the texel address.
+ * <p>
+ * Run with <code>java jrtr.swrenderer.SWTextureLayoutBenchmark [texture size]</code>.
+ */
+public class SWTextureLayoutBenchmark {
+
+	private static final int SCREEN = 1024, WARMUP = 3, FRAMES = 10;
+
+	private static int[] rows;
+	private static int width, height;
+
+	public static void main(String[] args) throws IOException
+	{
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+
+		// A noise texture, which does not compress well in the caches of the
+		// image loader or elsewhere
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+		java.util.Random random = new java.util.Random(0);
+		for(int y=0; y<size; y++)
+			for(int x=0; x<size; x++)
+				image.setRGB(x, y, random.nextInt());
+		File file = File.createTempFile("texture", ".png");
+		file.deleteOnExit();
+		ImageIO.write(image, "png", file);
+
+		SWTexture texture = new SWTexture();
+		texture.load(file.getPath());
+		width = texture.getWidth();
+		height = texture.getHeight();
+		rows = new int[width*height];
+		for(int y=0; y<height; y++)
+			for(int x=0; x<width; x++)
+				rows[y*width+x] = texture.fetch(0, x, y);
+
+		System.out.printf("Bilinear samples of a %dx%d texture, %dx%d pixels, Msamples/s%n", size, size, SCREEN, SCREEN);
+		System.out.printf("  angle     rows   blocks%n");
+		for(int angle : new int[] {0, 15, 30, 45, 60, 90})
+		{
+			double a = Math.toRadians(angle);
+			float ca = (float)Math.cos(a), sa = (float)Math.sin(a);
+			for(int i=0; i<WARMUP; i++)
+			{
+				draw(texture, ca, sa, false);
+				draw(texture, ca, sa, true);
+			}
+			long t0 = System.nanoTime();
+			int check = 0;
+			for(int i=0; i<FRAMES; i++)
+				check += draw(texture, ca, sa, false);
+			long t1 = System.nanoTime();
+			for(int i=0; i<FRAMES; i++)
+				check -= draw(texture, ca, sa, true);
+			long t2 = System.nanoTime();
+			if(check != 0)
+				throw new IllegalStateException("The layouts give different results");
+
+			double samples = (double)SCREEN*SCREEN*FRAMES;
+			System.out.printf("  %5d  %7.1f  %7.1f%n", angle, samples/((t1-t0)/1e3), samples/((t2-t1)/1e3));
+		}
+	}
+
+	/**
+	 * Sample the texture at the centers of a square of pixels, rotated by
+	 * an angle around the center of the texture.
+	 *
+	 * @return a checksum of the samples
+	 */
+	private static int draw(SWTexture texture, float ca, float sa, boolean blocks)
+	{
+		int sum = 0;
+		float du = ca/width, dv = sa/height;
+		for(int y=0; y<SCREEN; y++)
+		{
+			float px = -SCREEN/2 + .5f, py = y - SCREEN/2 + .5f;
+			float u = .5f + (ca*px - sa*py)/width;
+			float v = .5f + (sa*px + ca*py)/height;
+			for(int x=0; x<SCREEN; x++)
+			{
+				sum += blocks ? texture.sampleBilinear(0, u, v) : sampleBilinear(u, v);
+				u += du;
+				v += dv;
+			}
+		}
+		return sum;
+	}
+
+	private static int sampleBilinear(float u, float v)
+	{
+		int w = width, h = height;
+		float x = u*w - .5f, y = v*h - .5f;
+		float fx = (float)Math.floor(x), fy = (float)Math.floor(y);
+		int tx = (int)((x - fx)*256), ty = (int)((y - fy)*256);
+		int x0 = wrap((int)fx, w), x1 = x0+1 == w ? 0 : x0+1;
+		int y0 = wrap((int)fy, h), y1 = y0+1 == h ? 0 : y0+1;
+
+		int c0 = lerp(rows[y0*w+x0], rows[y0*w+x1], tx);
+		int c1 = lerp(rows[y1*w+x0], rows[y1*w+x1], tx);
+		return lerp(c0, c1, ty);
+	}
+
+	private static int wrap(int i, int n)
+	{
+		i %= n;
+		return i < 0 ? i+n : i;
+	}
+
+	private static int lerp(int c0, int c1, int t)
+	{
+		int r0 = c0 >> 16 & 0xFF, g0 = c0 >> 8 & 0xFF, b0 = c0 & 0xFF;
+		int r = r0 + (((c1 >> 16 & 0xFF) - r0)*t >> 8);
+		int g = g0 + (((c1 >> 8 & 0xFF) - g0)*t >> 8);
+		int b = b0 + (((c1 & 0xFF) - b0)*t >> 8);
+		return (r << 16) | (g << 8) | b;
+	}
+}
@@ -0,0 +1,84 @@
+package jrtr.swrenderer;
+
+import java.io.IOException;
+
+import javax.vecmath.*;
+
+import jrtr.ObjReader;
+import jrtr.Shape;
+import jrtr.SimpleSceneManager;
+import jrtr.VertexData;
+
+/**
+ * Compares the separate vertex layout of {@link VertexData}, with one
+ * array per vertex element, to the interleaved layout chosen with
+ * {@link VertexData#setInterleaved}. The scene is a 4x3 grid of copies of
+ * a model, which share its vertex data. The vertex stage alone is timed by
+ * traversing the scene, and the whole frame by displaying it.
+ * <p>
+ * There is no OpenGL context in the test environment, so the layouts are
+ * compared with the software renderer, whose vertex stage reads the
+ * attributes from either layout.
+ * <p>
+ * Run from the jrtr directory with
+ * <code>java jrtr.swrenderer.SWVertexLayoutBenchmark [width height]</code>.
+ */
+public class SWVertexLayoutBenchmark {
+
+	private static final int WARMUP = 10, FRAMES = 30;
+
+	public static void main(String[] args) throws IOException
+	{
+		int width = args.length > 1 ? Integer.parseInt(args[0]) : 800;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+
+		SWRenderContext renderContext = new SWRenderContext();
+		renderContext.setViewportSize(width, height);
+		System.out.printf("4x3 copies, %dx%d pixels, ms/frame%n", width, height);
+		System.out.printf("  model     layout        vertex stage    frame%n");
+		for(String model : new String[] {"bunny", "teapot"})
+		{
+			VertexData vertexData = ObjReader.read("../obj/" + model + ".obj", 2.f, renderContext);
+			renderContext.setSceneManager(makeScene(vertexData));
+			for(boolean interleaved : new boolean[] {false, true})
+			{
+				vertexData.setInterleaved(interleaved);
+				for(int i=0; i<WARMUP; i++)
+					renderContext.display();
+
+				long t0 = System.nanoTime();
+				for(int i=0; i<FRAMES; i++)
+					renderContext.traverse();
+				long t1 = System.nanoTime();
+				for(int i=0; i<FRAMES; i++)
+					renderContext.display();
+				long t2 = System.nanoTime();
+				System.out.printf("  %-9s %-12s %8.3f   %8.3f%n", model, interleaved ? "interleaved" : "separate",
+						(t1-t0)/1e6/FRAMES, (t2-t1)/1e6/FRAMES);
+			}
+		}
+		renderContext.shutdown();
+	}
+
+	/**
+	 * Make a 4x3 grid of shapes that fills most of the view of the default
+	 * camera.
+	 */
+	private static SimpleSceneManager makeScene(VertexData vertexData)
+	{
+		SimpleSceneManager sceneManager = new SimpleSceneManager();
+		for(int j=0; j<3; j++)
+		{
+			for(int i=0; i<4; i++)
+			{
+				Shape shape = new Shape(vertexData);
+				Matrix4f t = new Matrix4f();
+				t.setIdentity();
+				t.setTranslation(new Vector3f(2.5f*i - 3.75f, 2.5f*j - 2.5f, 0));
+				shape.setTransformation(t);
+				sceneManager.addShape(shape);
+			}
+		}
+		return sceneManager;
+	}
+}